@@ -0,0 +1,74 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.lang.StackWalker.StackFrame;
+import java.util.List;
+
+import ch.qos.logback.classic.Logger;
+
+/**
+ * Captures the call site of a logging call.
+ *
+ * <p>
+ * This is the Java 9 variant, packaged in the multi-release jar, which walks
+ * the stack up to the needed frames instead of filling a whole stack trace.
+ */
+final class CallerFrames {
+
+	private static final String LOG4J_CATEGORY = "org.apache.log4j.Category";
+
+	private static final String SLF4J_BOUNDARY = "org.slf4j.Logger";
+
+	private static final StackWalker WALKER = StackWalker.getInstance();
+
+	private CallerFrames() {
+	}
+
+	/**
+	 * @param frameworkPackages the packages of the logging framework, skipped
+	 *                          with the logger class
+	 * @param maxDepth          the maximal number of frames to capture
+	 * @return the frames of the caller of the logger, innermost first
+	 */
+	static StackTraceElement[] capture(List<String> frameworkPackages, int maxDepth) {
+		return WALKER.walk(frames -> frames.dropWhile(frame -> !isFramework(frame, frameworkPackages))
+				.dropWhile(frame -> isFramework(frame, frameworkPackages)).limit(maxDepth)
+				.map(StackFrame::toStackTraceElement).toArray(StackTraceElement[]::new));
+	}
+
+	/**
+	 * @return whether the frame is skipped by
+	 *         {@link ch.qos.logback.classic.spi.CallerData#extract}
+	 */
+	private static boolean isFramework(StackFrame frame, List<String> frameworkPackages) {
+		String className = frame.getClassName();
+		if (className.equals(Logger.FQCN) || className.equals(LOG4J_CATEGORY)
+				|| className.startsWith(SLF4J_BOUNDARY)) {
+			return true;
+		}
+		if (frameworkPackages != null) {
+			for (String frameworkPackage : frameworkPackages) {
+				if (className.startsWith(frameworkPackage)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,501 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+
+/**
+ * An asynchronous appender adjusting how it drains its queue and when it
+ * discards events, to hold the time taken to enqueue an event under
+ * {@code target-enqueue-latency} while discarding as few events as possible.
+ *
+ * <p>
+ * Every {@code adjustment-period}, the 99th percentile of the enqueue latency
+ * (the time waiting for room in the queue) and the queue fill over the period
+ * are compared to the target. Under pressure (latency above target, queue more
+ * than half full, or more queued events than drained over a period), a worker
+ * is added and the batch size doubled, within their bounds, and if the latency
+ * is above target the discarding threshold is raised by a tenth of the queue,
+ * up to {@code max-discarding-threshold}. Once the latency is under half the
+ * target and the queue less than a quarter full, the discarding threshold is
+ * lowered first, then the workers and batch size are reduced.
+ *
+ * <p>
+ * As with logback async appenders, events of level {@code INFO} and below are
+ * discarded when the remaining capacity of the queue falls below the
+ * discarding threshold, and the other ones wait for room in the queue. With
+ * more than one worker, events may be appended out of order, and the attached
+ * appenders must be thread-safe.
+ *
+ * <pre>
+ * async {
+ *   class = "org.gnieh.logback.config.AdaptiveAsyncAppender"
+ *   appenders = [ file ]
+ *   queue-size = 1024
+ *   target-enqueue-latency = 50us
+ *   max-workers = 2
+ *   max-batch-size = 256
+ * }
+ * </pre>
+ *
+ * The adjustments are exposed by the getters of the appender, and published
+ * with the appender metrics when configured with {@code metrics = true}.
+ */
+public class AdaptiveAsyncAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+		implements AppenderAttachable<ILoggingEvent> {
+
+	private static final long POLL_MILLIS = 100;
+
+	private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+
+	private int queueSize = 1024;
+
+	private Duration targetEnqueueLatency = Duration.ofNanos(50000);
+
+	private Duration adjustmentPeriod = Duration.ofSeconds(1);
+
+	private int minWorkers = 1;
+
+	private int maxWorkers = 1;
+
+	private int minBatchSize = 1;
+
+	private int maxBatchSize = 256;
+
+	/**
+	 * The highest discarding threshold, {@code -1} for a fifth of the queue.
+	 */
+	private int maxDiscardingThreshold = -1;
+
+	private boolean includeCallerData;
+
+	private Duration maxFlushTime = Duration.ofSeconds(1);
+
+	private BlockingQueue<ILoggingEvent> queue;
+
+	private Thread[] workers;
+
+	private ScheduledFuture<?> adjustmentTask;
+
+	private volatile int discardingThreshold;
+
+	private volatile int batchSize;
+
+	private volatile int workerCount;
+
+	/**
+	 * The enqueue latencies of the current adjustment period.
+	 */
+	private volatile LatencyHistogram latencies = new LatencyHistogram();
+
+	private volatile long enqueueLatency99thPercentile;
+
+	private volatile double drainRate;
+
+	private final LongAdder discarded = new LongAdder();
+
+	private final LongAdder drained = new LongAdder();
+
+	private final LongAdder adjustments = new LongAdder();
+
+	private long lastDrained;
+
+	private long lastAdjustment;
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public Duration getTargetEnqueueLatency() {
+		return targetEnqueueLatency;
+	}
+
+	public void setTargetEnqueueLatency(Duration targetEnqueueLatency) {
+		this.targetEnqueueLatency = targetEnqueueLatency;
+	}
+
+	public Duration getAdjustmentPeriod() {
+		return adjustmentPeriod;
+	}
+
+	public void setAdjustmentPeriod(Duration adjustmentPeriod) {
+		this.adjustmentPeriod = adjustmentPeriod;
+	}
+
+	public int getMinWorkers() {
+		return minWorkers;
+	}
+
+	public void setMinWorkers(int minWorkers) {
+		this.minWorkers = minWorkers;
+	}
+
+	public int getMaxWorkers() {
+		return maxWorkers;
+	}
+
+	public void setMaxWorkers(int maxWorkers) {
+		this.maxWorkers = maxWorkers;
+	}
+
+	public int getMinBatchSize() {
+		return minBatchSize;
+	}
+
+	public void setMinBatchSize(int minBatchSize) {
+		this.minBatchSize = minBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public int getMaxDiscardingThreshold() {
+		return maxDiscardingThreshold;
+	}
+
+	public void setMaxDiscardingThreshold(int maxDiscardingThreshold) {
+		this.maxDiscardingThreshold = maxDiscardingThreshold;
+	}
+
+	public boolean isIncludeCallerData() {
+		return includeCallerData;
+	}
+
+	public void setIncludeCallerData(boolean includeCallerData) {
+		this.includeCallerData = includeCallerData;
+	}
+
+	public Duration getMaxFlushTime() {
+		return maxFlushTime;
+	}
+
+	public void setMaxFlushTime(Duration maxFlushTime) {
+		this.maxFlushTime = maxFlushTime;
+	}
+
+	/**
+	 * @return the remaining capacity below which events of level {@code INFO}
+	 *         and below are discarded
+	 */
+	public int getDiscardingThreshold() {
+		return discardingThreshold;
+	}
+
+	/**
+	 * @return the maximal number of events a worker takes from the queue at once
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	/**
+	 * @return the events waiting in the queue
+	 */
+	public int getQueueDepth() {
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * @return the 99th percentile of the enqueue latency over the last
+	 *         adjustment period, in nanoseconds
+	 */
+	public long getEnqueueLatency99thPercentile() {
+		return enqueueLatency99thPercentile;
+	}
+
+	/**
+	 * @return the events taken from the queue per second over the last
+	 *         adjustment period
+	 */
+	public double getDrainRate() {
+		return drainRate;
+	}
+
+	public long getDiscardedCount() {
+		return discarded.sum();
+	}
+
+	/**
+	 * @return the number of adjustment periods in which a setting changed
+	 */
+	public long getAdjustmentCount() {
+		return adjustments.sum();
+	}
+
+	@Override
+	public void start() {
+		if (isStarted()) {
+			return;
+		}
+		if (queueSize < 1) {
+			addError("Invalid queue size " + queueSize + ".");
+			return;
+		}
+		if (minWorkers < 1 || maxWorkers < minWorkers || minBatchSize < 1 || maxBatchSize < minBatchSize) {
+			addError("Invalid worker or batch size bounds.");
+			return;
+		}
+		if (targetEnqueueLatency == null || targetEnqueueLatency.isNegative() || targetEnqueueLatency.isZero()
+				|| adjustmentPeriod == null || adjustmentPeriod.isNegative() || adjustmentPeriod.isZero()) {
+			addError("Invalid target enqueue latency or adjustment period.");
+			return;
+		}
+		if (maxDiscardingThreshold < 0) {
+			maxDiscardingThreshold = queueSize / 5;
+		}
+		if (!appenders.iteratorForAppenders().hasNext()) {
+			addWarn("No appender attached to " + getName() + ".");
+		}
+
+		queue = new ArrayBlockingQueue<>(queueSize);
+		discardingThreshold = 0;
+		batchSize = minBatchSize;
+		workerCount = minWorkers;
+		workers = new Thread[maxWorkers];
+		lastDrained = drained.sum();
+		lastAdjustment = System.nanoTime();
+		super.start();
+		startWorkers();
+
+		adjustmentTask = context.getScheduledExecutorService().scheduleAtFixedRate(this::adjust,
+				adjustmentPeriod.toNanos(), adjustmentPeriod.toNanos(), TimeUnit.NANOSECONDS);
+		context.addScheduledFuture(adjustmentTask);
+	}
+
+	@Override
+	public void stop() {
+		if (!isStarted()) {
+			return;
+		}
+		super.stop();
+		if (adjustmentTask != null) {
+			adjustmentTask.cancel(false);
+			adjustmentTask = null;
+		}
+		// the workers drain the queue before exiting
+		long deadline = System.nanoTime() + maxFlushTime.toNanos();
+		for (Thread worker : workers) {
+			if (worker == null) {
+				continue;
+			}
+			try {
+				long remaining = deadline - System.nanoTime();
+				if (remaining > 0) {
+					TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (!queue.isEmpty()) {
+			addWarn(String.format("Max flush time exceeded. %d queued events were discarded.", queue.size()));
+			queue.clear();
+		}
+		appenders.detachAndStopAllAppenders();
+	}
+
+	@Override
+	protected void append(ILoggingEvent event) {
+		int threshold = discardingThreshold;
+		if (threshold > 0 && queue.remainingCapacity() < threshold
+				&& event.getLevel().toInt() <= Level.INFO_INT) {
+			discarded.increment();
+			return;
+		}
+		event.prepareForDeferredProcessing();
+		if (includeCallerData) {
+			event.getCallerData();
+		}
+		// only the wait for room in the queue is adjusted to, not the preparation of the event
+		long start = System.nanoTime();
+		if (!queue.offer(event)) {
+			try {
+				queue.put(event);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				discarded.increment();
+			}
+		}
+		latencies.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Starts the missing workers, up to the current worker count.
+	 */
+	private synchronized void startWorkers() {
+		for (int i = 0; i < workerCount; i++) {
+			if (workers[i] == null || !workers[i].isAlive()) {
+				final int index = i;
+				Thread worker = new Thread(() -> work(index),
+						"AdaptiveAsyncAppender-Worker-" + getName() + "-" + index);
+				worker.setDaemon(true);
+				workers[i] = worker;
+				worker.start();
+			}
+		}
+	}
+
+	/**
+	 * Appends the queued events, in batches, until the worker is not needed
+	 * anymore, or the appender is stopped and the queue drained.
+	 */
+	private void work(int index) {
+		List<ILoggingEvent> batch = new ArrayList<>();
+		while (isStarted() ? index < workerCount : !queue.isEmpty()) {
+			ILoggingEvent first;
+			try {
+				first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// only stopped by the appender
+				continue;
+			}
+			if (first == null) {
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch, batchSize - 1);
+			for (ILoggingEvent event : batch) {
+				appenders.appendLoopOnAppenders(event);
+			}
+			drained.add(batch.size());
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Adjusts the settings to the latency and fill of the last period.
+	 */
+	void adjust() {
+		LatencyHistogram period = latencies;
+		latencies = new LatencyHistogram();
+		long now = System.nanoTime();
+		long drainedNow = drained.sum();
+		drainRate = (drainedNow - lastDrained) * 1e9 / Math.max(1, now - lastAdjustment);
+		lastDrained = drainedNow;
+		lastAdjustment = now;
+
+		long latency = period.getValueAtPercentile(99);
+		enqueueLatency99thPercentile = latency;
+		long target = targetEnqueueLatency.toNanos();
+		int depth = queue.size();
+		int step = Math.max(1, queueSize / 10);
+
+		// the queued events would not all be appended by the next adjustment at the current rate
+		boolean backlog = depth > drainRate * adjustmentPeriod.toNanos() / 1e9;
+
+		boolean changed = false;
+		if (latency > target || depth > queueSize / 2 || backlog) {
+			if (workerCount < maxWorkers) {
+				workerCount++;
+				changed = true;
+			}
+			if (batchSize < maxBatchSize) {
+				batchSize = Math.min(maxBatchSize, batchSize * 2);
+				changed = true;
+			}
+			if (latency > target && discardingThreshold < maxDiscardingThreshold) {
+				discardingThreshold = Math.min(maxDiscardingThreshold, discardingThreshold + step);
+				changed = true;
+			}
+		} else if (latency <= target / 2 && depth < queueSize / 4) {
+			if (discardingThreshold > 0) {
+				discardingThreshold = Math.max(0, discardingThreshold - step);
+				changed = true;
+			} else {
+				if (workerCount > minWorkers) {
+					workerCount--;
+					changed = true;
+				}
+				if (batchSize > minBatchSize) {
+					batchSize = Math.max(minBatchSize, batchSize / 2);
+					changed = true;
+				}
+			}
+		}
+		if (changed) {
+			adjustments.increment();
+			if (isStarted()) {
+				startWorkers();
+			}
+		}
+	}
+
+	@Override
+	public void addAppender(Appender<ILoggingEvent> newAppender) {
+		appenders.addAppender(newAppender);
+	}
+
+	@Override
+	public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+		return appenders.iteratorForAppenders();
+	}
+
+	@Override
+	public Appender<ILoggingEvent> getAppender(String name) {
+		return appenders.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(Appender<ILoggingEvent> appender) {
+		return appenders.isAttached(appender);
+	}
+
+	@Override
+	public void detachAndStopAllAppenders() {
+		appenders.detachAndStopAllAppenders();
+	}
+
+	@Override
+	public boolean detachAppender(Appender<ILoggingEvent> appender) {
+		return appenders.detachAppender(appender);
+	}
+
+	@Override
+	public boolean detachAppender(String name) {
+		return appenders.detachAppender(name);
+	}
+
+}
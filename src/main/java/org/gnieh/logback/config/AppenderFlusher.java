@@ -0,0 +1,118 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import ch.qos.logback.core.Context;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+/**
+ * Periodically flushes the output stream of an appender, so that appenders
+ * configured with {@code immediate-flush = false} do not keep events buffered
+ * indefinitely on idle services.
+ *
+ * <p>
+ * The flush is performed while holding the appender lock, so that it never
+ * interleaves with an event being written or with a rollover.
+ */
+final class AppenderFlusher extends ContextAwareBase implements Runnable {
+
+	private static final Field LOCK_FIELD;
+
+	static {
+		Field lockField;
+		try {
+			lockField = OutputStreamAppender.class.getDeclaredField("lock");
+			lockField.setAccessible(true);
+		} catch (Exception e) {
+			lockField = null;
+		}
+		LOCK_FIELD = lockField;
+	}
+
+	private final OutputStreamAppender<?> appender;
+
+	private Lock lock;
+
+	private volatile ScheduledFuture<?> future;
+
+	private AppenderFlusher(Context context, OutputStreamAppender<?> appender) {
+		this.appender = appender;
+		setContext(context);
+		try {
+			this.lock = (Lock) LOCK_FIELD.get(appender);
+		} catch (Exception e) {
+			addError("Unable to access the lock of appender named [" + appender.getName() + "].", e);
+		}
+	}
+
+	/**
+	 * Schedules the periodic flush of an appender on the context executor. The
+	 * task is cancelled once the appender is stopped.
+	 *
+	 * @param context  the context
+	 * @param appender the appender to flush
+	 * @param interval the flush interval
+	 * @return the scheduled task, or {@code null} if it could not be scheduled
+	 */
+	static ScheduledFuture<?> schedule(Context context, OutputStreamAppender<?> appender, Duration interval) {
+		if (interval.isZero() || interval.isNegative()) {
+			return null;
+		}
+		AppenderFlusher flusher = new AppenderFlusher(context, appender);
+		if (flusher.lock == null) {
+			return null;
+		}
+		long period = interval.toMillis();
+		ScheduledFuture<?> future = context.getScheduledExecutorService().scheduleAtFixedRate(flusher, period, period,
+				TimeUnit.MILLISECONDS);
+		flusher.future = future;
+		context.addScheduledFuture(future);
+		return future;
+	}
+
+	@Override
+	public void run() {
+		if (!appender.isStarted()) {
+			ScheduledFuture<?> f = future;
+			if (f != null) {
+				f.cancel(false);
+			}
+			return;
+		}
+		lock.lock();
+		try {
+			OutputStream out = appender.getOutputStream();
+			if (out != null) {
+				out.flush();
+			}
+		} catch (IOException e) {
+			addError("Failed to flush appender named [" + appender.getName() + "].", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import com.typesafe.config.ConfigMemorySize;
+
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.rolling.RollingPolicyBase;
+import ch.qos.logback.core.rolling.helper.CompressionMode;
+import ch.qos.logback.core.rolling.helper.Compressor;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.spi.LifeCycle;
+
+/**
+ * Archive compression settings of a rolling policy, configured by the
+ * {@code compression} block of a {@code rolling-policy}.
+ *
+ * <pre>
+ * rolling-policy {
+ *   class = "ch.qos.logback.core.rolling.TimeBasedRollingPolicy"
+ *   file-name-pattern = "logs/app%d{yyyy-MM-dd}.log.gz"
+ *   compression {
+ *     threads = 2
+ *     level = 1
+ *     nice = true
+ *     buffer-size = 64 KiB
+ *   }
+ * }
+ * </pre>
+ *
+ * When started, it replaces the compressor of the (started) policy by one
+ * running asynchronous compressions on a dedicated pool of {@code threads}
+ * daemon threads, so that large archives never compete with the tasks of the
+ * logging context executor. Idle pool threads terminate after a minute, and the
+ * pool is shut down once the appender is stopped.
+ */
+public class ArchiveCompression extends ContextAwareBase implements LifeCycle {
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private RollingPolicyBase policy;
+
+	private int threads = 1;
+
+	private int level = Deflater.DEFAULT_COMPRESSION;
+
+	private boolean nice = true;
+
+	private ConfigMemorySize bufferSize = ConfigMemorySize.ofBytes(64 * 1024);
+
+	private ThreadPoolExecutor executor;
+
+	public void setPolicy(RollingPolicyBase policy) {
+		this.policy = policy;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * The deflate compression level, from 0 to 9, or -1 for the default one.
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	public boolean isNice() {
+		return nice;
+	}
+
+	/**
+	 * Whether compression threads run with the minimal priority.
+	 */
+	public void setNice(boolean nice) {
+		this.nice = nice;
+	}
+
+	public ConfigMemorySize getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(ConfigMemorySize bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	ExecutorService getExecutor() {
+		return executor;
+	}
+
+	@Override
+	public void start() {
+		if (policy == null || !policy.isStarted()) {
+			addError("No started rolling policy to configure compression for.");
+			return;
+		}
+		if (threads <= 0) {
+			addError("Invalid compression threads " + threads + ".");
+			return;
+		}
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			addError("Invalid compression level " + level + ".");
+			return;
+		}
+		if (bufferSize == null || bufferSize.toBytes() <= 0 || bufferSize.toBytes() > Integer.MAX_VALUE) {
+			addError("Invalid compression buffer size " + bufferSize + ".");
+			return;
+		}
+		CompressionMode mode = policy.getCompressionMode();
+		if (mode == CompressionMode.NONE) {
+			addWarn("File name pattern [" + policy.getFileNamePattern()
+					+ "] does not denote a compressed archive. Ignoring compression settings.");
+			return;
+		}
+
+		Field compressorField = findCompressorField(policy.getClass());
+		if (compressorField == null) {
+			addError("Unable to find the compressor of rolling policy " + policy.getClass().getName() + ".");
+			return;
+		}
+
+		executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), new CompressionThreadFactory(nice));
+		executor.allowCoreThreadTimeOut(true);
+
+		PooledCompressor compressor = new PooledCompressor(mode, level, (int) bufferSize.toBytes(), executor);
+		compressor.setContext(context);
+		try {
+			compressorField.set(policy, compressor);
+		} catch (IllegalAccessException e) {
+			addError("Unable to set the compressor of rolling policy " + policy.getClass().getName() + ".", e);
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	private static Field findCompressorField(Class<?> clazz) {
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (field.getType() == Compressor.class) {
+					field.setAccessible(true);
+					return field;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stops the compression pool once its appender is stopped, waiting for the
+	 * pending compressions to complete as long as the rolling policy does.
+	 */
+	@Override
+	public void stop() {
+		final ThreadPoolExecutor toStop = executor;
+		if (toStop == null) {
+			return;
+		}
+		executor = null;
+		toStop.shutdown();
+		try {
+			if (!toStop.awaitTermination(CoreConstants.SECONDS_TO_WAIT_FOR_COMPRESSION_JOBS, TimeUnit.SECONDS)) {
+				addWarn("Timeout while waiting for the archive compressions of rolling policy with pattern ["
+						+ policy.getFileNamePattern() + "] to complete.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			addWarn("Interrupted while waiting for the archive compressions of rolling policy with pattern ["
+					+ policy.getFileNamePattern() + "] to complete.", e);
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		return executor != null;
+	}
+
+	private static final class CompressionThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		private final String prefix = "logback-compression-" + POOL_NUMBER.incrementAndGet() + "-";
+
+		private final boolean nice;
+
+		CompressionThreadFactory(boolean nice) {
+			this.nice = nice;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			if (nice) {
+				thread.setPriority(Thread.MIN_PRIORITY);
+			}
+			return thread;
+		}
+	}
+
+}
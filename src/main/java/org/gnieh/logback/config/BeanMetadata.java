@@ -0,0 +1,149 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import ch.qos.logback.core.Context;
+import ch.qos.logback.core.ContextBase;
+import ch.qos.logback.core.joran.util.beans.BeanDescription;
+import ch.qos.logback.core.joran.util.beans.BeanDescriptionCache;
+import ch.qos.logback.core.status.Status;
+
+/**
+ * The setters and adders of a class, indexed by the configuration keys that
+ * designate them.
+ *
+ * <p>
+ * Metadata are computed once per class for the whole process, and kept in a
+ * {@link ClassValue}, so that they are shared across reloads and contexts
+ * without preventing classes from being unloaded. Instances are immutable,
+ * but for the contexts the statuses of their computation were reported to.
+ */
+final class BeanMetadata {
+
+	private static final ClassValue<BeanMetadata> METADATA = new ClassValue<BeanMetadata>() {
+		@Override
+		protected BeanMetadata computeValue(Class<?> type) {
+			// the cache is only used to access the description factory, whose statuses are kept for the contexts
+			Context statuses = new ContextBase();
+			BeanDescription description = new BeanDescriptionCache(statuses).getBeanDescription(type);
+			return new BeanMetadata(description, statuses.getStatusManager().getCopyOfStatusList());
+		}
+	};
+
+	private final BeanDescription description;
+
+	private final List<Status> statuses;
+
+	private final Set<Context> reportedTo = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+	/**
+	 * The setters by property name and by dashed key (e.g. {@code fileName} and
+	 * {@code file-name}).
+	 */
+	private final Map<String, Method> setters = new HashMap<>();
+
+	/**
+	 * The adders by plural property name and by plural dashed key (e.g.
+	 * {@code appenderRefs} and {@code appender-refs}).
+	 */
+	private final Map<String, Method> adders = new HashMap<>();
+
+	private BeanMetadata(BeanDescription description, List<Status> statuses) {
+		this.description = description;
+		this.statuses = statuses;
+		for (Entry<String, Method> entry : description.getPropertyNameToSetter().entrySet()) {
+			index(setters, entry.getKey(), entry.getValue());
+		}
+		for (Entry<String, Method> entry : description.getPropertyNameToAdder().entrySet()) {
+			index(adders, entry.getKey() + "s", entry.getValue());
+		}
+	}
+
+	private static void index(Map<String, Method> index, String propertyName, Method method) {
+		index.put(propertyName, method);
+		String key = toDashed(propertyName);
+		// only keys mangled back to the property name designate it
+		if (propertyName.equals(NameUtils.toLowerCamelCase(key))) {
+			index.put(key, method);
+		}
+	}
+
+	private static String toDashed(String propertyName) {
+		StringBuilder sb = new StringBuilder(propertyName.length() + 4);
+		for (int i = 0; i < propertyName.length(); i++) {
+			char c = propertyName.charAt(i);
+			if (Character.isUpperCase(c) && i > 0) {
+				sb.append('-').append(Character.toLowerCase(c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param type the class
+	 * @return the metadata of the class
+	 */
+	static BeanMetadata of(Class<?> type) {
+		return METADATA.get(type);
+	}
+
+	/**
+	 * Reports the statuses of the computation of the metadata to a context, the
+	 * first time it uses them.
+	 *
+	 * @param context the configured context, may be {@code null}
+	 */
+	void reportTo(Context context) {
+		if (context != null && !statuses.isEmpty() && reportedTo.add(context)) {
+			for (Status status : statuses) {
+				context.getStatusManager().add(status);
+			}
+		}
+	}
+
+	BeanDescription getDescription() {
+		return description;
+	}
+
+	/**
+	 * @param key the property name or dashed key
+	 * @return the setter, or {@code null} if the key is not indexed
+	 */
+	Method getSetter(String key) {
+		return setters.get(key);
+	}
+
+	/**
+	 * @param key the plural property name or dashed key
+	 * @return the adder, or {@code null} if the key is not indexed
+	 */
+	Method getAdder(String key) {
+		return adders.get(key);
+	}
+
+}
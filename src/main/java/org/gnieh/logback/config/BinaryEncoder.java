@@ -0,0 +1,439 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.encoder.EncoderBase;
+
+/**
+ * Encodes events as compact binary records, to be rendered back to text or
+ * JSON by the {@link BinaryLogDecoder}.
+ *
+ * <p>
+ * Logger names, thread names, MDC keys and message templates are written once
+ * per file, in dictionary records, and events refer to them by identifier.
+ * Message arguments that are strings, integers or booleans are written as is,
+ * and formatted when decoding. The other messages are formatted and written
+ * inline. Every file starts with a header holding the dictionaries known so
+ * far, so that each file can be decoded on its own.
+ *
+ * <pre>
+ * encoder {
+ *   class = "org.gnieh.logback.config.BinaryEncoder"
+ *   // entries per dictionary, further strings are written inline
+ *   dictionary-size = 65536
+ * }
+ * </pre>
+ *
+ * <p>
+ * The encoder holds the dictionaries of the files it writes to, and must not be
+ * shared by several appenders. It is never shared, even with
+ * {@code shared = true}.
+ *
+ * <h3>Format</h3>
+ *
+ * A file is a sequence of records. Each record is its length as an unsigned
+ * variable length integer, a type byte and its payload. Integers are unsigned
+ * variable length ones, unless stated otherwise, and strings are their UTF-8
+ * length followed by their UTF-8 bytes.
+ * <ul>
+ * <li>header records ({@link #HEADER}): the {@link #MAGIC} bytes and the
+ * {@link #VERSION} byte. They start every file, and appear again where a file
+ * was appended to, in which case the dictionaries start over;</li>
+ * <li>dictionary records ({@link #LOGGER}, {@link #THREAD}, {@link #MDC_KEY},
+ * {@link #TEMPLATE}): identifier, string;</li>
+ * <li>event records ({@link #EVENT}): level integer, timestamp, logger,
+ * thread, message template, argument count and arguments, MDC entry count and
+ * entries (key, value string), exception flag byte and stack trace string.
+ * Dictionary references are the identifier plus one, or zero followed by the
+ * inline string. Arguments are a tag byte ({@link #NULL}, {@link #STRING},
+ * {@link #INTEGRAL} followed by a zigzag encoded integer, {@link #TRUE},
+ * {@link #FALSE}) and the value.</li>
+ * </ul>
+ * Events may refer to dictionary entries defined a few records later, as
+ * events are encoded concurrently before being written.
+ */
+public class BinaryEncoder extends EncoderBase<ILoggingEvent> implements ReusableBufferEncoder<ILoggingEvent> {
+
+	static final byte[] MAGIC = { 'L', 'B', 'I', 'N' };
+	static final byte VERSION = 1;
+
+	static final byte HEADER = 0;
+	static final byte LOGGER = 1;
+	static final byte THREAD = 2;
+	static final byte MDC_KEY = 3;
+	static final byte TEMPLATE = 4;
+	static final byte EVENT = 5;
+
+	static final byte NULL = 0;
+	static final byte STRING = 1;
+	static final byte INTEGRAL = 2;
+	static final byte TRUE = 3;
+	static final byte FALSE = 4;
+
+	private int dictionarySize = 65536;
+
+	private Dictionary loggers;
+	private Dictionary threads;
+	private Dictionary mdcKeys;
+	private Dictionary templates;
+
+	private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(() -> new Buffer(this));
+
+	public int getDictionarySize() {
+		return dictionarySize;
+	}
+
+	/**
+	 * The maximum number of entries of each dictionary. Further strings are
+	 * written inline in events.
+	 */
+	public void setDictionarySize(int dictionarySize) {
+		this.dictionarySize = dictionarySize;
+	}
+
+	@Override
+	public void start() {
+		if (dictionarySize < 0) {
+			addError("Invalid dictionary size " + dictionarySize + ".");
+			return;
+		}
+		loggers = new Dictionary(LOGGER, dictionarySize);
+		threads = new Dictionary(THREAD, dictionarySize);
+		mdcKeys = new Dictionary(MDC_KEY, dictionarySize);
+		templates = new Dictionary(TEMPLATE, dictionarySize);
+		super.start();
+	}
+
+	/**
+	 * @return the header record and the dictionaries known so far
+	 */
+	@Override
+	public byte[] headerBytes() {
+		Buffer buffer = new Buffer(this);
+		int start = buffer.startRecord(HEADER);
+		buffer.writeBytes(MAGIC);
+		buffer.writeByte(VERSION);
+		buffer.endRecord(start);
+		loggers.writeDefinitions(buffer);
+		threads.writeDefinitions(buffer);
+		mdcKeys.writeDefinitions(buffer);
+		templates.writeDefinitions(buffer);
+		return Arrays.copyOf(buffer.bytes, buffer.length);
+	}
+
+	@Override
+	public byte[] footerBytes() {
+		return null;
+	}
+
+	@Override
+	public byte[] encode(ILoggingEvent event) {
+		ByteBuffer encoded = encodeToBuffer(event);
+		byte[] bytes = new byte[encoded.remaining()];
+		System.arraycopy(encoded.array(), encoded.arrayOffset() + encoded.position(), bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	@Override
+	public ByteBuffer encodeToBuffer(ILoggingEvent event) {
+		Buffer buffer = buffers.get();
+		buffer.length = 0;
+
+		// dictionary records are written before the event referring to them
+		int logger = loggers.id(event.getLoggerName(), buffer);
+		int thread = threads.id(event.getThreadName(), buffer);
+		Object[] arguments = event.getArgumentArray();
+		boolean direct = isDirect(arguments);
+		// formatted messages are unique to their event, and would fill the dictionary
+		String message = direct ? event.getMessage() : event.getFormattedMessage();
+		int template = direct ? templates.id(message, buffer) : -1;
+		Map<String, String> mdc = event.getMDCPropertyMap();
+		if (mdc != null && !mdc.isEmpty()) {
+			mdc.forEach(buffer.defineMdcKeys);
+		}
+
+		int start = buffer.startRecord(EVENT);
+		buffer.writeVarLong(event.getLevel().toInt());
+		buffer.writeVarLong(event.getTimeStamp());
+		buffer.writeReference(logger, event.getLoggerName());
+		buffer.writeReference(thread, event.getThreadName());
+		buffer.writeReference(template, message);
+		if (direct && arguments != null) {
+			buffer.writeVarLong(arguments.length);
+			for (Object argument : arguments) {
+				buffer.writeArgument(argument);
+			}
+		} else {
+			buffer.writeVarLong(0);
+		}
+		if (mdc == null || mdc.isEmpty()) {
+			buffer.writeVarLong(0);
+		} else {
+			buffer.writeVarLong(mdc.size());
+			mdc.forEach(buffer);
+		}
+		IThrowableProxy throwable = event.getThrowableProxy();
+		if (throwable == null) {
+			buffer.writeByte(0);
+		} else {
+			buffer.writeByte(1);
+			buffer.writeString(ThrowableProxyUtil.asString(throwable));
+		}
+		buffer.endRecord(start);
+
+		return buffer.view();
+	}
+
+	private static boolean isDirect(Object[] arguments) {
+		if (arguments == null) {
+			return true;
+		}
+		for (Object argument : arguments) {
+			if (!(argument == null || argument instanceof String || argument instanceof Integer
+					|| argument instanceof Long || argument instanceof Short || argument instanceof Byte
+					|| argument instanceof Boolean)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The identifiers of the strings of one kind, shared by all threads.
+	 */
+	private static final class Dictionary {
+
+		private final byte kind;
+
+		private final int capacity;
+
+		private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+		private final List<String> values = new ArrayList<>();
+
+		Dictionary(byte kind, int capacity) {
+			this.kind = kind;
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Writes the definition of the value to the buffer if it is new.
+		 *
+		 * @param buffer the buffer, or {@code null} to only look the value up
+		 * @return the identifier of the value, or -1 if the dictionary is full
+		 */
+		int id(String value, Buffer buffer) {
+			if (value == null) {
+				return -1;
+			}
+			Integer id = ids.get(value);
+			if (id != null || buffer == null) {
+				return id == null ? -1 : id;
+			}
+			synchronized (this) {
+				id = ids.get(value);
+				if (id != null) {
+					return id;
+				}
+				if (values.size() >= capacity) {
+					return -1;
+				}
+				int newId = values.size();
+				values.add(value);
+				ids.put(value, newId);
+				buffer.writeDefinition(kind, newId, value);
+				return newId;
+			}
+		}
+
+		synchronized void writeDefinitions(Buffer buffer) {
+			for (int i = 0; i < values.size(); i++) {
+				buffer.writeDefinition(kind, i, values.get(i));
+			}
+		}
+	}
+
+	/**
+	 * The growable buffer of a thread, which writes MDC entries when given to
+	 * {@link Map#forEach(BiConsumer)}.
+	 */
+	private static final class Buffer implements BiConsumer<String, String> {
+
+		private final BinaryEncoder encoder;
+
+		byte[] bytes = new byte[512];
+
+		int length;
+
+		private ByteBuffer view = ByteBuffer.wrap(bytes);
+
+		final BiConsumer<String, String> defineMdcKeys;
+
+		Buffer(BinaryEncoder encoder) {
+			this.encoder = encoder;
+			this.defineMdcKeys = (key, value) -> encoder.mdcKeys.id(key, this);
+		}
+
+		ByteBuffer view() {
+			view.clear();
+			view.limit(length);
+			return view;
+		}
+
+		private void ensure(int size) {
+			if (length + size > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + size));
+				view = ByteBuffer.wrap(bytes);
+			}
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			bytes[length++] = (byte) b;
+		}
+
+		void writeBytes(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, bytes, length, b.length);
+			length += b.length;
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0) {
+				bytes[length++] = (byte) (value & 0x7f | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte) value;
+		}
+
+		void writeString(String s) {
+			// the UTF-8 length is only known once encoded, reserve the common case
+			int start = length;
+			ensure(1 + s.length());
+			length++;
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					ensure(1);
+					bytes[length++] = (byte) c;
+				} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, s.charAt(++i));
+					ensure(4);
+					bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+					bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+					bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+					bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+				} else if (c < 0x800) {
+					ensure(2);
+					bytes[length++] = (byte) (0xc0 | c >> 6);
+					bytes[length++] = (byte) (0x80 | c & 0x3f);
+				} else if (Character.isSurrogate(c)) {
+					ensure(1);
+					bytes[length++] = '?';
+				} else {
+					ensure(3);
+					bytes[length++] = (byte) (0xe0 | c >> 12);
+					bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+					bytes[length++] = (byte) (0x80 | c & 0x3f);
+				}
+			}
+			prefixLength(start);
+		}
+
+		/**
+		 * Writes the length of the bytes following the byte reserved at the given
+		 * offset in it, moving them if the length needs more than one byte.
+		 */
+		private void prefixLength(int start) {
+			int size = length - start - 1;
+			int prefix = 1;
+			while (size >>> 7 * prefix != 0) {
+				prefix++;
+			}
+			if (prefix > 1) {
+				ensure(prefix - 1);
+				System.arraycopy(bytes, start + 1, bytes, start + prefix, size);
+			}
+			int end = start + prefix + size;
+			length = start;
+			writeVarLong(size);
+			length = end;
+		}
+
+		int startRecord(byte type) {
+			int start = length;
+			ensure(2);
+			length++;
+			bytes[length++] = type;
+			return start;
+		}
+
+		void endRecord(int start) {
+			prefixLength(start);
+		}
+
+		void writeDefinition(byte kind, int id, String value) {
+			int start = startRecord(kind);
+			writeVarLong(id);
+			writeString(value);
+			endRecord(start);
+		}
+
+		void writeReference(int id, String value) {
+			writeVarLong(id + 1);
+			if (id < 0) {
+				writeString(value == null ? "" : value);
+			}
+		}
+
+		void writeArgument(Object argument) {
+			if (argument == null) {
+				writeByte(NULL);
+			} else if (argument instanceof String) {
+				writeByte(STRING);
+				writeString((String) argument);
+			} else if (argument instanceof Boolean) {
+				writeByte((Boolean) argument ? TRUE : FALSE);
+			} else {
+				long value = ((Number) argument).longValue();
+				writeByte(INTEGRAL);
+				writeVarLong(value << 1 ^ value >> 63);
+			}
+		}
+
+		@Override
+		public void accept(String key, String value) {
+			// keys were defined before the event record was started
+			writeReference(encoder.mdcKeys.id(key, null), key);
+			writeString(value == null ? "" : value);
+		}
+	}
+
+}
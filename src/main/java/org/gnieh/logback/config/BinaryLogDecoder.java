@@ -0,0 +1,577 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.helpers.MessageFormatter;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * Reads the files written by the {@link BinaryEncoder}, and renders them back
+ * to text or JSON.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * BinaryLogDecoder [--json] [--zone &lt;time-zone&gt;] &lt;file&gt;...
+ * </pre>
+ *
+ * Events are rendered one per line, as text by default, or as JSON objects
+ * named as by the default {@link JsonEncoder} settings. Timestamps are rendered
+ * in the given time zone, the system one by default. A truncated last record,
+ * e.g. if the process was killed while writing it, is ignored.
+ */
+public class BinaryLogDecoder implements Closeable {
+
+	/**
+	 * The number of events waiting for a dictionary entry after which the oldest
+	 * one is rendered without it.
+	 */
+	private static final int MAX_PENDING = 1024;
+
+	private static final DateTimeFormatter TEXT_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+	private static final DateTimeFormatter JSON_FORMATTER = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSxxx");
+
+	private final InputStream in;
+
+	private final List<List<String>> dictionaries = new ArrayList<>();
+
+	/**
+	 * The events read but not returned yet, in order, the first ones possibly
+	 * referring to dictionary entries not read yet.
+	 */
+	private final Deque<RawEvent> pending = new ArrayDeque<>();
+
+	private boolean headerRead;
+
+	private boolean eof;
+
+	public BinaryLogDecoder(InputStream in) {
+		this.in = in;
+		for (int i = 0; i <= BinaryEncoder.TEMPLATE; i++) {
+			dictionaries.add(new ArrayList<>());
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean json = false;
+		ZoneId zone = ZoneId.systemDefault();
+		List<String> files = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("--json".equals(args[i])) {
+					json = true;
+				} else if ("--zone".equals(args[i]) && i + 1 < args.length) {
+					zone = ZoneId.of(args[++i]);
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (DateTimeException e) {
+			System.err.println("Invalid time zone: " + e.getMessage());
+			System.exit(1);
+		}
+		if (files.isEmpty()) {
+			System.err.println(
+					"Usage: " + BinaryLogDecoder.class.getName() + " [--json] [--zone <time-zone>] <file>...");
+			System.exit(1);
+		}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		for (String file : files) {
+			try (BinaryLogDecoder decoder = new BinaryLogDecoder(new BufferedInputStream(new FileInputStream(file)))) {
+				DecodedEvent event;
+				while ((event = decoder.next()) != null) {
+					out.write(json ? event.toJson(zone) : event.toText(zone));
+					out.write('\n');
+				}
+			} catch (IOException e) {
+				out.flush();
+				System.err.println("Unable to decode " + file + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return the next event, or {@code null} at the end of the stream
+	 * @throws IOException if the stream cannot be read, or is not written by the
+	 *                     {@link BinaryEncoder}
+	 */
+	public DecodedEvent next() throws IOException {
+		while (true) {
+			RawEvent head = pending.peekFirst();
+			if (head != null && (head.resolved != null || eof || pending.size() > MAX_PENDING || isDefined(head))) {
+				pending.removeFirst();
+				return head.resolved != null ? head.resolved : resolve(head);
+			}
+			if (eof) {
+				return null;
+			}
+			readRecord();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private void readRecord() throws IOException {
+		long length;
+		byte[] record;
+		try {
+			int first = in.read();
+			if (first < 0) {
+				eof = true;
+				return;
+			}
+			length = readVarLong(first);
+			if (length < 1 || length > Integer.MAX_VALUE) {
+				throw new IOException("Invalid record length " + length + ".");
+			}
+			record = new byte[(int) length];
+			int read = 0;
+			while (read < record.length) {
+				int n = in.read(record, read, record.length - read);
+				if (n < 0) {
+					throw new EOFException();
+				}
+				read += n;
+			}
+		} catch (EOFException e) {
+			// truncated last record
+			eof = true;
+			return;
+		}
+
+		Reader reader = new Reader(record);
+		byte type = record[0];
+		reader.position = 1;
+		if (!headerRead && type != BinaryEncoder.HEADER) {
+			throw new IOException("Not a binary log file.");
+		}
+		switch (type) {
+		case BinaryEncoder.HEADER:
+			readHeader(reader);
+			break;
+		case BinaryEncoder.LOGGER:
+		case BinaryEncoder.THREAD:
+		case BinaryEncoder.MDC_KEY:
+		case BinaryEncoder.TEMPLATE:
+			define(dictionaries.get(type), (int) reader.readVarLong(), reader.readString());
+			break;
+		case BinaryEncoder.EVENT:
+			pending.addLast(readEvent(reader));
+			break;
+		default:
+			// written by a later version, which kept the record structure
+			break;
+		}
+	}
+
+	private void readHeader(Reader reader) throws IOException {
+		for (byte b : BinaryEncoder.MAGIC) {
+			if (reader.readByte() != b) {
+				throw new IOException("Not a binary log file.");
+			}
+		}
+		int version = reader.readByte();
+		if (version > BinaryEncoder.VERSION) {
+			throw new IOException("Unsupported binary log version " + version + ".");
+		}
+		// the file was appended to by another encoder, whose dictionaries start over
+		for (RawEvent event : pending) {
+			if (event.resolved == null) {
+				event.resolved = resolve(event);
+			}
+		}
+		for (List<String> dictionary : dictionaries) {
+			dictionary.clear();
+		}
+		headerRead = true;
+	}
+
+	private static void define(List<String> dictionary, int id, String value) {
+		while (dictionary.size() <= id) {
+			dictionary.add(null);
+		}
+		dictionary.set(id, value);
+	}
+
+	private RawEvent readEvent(Reader reader) throws IOException {
+		RawEvent event = new RawEvent();
+		event.level = (int) reader.readVarLong();
+		event.timestamp = reader.readVarLong();
+		event.logger = reader.readReference();
+		event.thread = reader.readReference();
+		event.template = reader.readReference();
+		int arguments = (int) reader.readVarLong();
+		event.arguments = new Object[arguments];
+		for (int i = 0; i < arguments; i++) {
+			event.arguments[i] = reader.readArgument();
+		}
+		int entries = (int) reader.readVarLong();
+		event.mdc = new Object[entries * 2];
+		for (int i = 0; i < entries * 2; i += 2) {
+			event.mdc[i] = reader.readReference();
+			event.mdc[i + 1] = reader.readString();
+		}
+		if (reader.readByte() != 0) {
+			event.throwable = reader.readString();
+		}
+		return event;
+	}
+
+	private boolean isDefined(RawEvent event) {
+		if (!isDefined(BinaryEncoder.LOGGER, event.logger) || !isDefined(BinaryEncoder.THREAD, event.thread)
+				|| !isDefined(BinaryEncoder.TEMPLATE, event.template)) {
+			return false;
+		}
+		for (int i = 0; i < event.mdc.length; i += 2) {
+			if (!isDefined(BinaryEncoder.MDC_KEY, event.mdc[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isDefined(byte kind, Object reference) {
+		return lookup(kind, reference) != null;
+	}
+
+	/**
+	 * @return the referenced string, {@code null} if not defined
+	 */
+	private String lookup(byte kind, Object reference) {
+		if (reference instanceof String) {
+			return (String) reference;
+		}
+		int id = (Integer) reference;
+		List<String> dictionary = dictionaries.get(kind);
+		return id < dictionary.size() ? dictionary.get(id) : null;
+	}
+
+	private String resolve(byte kind, Object reference) {
+		String value = lookup(kind, reference);
+		return value != null ? value : "#" + reference;
+	}
+
+	private DecodedEvent resolve(RawEvent event) {
+		String template = resolve(BinaryEncoder.TEMPLATE, event.template);
+		String message = event.arguments.length == 0 ? template
+				: MessageFormatter.arrayFormat(template, event.arguments).getMessage();
+		Map<String, String> mdc;
+		if (event.mdc.length == 0) {
+			mdc = Collections.emptyMap();
+		} else {
+			mdc = new LinkedHashMap<>();
+			for (int i = 0; i < event.mdc.length; i += 2) {
+				mdc.put(resolve(BinaryEncoder.MDC_KEY, event.mdc[i]), (String) event.mdc[i + 1]);
+			}
+		}
+		return new DecodedEvent(event.timestamp, Level.toLevel(event.level), resolve(BinaryEncoder.LOGGER, event.logger),
+				resolve(BinaryEncoder.THREAD, event.thread), message, mdc, event.throwable);
+	}
+
+	private long readVarLong(int first) throws IOException {
+		long value = first & 0x7f;
+		int shift = 7;
+		int b = first;
+		while ((b & 0x80) != 0) {
+			b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			if (shift > 63) {
+				throw new IOException("Invalid variable length integer.");
+			}
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		}
+		return value;
+	}
+
+	/**
+	 * An event as read, dictionary references being identifiers, or strings when
+	 * written inline.
+	 */
+	private static final class RawEvent {
+		long timestamp;
+		int level;
+		Object logger;
+		Object thread;
+		Object template;
+		Object[] arguments;
+		/** The keys and values, alternating. */
+		Object[] mdc;
+		String throwable;
+		/** Set when resolved ahead of time, before the dictionaries start over. */
+		DecodedEvent resolved;
+	}
+
+	/**
+	 * Reads the payload of a record.
+	 */
+	private static final class Reader {
+
+		private final byte[] bytes;
+
+		int position;
+
+		Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int readByte() throws IOException {
+			if (position >= bytes.length) {
+				throw new IOException("Invalid record, truncated.");
+			}
+			return bytes[position++];
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				if (shift > 63) {
+					throw new IOException("Invalid variable length integer.");
+				}
+				b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		String readString() throws IOException {
+			long length = readVarLong();
+			if (length < 0 || length > bytes.length - position) {
+				throw new IOException("Invalid record, truncated.");
+			}
+			String value = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+			position += (int) length;
+			return value;
+		}
+
+		/**
+		 * @return the identifier, or the inline string
+		 */
+		Object readReference() throws IOException {
+			long reference = readVarLong();
+			return reference == 0 ? readString() : (Object) (int) (reference - 1);
+		}
+
+		Object readArgument() throws IOException {
+			int tag = readByte();
+			switch (tag) {
+			case BinaryEncoder.NULL:
+				return null;
+			case BinaryEncoder.STRING:
+				return readString();
+			case BinaryEncoder.INTEGRAL:
+				long value = readVarLong();
+				return value >>> 1 ^ -(value & 1);
+			case BinaryEncoder.TRUE:
+				return Boolean.TRUE;
+			case BinaryEncoder.FALSE:
+				return Boolean.FALSE;
+			default:
+				throw new IOException("Invalid argument tag " + tag + ".");
+			}
+		}
+	}
+
+	/**
+	 * An event read from a binary log file, with its message formatted.
+	 */
+	public static final class DecodedEvent {
+
+		private final long timestamp;
+		private final Level level;
+		private final String logger;
+		private final String thread;
+		private final String message;
+		private final Map<String, String> mdc;
+		private final String throwable;
+
+		DecodedEvent(long timestamp, Level level, String logger, String thread, String message,
+				Map<String, String> mdc, String throwable) {
+			this.timestamp = timestamp;
+			this.level = level;
+			this.logger = logger;
+			this.thread = thread;
+			this.message = message;
+			this.mdc = mdc;
+			this.throwable = throwable;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public Level getLevel() {
+			return level;
+		}
+
+		public String getLoggerName() {
+			return logger;
+		}
+
+		public String getThreadName() {
+			return thread;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public Map<String, String> getMdc() {
+			return mdc;
+		}
+
+		/**
+		 * @return the stack trace of the exception, or {@code null} if none
+		 */
+		public String getThrowable() {
+			return throwable;
+		}
+
+		/**
+		 * @return the event as {@code <timestamp> [<thread>] <level> <logger> - <message>},
+		 *         followed by the MDC, if any, and the stack trace on the next lines
+		 */
+		public String toText(ZoneId zone) {
+			StringBuilder sb = new StringBuilder(128);
+			sb.append(TEXT_FORMATTER.format(Instant.ofEpochMilli(timestamp).atZone(zone))).append(" [").append(thread)
+					.append("] ").append(level);
+			for (int i = level.toString().length(); i < 5; i++) {
+				sb.append(' ');
+			}
+			sb.append(' ').append(logger).append(" - ").append(message);
+			if (!mdc.isEmpty()) {
+				sb.append(' ').append(mdc);
+			}
+			if (throwable != null) {
+				sb.append('\n').append(throwable.endsWith("\n") ? throwable.substring(0, throwable.length() - 1)
+						: throwable);
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * @return the event as a JSON object, on one line
+		 */
+		public String toJson(ZoneId zone) {
+			StringBuilder sb = new StringBuilder(160);
+			sb.append("{\"timestamp\":");
+			appendJson(sb, JSON_FORMATTER.format(Instant.ofEpochMilli(timestamp).atZone(zone)));
+			sb.append(",\"level\":");
+			appendJson(sb, level.toString());
+			sb.append(",\"logger\":");
+			appendJson(sb, logger);
+			sb.append(",\"thread\":");
+			appendJson(sb, thread);
+			sb.append(",\"message\":");
+			appendJson(sb, message);
+			if (!mdc.isEmpty()) {
+				sb.append(",\"mdc\":{");
+				boolean first = true;
+				for (Entry<String, String> entry : mdc.entrySet()) {
+					if (!first) {
+						sb.append(',');
+					}
+					appendJson(sb, entry.getKey());
+					sb.append(':');
+					appendJson(sb, entry.getValue());
+					first = false;
+				}
+				sb.append('}');
+			}
+			if (throwable != null) {
+				sb.append(",\"exception\":");
+				appendJson(sb, throwable);
+			}
+			return sb.append('}').toString();
+		}
+
+		@Override
+		public String toString() {
+			return toText(ZoneId.systemDefault());
+		}
+
+		private static void appendJson(StringBuilder sb, String s) {
+			sb.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						sb.append(String.format("\\u%04x", (int) c));
+					} else {
+						sb.append(c);
+					}
+				}
+			}
+			sb.append('"');
+		}
+	}
+
+}
@@ -0,0 +1,375 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigIncludeContext;
+import com.typesafe.config.ConfigIncluder;
+import com.typesafe.config.ConfigIncluderFile;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigParseable;
+
+/**
+ * A config loader following the {@link ConfigFactory#load()} rules (system
+ * properties, then {@code config.resource}, {@code config.file},
+ * {@code config.url} or {@code application.*}, then {@code reference.conf}),
+ * which keeps the parsed objects of files and class path resources across
+ * loads.
+ *
+ * <p>
+ * A source is parsed again only if one of its files changed, or if one of the
+ * sources it includes did. A file is considered changed if its content hash
+ * changed, the hash being only computed when the modification time or the
+ * length changed. The unchanged parsed objects are reused, and only the
+ * resolution is performed again. Sources which cannot be tracked (e.g. URLs, or
+ * sources including URLs) are parsed at every load.
+ *
+ * <p>
+ * It is used when registered as {@link ConfigLoader} service-provider.
+ */
+public class CachingConfigLoader implements ConfigLoader {
+
+	private static final String[] APPLICATION_RESOURCES = { "application.conf", "application.json",
+			"application.properties" };
+
+	private final ClassLoader classLoader;
+
+	private final Map<String, Source> sources = new HashMap<>();
+
+	/**
+	 * The sources being parsed, the innermost one on top.
+	 */
+	private final Deque<Source> parsing = new ArrayDeque<>();
+
+	private int parseCount;
+
+	/**
+	 * Creates a loader using the context class loader of the current thread.
+	 */
+	public CachingConfigLoader() {
+		this(Thread.currentThread().getContextClassLoader());
+	}
+
+	public CachingConfigLoader(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+	}
+
+	@Override
+	public synchronized Config load() throws Exception {
+		ConfigParseOptions options = ConfigParseOptions.defaults().setClassLoader(classLoader)
+				.setIncluder(new CachingIncluder(null));
+
+		Config overrides = ConfigFactory.parseProperties(System.getProperties(),
+				ConfigParseOptions.defaults().setOriginDescription("system properties"));
+		Config reference = overrides.withFallback(resource("reference.conf", options)).resolve();
+
+		return overrides.withFallback(application(options)).withFallback(reference).resolve();
+	}
+
+	/**
+	 * Nothing to invalidate, the sources are checked for changes at every load.
+	 */
+	@Override
+	public void invalidateCaches() {
+	}
+
+	/**
+	 * @return the number of sources parsed so far
+	 */
+	synchronized int getParseCount() {
+		return parseCount;
+	}
+
+	private ConfigObject application(ConfigParseOptions options) throws MalformedURLException {
+		String resource = System.getProperty("config.resource");
+		String file = System.getProperty("config.file");
+		String url = System.getProperty("config.url");
+		int specified = (resource == null ? 0 : 1) + (file == null ? 0 : 1) + (url == null ? 0 : 1);
+		if (specified > 1) {
+			throw new ConfigException.Generic("You set more than one of config.file='" + file + "', config.url='"
+					+ url + "', config.resource='" + resource + "'; don't know which one to use!");
+		}
+
+		ConfigParseOptions required = options.setAllowMissing(false);
+		if (resource != null) {
+			return resource(resource.startsWith("/") ? resource.substring(1) : resource, required);
+		} else if (file != null) {
+			return file(new File(file), required);
+		} else if (url != null) {
+			URL parsed = new URL(url);
+			File local = toFile(parsed);
+			if (local != null) {
+				return file(local, required);
+			}
+			return ConfigFactory.parseURL(parsed, required).root();
+		}
+
+		ConfigObject application = resource(APPLICATION_RESOURCES[0], options);
+		for (int i = 1; i < APPLICATION_RESOURCES.length; i++) {
+			application = application.withFallback(resource(APPLICATION_RESOURCES[i], options));
+		}
+		return application;
+	}
+
+	private ConfigObject file(File file, ConfigParseOptions options) {
+		File absolute = file.getAbsoluteFile();
+		String key = "file:" + absolute.getPath();
+		Source source = sources.get(key);
+		if (source == null || !source.isValid()) {
+			source = parse(key, Collections.singletonList(Snapshot.take(absolute)),
+					() -> ConfigFactory.parseFile(absolute, options).root());
+		}
+		return use(source);
+	}
+
+	private ConfigObject resource(String name, ConfigParseOptions options) {
+		String key = "resource:" + name;
+		List<URL> urls = resourceURLs(name);
+		Source source = sources.get(key);
+		if (source == null || !source.urls.equals(urls) || !source.isValid()) {
+			List<Snapshot> snapshots = new ArrayList<>(urls.size());
+			for (URL url : urls) {
+				File file = toFile(url);
+				// resources in jars do not change while they are loaded
+				if (file != null) {
+					snapshots.add(Snapshot.take(file));
+				}
+			}
+			source = parse(key, snapshots, () -> ConfigFactory.parseResources(classLoader, name, options).root());
+			source.urls = urls;
+		}
+		return use(source);
+	}
+
+	private Source parse(String key, List<Snapshot> snapshots, Parser parser) {
+		Source source = new Source(snapshots);
+		parsing.push(source);
+		try {
+			source.value = parser.parse();
+			parseCount++;
+		} finally {
+			parsing.pop();
+		}
+		sources.put(key, source);
+		return source;
+	}
+
+	/**
+	 * Records the source as a dependency of the one being parsed, if any.
+	 */
+	private ConfigObject use(Source source) {
+		Source including = parsing.peek();
+		if (including != null) {
+			including.dependencies.add(source);
+		}
+		return source.value;
+	}
+
+	private void untracked() {
+		Source including = parsing.peek();
+		if (including != null) {
+			including.cacheable = false;
+		}
+	}
+
+	private List<URL> resourceURLs(String name) {
+		try {
+			return Collections.list(classLoader.getResources(name));
+		} catch (IOException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	private static File toFile(URL url) {
+		if (!"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			return new File(url.toURI());
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private interface Parser {
+		ConfigObject parse();
+	}
+
+	/**
+	 * A parsed file or resource, with the files it was parsed from and the
+	 * sources it includes.
+	 */
+	private static final class Source {
+		final List<Snapshot> snapshots;
+		final List<Source> dependencies = new ArrayList<>();
+		List<URL> urls;
+		boolean cacheable = true;
+		ConfigObject value;
+
+		Source(List<Snapshot> snapshots) {
+			this.snapshots = snapshots;
+		}
+
+		boolean isValid() {
+			if (!cacheable) {
+				return false;
+			}
+			for (Snapshot snapshot : snapshots) {
+				if (snapshot.isChanged()) {
+					return false;
+				}
+			}
+			for (Source dependency : dependencies) {
+				if (!dependency.isValid()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The state of a file when it was parsed.
+	 */
+	private static final class Snapshot {
+		final File file;
+		long lastModified;
+		final long length;
+		final byte[] hash;
+
+		private Snapshot(File file, long lastModified, long length, byte[] hash) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		static Snapshot take(File file) {
+			// the modification time is read first, so that a concurrent change is seen
+			// at the next check
+			long lastModified = file.lastModified();
+			return new Snapshot(file, lastModified, file.length(), hash(file));
+		}
+
+		boolean isChanged() {
+			long currentModified = file.lastModified();
+			long currentLength = file.length();
+			if (currentModified == lastModified && currentLength == length) {
+				return false;
+			}
+			if (currentLength != length) {
+				return true;
+			}
+			byte[] currentHash = hash(file);
+			if (hash == null || currentHash == null || !MessageDigest.isEqual(hash, currentHash)) {
+				return true;
+			}
+			// only touched
+			lastModified = currentModified;
+			return false;
+		}
+
+		private static byte[] hash(File file) {
+			if (!file.isFile()) {
+				return null;
+			}
+			try {
+				return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()));
+			} catch (IOException e) {
+				return null;
+			} catch (NoSuchAlgorithmException e) {
+				// every Java platform is required to support SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Includes files and class path resources through the cache, and delegates
+	 * anything else to the default includer.
+	 */
+	private final class CachingIncluder implements ConfigIncluder, ConfigIncluderFile {
+
+		private final ConfigIncluder fallback;
+
+		CachingIncluder(ConfigIncluder fallback) {
+			this.fallback = fallback;
+		}
+
+		@Override
+		public ConfigIncluder withFallback(ConfigIncluder fallback) {
+			if (this == fallback) {
+				throw new ConfigException.BugOrBroken("trying to create includer cycle");
+			} else if (this.fallback == fallback) {
+				return this;
+			} else if (this.fallback != null) {
+				return new CachingIncluder(this.fallback.withFallback(fallback));
+			} else {
+				return new CachingIncluder(fallback);
+			}
+		}
+
+		@Override
+		public ConfigObject include(ConfigIncludeContext context, String what) {
+			ConfigParseable parseable = context.relativeTo(what);
+			if (parseable != null) {
+				String filename = parseable.origin().filename();
+				String resource = parseable.origin().resource();
+				if (filename != null && new File(filename).isFile()) {
+					return file(new File(filename), context.parseOptions());
+				} else if (resource != null && classLoader.getResource(resource) != null) {
+					return resource(resource, context.parseOptions());
+				}
+			}
+			// e.g. URLs or names without extension
+			untracked();
+			return fallback.include(context, what);
+		}
+
+		@Override
+		public ConfigObject includeFile(ConfigIncludeContext context, File what) {
+			if (what.isFile()) {
+				return file(what, context.parseOptions());
+			}
+			untracked();
+			if (fallback instanceof ConfigIncluderFile) {
+				return ((ConfigIncluderFile) fallback).includeFile(context, what);
+			}
+			return ConfigFactory.parseFile(what, context.parseOptions()).root();
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.CallerData;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.filter.Filter;
+import ch.qos.logback.core.spi.FilterReply;
+
+/**
+ * Applies the caller data policies of the loggers to their events, installed
+ * as the first filter of the configured appenders.
+ *
+ * <p>
+ * Logback computes the caller data of an event lazily, from the stack trace
+ * of a new exception, whenever an appender or a layout asks for it. The filter
+ * runs in the logging thread, before any of them: events whose caller data is
+ * not to be captured get an empty one, which layouts print as {@code ?}, and
+ * the other ones get their call site captured right away with a bounded depth
+ * (see {@link CallerFrames}). Events of loggers without policy, inherited from
+ * their closest configured ancestor, are left untouched.
+ */
+final class CallerDataFilter extends Filter<ILoggingEvent> {
+
+	private final Function<String, CallerDataPolicy> configured;
+
+	private final Map<String, CallerDataPolicy> policies = new ConcurrentHashMap<>();
+
+	private List<String> frameworkPackages;
+
+	private int maxDepth;
+
+	/**
+	 * @param configured the policy configured for a logger name, {@code null} if
+	 *                   none
+	 */
+	CallerDataFilter(Function<String, CallerDataPolicy> configured) {
+		this.configured = configured;
+	}
+
+	@Override
+	public void start() {
+		LoggerContext loggerContext = (LoggerContext) context;
+		frameworkPackages = loggerContext.getFrameworkPackages();
+		maxDepth = loggerContext.getMaxCallerDataDepth();
+		super.start();
+	}
+
+	@Override
+	public FilterReply decide(ILoggingEvent event) {
+		if (!(event instanceof LoggingEvent)) {
+			return FilterReply.NEUTRAL;
+		}
+		LoggingEvent loggingEvent = (LoggingEvent) event;
+		// already done by the previous appender
+		if (loggingEvent.hasCallerData()) {
+			return FilterReply.NEUTRAL;
+		}
+		CallerDataPolicy policy = policyFor(event.getLoggerName());
+		if (policy != CallerDataPolicy.ON_DEMAND) {
+			loggingEvent.setCallerData(policy.capture() ? CallerFrames.capture(frameworkPackages, maxDepth)
+					: CallerData.EMPTY_CALLER_DATA_ARRAY);
+		}
+		return FilterReply.NEUTRAL;
+	}
+
+	/**
+	 * @return the policy of the logger, or of its closest configured ancestor,
+	 *         {@link CallerDataPolicy#ON_DEMAND} if none
+	 */
+	CallerDataPolicy policyFor(String name) {
+		CallerDataPolicy policy = policies.get(name);
+		if (policy == null) {
+			policy = configured.apply(name);
+			if (policy == null) {
+				if (Logger.ROOT_LOGGER_NAME.equals(name)) {
+					policy = CallerDataPolicy.ON_DEMAND;
+				} else {
+					int lastSeparator = Math.max(name.lastIndexOf('.'), name.lastIndexOf('$'));
+					policy = policyFor(lastSeparator > 0 ? name.substring(0, lastSeparator) : Logger.ROOT_LOGGER_NAME);
+				}
+			}
+			policies.put(name, policy);
+		}
+		return policy;
+	}
+
+}
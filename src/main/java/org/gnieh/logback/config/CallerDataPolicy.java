@@ -0,0 +1,93 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * When the caller data (class, method, file and line of the logging call) of
+ * the events of a logger is captured, as configured by the {@code caller-data}
+ * key of the logger: {@code always}, {@code never}, or {@code sampled(rate)}
+ * for a fraction of the events (e.g. {@code sampled(0.01)}).
+ */
+final class CallerDataPolicy {
+
+	static final CallerDataPolicy ALWAYS = new CallerDataPolicy(1);
+
+	static final CallerDataPolicy NEVER = new CallerDataPolicy(0);
+
+	/**
+	 * The policy of loggers without one: the caller data is computed by logback
+	 * if needed.
+	 */
+	static final CallerDataPolicy ON_DEMAND = new CallerDataPolicy(Double.NaN);
+
+	private static final Pattern SAMPLED = Pattern.compile("sampled\\(\\s*([^)]+?)\\s*\\)");
+
+	private final double rate;
+
+	private CallerDataPolicy(double rate) {
+		this.rate = rate;
+	}
+
+	/**
+	 * @param value the configured value
+	 * @return the policy
+	 * @throws IllegalArgumentException if the value is not a valid policy
+	 */
+	static CallerDataPolicy parse(String value) {
+		String policy = value.trim().toLowerCase(Locale.ROOT);
+		if ("always".equals(policy)) {
+			return ALWAYS;
+		} else if ("never".equals(policy)) {
+			return NEVER;
+		}
+		Matcher matcher = SAMPLED.matcher(policy);
+		if (matcher.matches()) {
+			double rate;
+			try {
+				rate = Double.parseDouble(matcher.group(1));
+			} catch (NumberFormatException e) {
+				rate = Double.NaN;
+			}
+			if (rate >= 0 && rate <= 1) {
+				return rate == 0 ? NEVER : rate == 1 ? ALWAYS : new CallerDataPolicy(rate);
+			}
+		}
+		throw new IllegalArgumentException(
+				"Invalid caller data policy " + value + ", expected always, never or sampled(<rate in [0, 1]>)");
+	}
+
+	/**
+	 * @return whether the caller data of the current event is captured
+	 */
+	boolean capture() {
+		return rate >= 1 || rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+	}
+
+	@Override
+	public String toString() {
+		if (this == ON_DEMAND) {
+			return "on-demand";
+		}
+		return this == ALWAYS ? "always" : this == NEVER ? "never" : "sampled(" + rate + ")";
+	}
+
+}
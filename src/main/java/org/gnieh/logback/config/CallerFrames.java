@@ -0,0 +1,47 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.List;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.CallerData;
+
+/**
+ * Captures the call site of a logging call.
+ *
+ * <p>
+ * This is the Java 8 variant, which extracts it from the stack trace of a new
+ * exception, as logback does. The multi-release jar holds a Java 9 variant,
+ * compiled from {@code src/main/java-9}, which walks the needed frames only.
+ */
+final class CallerFrames {
+
+	private CallerFrames() {
+	}
+
+	/**
+	 * @param frameworkPackages the packages of the logging framework, skipped
+	 *                          with the logger class
+	 * @param maxDepth          the maximal number of frames to capture
+	 * @return the frames of the caller of the logger, innermost first
+	 */
+	static StackTraceElement[] capture(List<String> frameworkPackages, int maxDepth) {
+		return CallerData.extract(new Throwable(), Logger.FQCN, maxDepth, frameworkPackages);
+	}
+
+}
@@ -0,0 +1,221 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
+
+import com.typesafe.config.ConfigMemorySize;
+
+import ch.qos.logback.core.FileAppender;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.status.ErrorStatus;
+import ch.qos.logback.core.util.FileUtil;
+
+/**
+ * A file appender writing encoded events to the file through a
+ * {@link java.nio.channels.FileChannel}, either by draining a direct buffer or
+ * by copying them into memory mapped regions of the file.
+ *
+ * <pre>
+ * file {
+ *   class = "org.gnieh.logback.config.ChannelFileAppender"
+ *   file = "logs/app.log"
+ *   memory-mapped = true
+ *   region-size = 8 MiB
+ *   force-interval = 1 second
+ *   ...
+ * }
+ * </pre>
+ *
+ * Prudent mode is not supported. Events encoded by a
+ * {@link ReusableBufferEncoder} are written from its buffer, without copying
+ * them into a new array first.
+ *
+ * @see RollingChannelFileAppender
+ */
+public class ChannelFileAppender<E> extends FileAppender<E> {
+
+	private boolean memoryMapped = false;
+
+	private ConfigMemorySize regionSize = ConfigMemorySize.ofBytes(ChannelOutputStream.DEFAULT_REGION_SIZE);
+
+	private Duration forceInterval;
+
+	private ConfigMemorySize preallocate = ConfigMemorySize.ofBytes(0);
+
+	private ScheduledFuture<?> forceTask;
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Whether bytes are copied into a memory mapped region of the file instead
+	 * of being written through a direct buffer.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	public ConfigMemorySize getRegionSize() {
+		return regionSize;
+	}
+
+	/**
+	 * The size of the direct buffer, or of each mapped region in memory mapped
+	 * mode.
+	 */
+	public void setRegionSize(ConfigMemorySize regionSize) {
+		this.regionSize = regionSize;
+	}
+
+	public Duration getForceInterval() {
+		return forceInterval;
+	}
+
+	/**
+	 * The interval at which written bytes are forced to the storage device. If
+	 * not set, this is left to the operating system.
+	 */
+	public void setForceInterval(Duration forceInterval) {
+		this.forceInterval = forceInterval;
+	}
+
+	public ConfigMemorySize getPreallocate() {
+		return preallocate;
+	}
+
+	/**
+	 * The size to which new files are preallocated, so that the file system
+	 * allocates their blocks upfront. Files are truncated to their written
+	 * length when closed.
+	 */
+	public void setPreallocate(ConfigMemorySize preallocate) {
+		this.preallocate = preallocate;
+	}
+
+	@Override
+	public void start() {
+		if (isPrudent()) {
+			addError("Prudent mode is not supported by appender named [" + name + "].");
+			return;
+		}
+		if (regionSize == null || regionSize.toBytes() <= 0 || regionSize.toBytes() > Integer.MAX_VALUE) {
+			addError("Invalid region size " + regionSize + " for appender named [" + name + "].");
+			return;
+		}
+		if (preallocate == null || preallocate.toBytes() < 0) {
+			addError("Invalid preallocate size " + preallocate + " for appender named [" + name + "].");
+			return;
+		}
+
+		super.start();
+
+		if (isStarted()) {
+			forceTask = ChannelOutputStream.scheduleForce(context, forceInterval, this::force);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (forceTask != null) {
+			forceTask.cancel(false);
+			forceTask = null;
+		}
+		super.stop();
+	}
+
+	@Override
+	public void openFile(String fileName) throws IOException {
+		lock.lock();
+		try {
+			File file = new File(fileName);
+			if (!FileUtil.createMissingParentDirectories(file)) {
+				addError("Failed to create parent directories for [" + file.getAbsolutePath() + "]");
+			}
+			setOutputStream(ChannelOutputStream.open(file, isAppend(), memoryMapped, (int) regionSize.toBytes(),
+					preallocate.toBytes()));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected void subAppend(E event) {
+		if (!(encoder instanceof ReusableBufferEncoder)) {
+			super.subAppend(event);
+			return;
+		}
+		if (!isStarted()) {
+			return;
+		}
+		// encoded synchronously, the event does not need to be prepared for deferred processing
+		ByteBuffer encoded = ((ReusableBufferEncoder<E>) encoder).encodeToBuffer(event);
+		try {
+			writeEncoded(this, lock, encoded);
+		} catch (IOException e) {
+			started = false;
+			addStatus(new ErrorStatus("IO failure in appender", this, e));
+		}
+	}
+
+	/**
+	 * Writes an event encoded by a {@link ReusableBufferEncoder} from its
+	 * buffer, while holding the appender lock.
+	 *
+	 * @param appender the appender
+	 * @param lock     the appender lock
+	 * @param encoded  the encoded event
+	 * @throws IOException if writing fails
+	 */
+	static void writeEncoded(OutputStreamAppender<?> appender, Lock lock, ByteBuffer encoded) throws IOException {
+		lock.lock();
+		try {
+			OutputStream out = appender.getOutputStream();
+			out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+			if (appender.isImmediateFlush()) {
+				out.flush();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forces bytes written so far to the storage device.
+	 */
+	public void force() {
+		lock.lock();
+		try {
+			OutputStream out = getOutputStream();
+			if (isStarted() && out instanceof ChannelOutputStream) {
+				((ChannelOutputStream) out).force();
+			}
+		} catch (IOException e) {
+			addError("Failed to force file [" + getFile() + "] for appender named [" + name + "].", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,387 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import ch.qos.logback.core.Context;
+
+/**
+ * An output stream writing to a file through a {@link FileChannel}, either by
+ * draining a direct buffer into the channel, or by copying bytes into a memory
+ * mapped region of the file.
+ *
+ * <p>
+ * In mapped mode, the file is extended by a region at a time, and truncated
+ * to the written length when the stream is closed, as are files preallocated
+ * upfront. {@link #flush()} is a no-op in mapped mode, as written bytes are
+ * already in the page cache. Each region is unmapped once the next one is
+ * mapped, and the last one before truncating the file. Where the platform
+ * does not allow unmapping a region, it is left to the garbage collector, and
+ * truncating the file fails on the platforms refusing to truncate a mapped
+ * file (e.g. Windows), leaving the unused part of the last region in place.
+ *
+ * <p>
+ * This class is not thread-safe, callers are expected to hold the appender
+ * lock.
+ */
+final class ChannelOutputStream extends OutputStream {
+
+	static final long DEFAULT_REGION_SIZE = 1024 * 1024;
+
+	private static final int ZEROS_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Releases a mapped region right away, {@code null} if the platform does not
+	 * allow it.
+	 */
+	private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+	private final FileChannel channel;
+
+	private final boolean mapped;
+
+	private final int regionSize;
+
+	/**
+	 * Whether the file extends past the written bytes and must be truncated when
+	 * closed.
+	 */
+	private final boolean truncateOnClose;
+
+	private ByteBuffer buffer;
+
+	/**
+	 * The file position at which the current mapped region starts.
+	 */
+	private long regionStart;
+
+	private ChannelOutputStream(FileChannel channel, long start, boolean mapped, int regionSize,
+			boolean truncateOnClose) throws IOException {
+		if (regionSize <= 0) {
+			throw new IllegalArgumentException("Invalid region size " + regionSize);
+		}
+		this.channel = channel;
+		this.mapped = mapped;
+		this.regionSize = regionSize;
+		this.truncateOnClose = mapped || truncateOnClose;
+		if (mapped) {
+			map(start);
+		} else {
+			channel.position(start);
+			buffer = ByteBuffer.allocateDirect(regionSize);
+		}
+	}
+
+	/**
+	 * Opens a file for writing.
+	 *
+	 * <p>
+	 * In append mode, writing starts at the end of the file, which is the end of
+	 * the written bytes as mapped and preallocated files are truncated to their
+	 * written length when closed. After an unclean shutdown, the unused part of
+	 * the last region or of the preallocated file is kept as is, rather than
+	 * guessed from the content, and the new bytes are written after it.
+	 *
+	 * <p>
+	 * As the file is opened on the logging thread at rollover, it is only
+	 * extended (sparsely on most file systems) to the preallocated size. The
+	 * blocks are actually allocated upfront by {@link #prepare(File, boolean, long)}
+	 * when the next file is pre-opened in the background.
+	 *
+	 * @param file        the file to open
+	 * @param append      whether to append to the existing content
+	 * @param mapped      whether to write through memory mapped regions
+	 * @param regionSize  the direct buffer or mapped region size
+	 * @param preallocate the size to preallocate the file to, 0 for none
+	 * @return the output stream
+	 * @throws IOException if the file cannot be opened
+	 */
+	static ChannelOutputStream open(File file, boolean append, boolean mapped, int regionSize, long preallocate)
+			throws IOException {
+		FileChannel channel = openChannel(file, mapped, false);
+		try {
+			final long start;
+			if (append) {
+				start = channel.size();
+			} else {
+				channel.truncate(0);
+				start = 0;
+			}
+			extend(channel, preallocate);
+			return new ChannelOutputStream(channel, start, mapped, regionSize, preallocate > 0);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates (or truncates) and preallocates a file to be written to later
+	 * through {@link #fromPrepared(FileChannel, boolean, int, long)}.
+	 *
+	 * @param file        the file to create
+	 * @param mapped      whether it will be written through memory mapped regions
+	 * @param preallocate the size to preallocate the file to, 0 for none
+	 * @return the open channel
+	 * @throws IOException if the file cannot be created
+	 */
+	static FileChannel prepare(File file, boolean mapped, long preallocate) throws IOException {
+		FileChannel channel = openChannel(file, mapped, true);
+		try {
+			preallocate(channel, preallocate);
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts writing at the beginning of a prepared file.
+	 */
+	static ChannelOutputStream fromPrepared(FileChannel channel, boolean mapped, int regionSize, long preallocate)
+			throws IOException {
+		return new ChannelOutputStream(channel, 0, mapped, regionSize, preallocate > 0);
+	}
+
+	private static FileChannel openChannel(File file, boolean mapped, boolean truncate) throws IOException {
+		List<StandardOpenOption> options = new ArrayList<>(4);
+		options.add(StandardOpenOption.CREATE);
+		options.add(StandardOpenOption.WRITE);
+		if (mapped) {
+			// mapping requires read access to the file
+			options.add(StandardOpenOption.READ);
+		}
+		if (truncate) {
+			options.add(StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		return FileChannel.open(file.toPath(), options.toArray(new StandardOpenOption[options.size()]));
+	}
+
+	/**
+	 * Extends the file up to the given size by writing its last byte, without
+	 * filling the gap.
+	 */
+	private static void extend(FileChannel channel, long size) throws IOException {
+		if (channel.size() >= size) {
+			return;
+		}
+		ByteBuffer zero = ByteBuffer.allocate(1);
+		while (zero.hasRemaining()) {
+			channel.write(zero, size - 1);
+		}
+	}
+
+	/**
+	 * Extends the file with zeros up to the given size, so that the file system
+	 * allocates its blocks upfront.
+	 */
+	private static void preallocate(FileChannel channel, long size) throws IOException {
+		long position = channel.size();
+		if (position >= size) {
+			return;
+		}
+		ByteBuffer zeros = ByteBuffer.allocateDirect(ZEROS_CHUNK_SIZE);
+		while (position < size) {
+			zeros.clear();
+			zeros.limit((int) Math.min(zeros.capacity(), size - position));
+			while (zeros.hasRemaining()) {
+				position += channel.write(zeros, position);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes written to the file so far, including buffered
+	 *         ones
+	 * @throws IOException if the channel is closed
+	 */
+	long size() throws IOException {
+		if (mapped) {
+			return regionStart + buffer.position();
+		}
+		return channel.position() + buffer.position();
+	}
+
+	private void map(long position) throws IOException {
+		MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, position, regionSize);
+		if (buffer != null) {
+			unmap(buffer);
+		}
+		regionStart = position;
+		buffer = region;
+	}
+
+	/**
+	 * Releases a mapped region, which must not be accessed anymore.
+	 */
+	private static void unmap(ByteBuffer region) {
+		if (UNMAPPER != null) {
+			try {
+				UNMAPPER.accept(region);
+			} catch (RuntimeException e) {
+				// left to the garbage collector
+			}
+		}
+	}
+
+	private static Consumer<ByteBuffer> unmapper() {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Object unsafe = theUnsafe.get(null);
+			return region -> invoke(invokeCleaner, unsafe, region);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// not available, try the Java 8 cleaner
+		}
+		try {
+			Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return region -> invoke(clean, invoke(cleaner, region));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			next();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				next();
+			}
+			int chunk = Math.min(len, buffer.remaining());
+			buffer.put(b, off, chunk);
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * Makes room for more bytes, either by draining the buffer or by mapping the
+	 * next region.
+	 */
+	private void next() throws IOException {
+		if (mapped) {
+			map(regionStart + buffer.position());
+		} else {
+			drain();
+		}
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (!mapped) {
+			drain();
+		}
+	}
+
+	/**
+	 * Flushes and forces written bytes to the storage device.
+	 */
+	void force() throws IOException {
+		if (mapped) {
+			if (buffer instanceof MappedByteBuffer) {
+				((MappedByteBuffer) buffer).force();
+			}
+		} else {
+			drain();
+		}
+		channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (mapped) {
+				// the written length is kept, writing again fails on the closed channel
+				regionStart = size();
+				unmap(buffer);
+				buffer = ByteBuffer.allocate(0);
+			} else {
+				drain();
+			}
+			if (truncateOnClose) {
+				// remove the unused part of the last region or of the preallocated file
+				channel.truncate(size());
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Schedules the periodic forcing of an appender file on the context executor.
+	 *
+	 * @param context  the context
+	 * @param interval the force interval, may be null
+	 * @param force    the force task
+	 * @return the scheduled task, or {@code null} if the interval is not positive
+	 */
+	static ScheduledFuture<?> scheduleForce(Context context, Duration interval, Runnable force) {
+		if (interval == null || interval.isZero() || interval.isNegative()) {
+			return null;
+		}
+		long period = interval.toMillis();
+		ScheduledFuture<?> future = context.getScheduledExecutorService().scheduleAtFixedRate(force, period, period,
+				TimeUnit.MILLISECONDS);
+		context.addScheduledFuture(future);
+		return future;
+	}
+
+}
@@ -0,0 +1,294 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.status.StatusListener;
+
+/**
+ * An appender protecting the application from a stalled or failing appender.
+ *
+ * <p>
+ * Appends slower than {@code latency-threshold}, failing, reporting an error
+ * from the appending thread, or stopping the appender (as output stream
+ * appenders do on I/O errors) are failures. After
+ * {@code failure-threshold} consecutive failures, or as soon as no append
+ * completed for {@code latency-threshold} while some are in progress (e.g. on a
+ * hung mount), the circuit opens: events are sent to the {@code fallback}
+ * appender, or dropped if there is none, without waiting for the protected
+ * one.
+ *
+ * <p>
+ * After {@code open-duration}, the circuit is half-open: up to
+ * {@code half-open-trials} events are appended by the protected appender, one
+ * at a time, restarting it first if it stopped. The circuit closes if they all
+ * succeed, and opens again on the first failure. Other events go to the
+ * fallback meanwhile.
+ *
+ * <pre>
+ * guarded {
+ *   class = "org.gnieh.logback.config.CircuitBreakerAppender"
+ *   appender = file
+ *   fallback = console
+ *   latency-threshold = 200 ms
+ *   failure-threshold = 5
+ *   open-duration = 30 seconds
+ *   half-open-trials = 3
+ * }
+ * </pre>
+ *
+ * The protected and fallback appenders are referenced by name, and their
+ * lifecycle is managed by the configuration declaring them.
+ */
+public class CircuitBreakerAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private Appender<ILoggingEvent> appender;
+
+	private Appender<ILoggingEvent> fallback;
+
+	private Duration latencyThreshold = Duration.ofSeconds(1);
+
+	private int failureThreshold = 5;
+
+	private Duration openDuration = Duration.ofSeconds(30);
+
+	private int halfOpenTrials = 3;
+
+	private long latencyThresholdNanos;
+
+	private volatile State state = State.CLOSED;
+
+	/**
+	 * When the circuit opened, in nanoseconds.
+	 */
+	private volatile long openedAt;
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+	/**
+	 * The half-open trials left to succeed.
+	 */
+	private final AtomicInteger trials = new AtomicInteger();
+
+	private final AtomicBoolean trialInProgress = new AtomicBoolean();
+
+	private final AtomicInteger inProgress = new AtomicInteger();
+
+	/**
+	 * When an append last completed, or started while none was in progress.
+	 */
+	private volatile long lastProgress;
+
+	/**
+	 * Whether the protected appender reported an error while appending in the
+	 * current thread, as the statuses are reported by the thread adding them.
+	 */
+	private final ThreadLocal<boolean[]> errorReported = ThreadLocal.withInitial(() -> new boolean[1]);
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final StatusListener errorListener = status -> {
+		if (status.getLevel() == Status.ERROR && status.getOrigin() == appender) {
+			errorReported.get()[0] = true;
+		}
+	};
+
+	public Appender<ILoggingEvent> getAppender() {
+		return appender;
+	}
+
+	public void setAppender(Appender<ILoggingEvent> appender) {
+		this.appender = appender;
+	}
+
+	public Appender<ILoggingEvent> getFallback() {
+		return fallback;
+	}
+
+	public void setFallback(Appender<ILoggingEvent> fallback) {
+		this.fallback = fallback;
+	}
+
+	public Duration getLatencyThreshold() {
+		return latencyThreshold;
+	}
+
+	public void setLatencyThreshold(Duration latencyThreshold) {
+		this.latencyThreshold = latencyThreshold;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public Duration getOpenDuration() {
+		return openDuration;
+	}
+
+	public void setOpenDuration(Duration openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	public int getHalfOpenTrials() {
+		return halfOpenTrials;
+	}
+
+	public void setHalfOpenTrials(int halfOpenTrials) {
+		this.halfOpenTrials = halfOpenTrials;
+	}
+
+	State getState() {
+		return state;
+	}
+
+	@Override
+	public void start() {
+		if (appender == null) {
+			addError("No appender protected by circuit breaker named [" + name + "].");
+			return;
+		}
+		if (latencyThreshold == null || latencyThreshold.isZero() || latencyThreshold.isNegative()) {
+			addError("Invalid latency threshold " + latencyThreshold + " for circuit breaker named [" + name + "].");
+			return;
+		}
+		latencyThresholdNanos = latencyThreshold.toNanos();
+		failureThreshold = Math.max(1, failureThreshold);
+		halfOpenTrials = Math.max(1, halfOpenTrials);
+		context.getStatusManager().add(errorListener);
+		super.start();
+	}
+
+	@Override
+	public void stop() {
+		context.getStatusManager().remove(errorListener);
+		super.stop();
+	}
+
+	@Override
+	protected void append(ILoggingEvent event) {
+		long now = System.nanoTime();
+		State current = state;
+		if (current == State.CLOSED && inProgress.get() > 0 && now - lastProgress > latencyThresholdNanos) {
+			// the appender is stalled, do not wait for it
+			open(current, "no append completed for " + latencyThreshold);
+			current = State.OPEN;
+		}
+		if (current == State.OPEN && now - openedAt >= openDuration.toNanos()) {
+			current = halfOpen();
+		}
+
+		if (current == State.CLOSED) {
+			if (protectedAppend(event)) {
+				consecutiveFailures.set(0);
+			} else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+				open(State.CLOSED, failureThreshold + " consecutive failed or slow appends");
+			}
+		} else if (current == State.HALF_OPEN && trialInProgress.compareAndSet(false, true)) {
+			try {
+				if (!appender.isStarted()) {
+					appender.start();
+				}
+				if (!protectedAppend(event)) {
+					open(State.HALF_OPEN, "a failed trial");
+				} else if (trials.decrementAndGet() == 0) {
+					close();
+				}
+			} finally {
+				trialInProgress.set(false);
+			}
+		} else if (fallback != null) {
+			fallback.doAppend(event);
+		} else {
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * @return whether the event was appended successfully and in time
+	 */
+	private boolean protectedAppend(ILoggingEvent event) {
+		boolean[] reported = errorReported.get();
+		reported[0] = false;
+		long start = System.nanoTime();
+		if (inProgress.getAndIncrement() == 0) {
+			lastProgress = start;
+		}
+		boolean failed = false;
+		try {
+			appender.doAppend(event);
+		} catch (RuntimeException e) {
+			failed = true;
+			addError("Appender named [" + appender.getName() + "] failed to append.", e);
+		} finally {
+			long end = System.nanoTime();
+			lastProgress = end;
+			inProgress.decrementAndGet();
+			failed |= end - start > latencyThresholdNanos;
+		}
+		return !failed && appender.isStarted() && !reported[0];
+	}
+
+	private synchronized void open(State from, String reason) {
+		if (state != from) {
+			return;
+		}
+		openedAt = System.nanoTime();
+		state = State.OPEN;
+		addWarn("Opening circuit breaker named [" + name + "] after " + reason + ". Events are "
+				+ (fallback == null ? "dropped" : "sent to appender named [" + fallback.getName() + "]") + " for "
+				+ openDuration + ".");
+	}
+
+	private synchronized State halfOpen() {
+		if (state == State.OPEN) {
+			trials.set(halfOpenTrials);
+			state = State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	private synchronized void close() {
+		if (state != State.HALF_OPEN) {
+			return;
+		}
+		consecutiveFailures.set(0);
+		state = State.CLOSED;
+		addInfo("Closing circuit breaker named [" + name + "] after " + halfOpenTrials + " successful trials.");
+		long count = dropped.sumThenReset();
+		if (count > 0) {
+			addWarn(String.format("%d logging events were dropped while circuit breaker named [%s] was open.", count,
+					name));
+		}
+	}
+
+}
@@ -3,8 +3,8 @@ package org.gnieh.logback.config;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A lazy cache that supports appender references.
@@ -16,7 +16,7 @@ public class ConfigAppendersCache {
 	/**
 	 * The map of appender names to loaded appender objects
 	 */
-	private final Map<String, Appender<ILoggingEvent>> cache = new HashMap<>();
+	private final Map<String, Appender<ILoggingEvent>> cache = new ConcurrentHashMap<>();
 	/**
 	 * Function that loads the appender from the appender name
 	 */
@@ -38,13 +38,18 @@ public class ConfigAppendersCache {
 	 * @return the loaded appender
 	 */
 	public Appender<ILoggingEvent> getAppender(String name) throws ReflectiveOperationException {
-		if (cache.containsKey(name)) {
-			return cache.get(name);
-		} else {
-			Appender<ILoggingEvent> appender = loader.load(name);
-			cache.put(name, appender);
-			return appender;
+		Appender<ILoggingEvent> appender = cache.get(name);
+		if (appender == null) {
+			// the children of routing appenders look the appenders up from the logging threads
+			synchronized (this) {
+				appender = cache.get(name);
+				if (appender == null) {
+					appender = loader.load(name);
+					cache.put(name, appender);
+				}
+			}
 		}
+		return appender;
 	}
 
 	/**
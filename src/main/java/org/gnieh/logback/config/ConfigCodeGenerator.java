@@ -0,0 +1,632 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigMemorySize;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueType;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.Configurator;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.rolling.RollingPolicy;
+import ch.qos.logback.core.spi.ContextAware;
+import ch.qos.logback.core.spi.LifeCycle;
+
+/**
+ * Generates the Java source of a {@link Configurator} building the same
+ * appenders and loggers as {@link ConfigConfigurator} would for a
+ * configuration, with plain constructor and setter calls.
+ *
+ * <p>
+ * Registering the generated class as the {@link Configurator} service instead
+ * of {@link ConfigConfigurator} removes both the configuration loading and the
+ * reflection from the application startup. Classes and setters are resolved
+ * when generating, and must be public. Variables (e.g. <code>${HOSTNAME}</code>)
+ * are still substituted when configuring.
+ *
+ * <p>
+ * Settings which need the configurator at runtime (routing appender templates,
+ * {@code flush-interval}, {@code metrics}, rolling policy {@code compression},
+ * logger patterns and {@code caller-data}, {@code init-mode},
+ * {@code jmx-configurator}, {@code executor}) are rejected, and {@code scan-period} is ignored as the
+ * generated configuration cannot be reloaded.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * ConfigCodeGenerator &lt;source-directory&gt; &lt;class-name&gt; [&lt;resource-directory&gt;]
+ * </pre>
+ *
+ * The configuration is loaded as by {@link ConfigConfigurator}. When a resource
+ * directory is given, the service file registering the generated class is
+ * written into it.
+ */
+public class ConfigCodeGenerator {
+
+	private static final String INDENT = "        ";
+
+	private final List<String> warnings = new ArrayList<>();
+
+	private Config appenderConfigs;
+
+	private final Map<String, String> appenderVariables = new HashMap<>();
+
+	private final Set<String> generating = new LinkedHashSet<>();
+
+	/**
+	 * The variables holding shared encoders and layouts, by settings fingerprint.
+	 */
+	private final Map<String, String> sharedVariables = new HashMap<>();
+
+	private final Set<String> startedVariables = new HashSet<>();
+
+	/**
+	 * The body of the generated method.
+	 */
+	private StringBuilder output;
+
+	/**
+	 * Where the statements are currently emitted.
+	 */
+	private StringBuilder body;
+
+	private int variables;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: " + ConfigCodeGenerator.class.getName()
+					+ " <source-directory> <class-name> [<resource-directory>]");
+			System.exit(1);
+		}
+
+		File sourceDirectory = new File(args[0]);
+		String className = args[1];
+
+		Config config = ConfigConfigurator.discoverLoader().load();
+		ConfigCodeGenerator generator = new ConfigCodeGenerator();
+		String source;
+		try {
+			source = generator.generate(config, className);
+		} catch (ConfigException | ReflectiveOperationException e) {
+			System.err.println("Unable to generate the logging configuration: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		for (String warning : generator.getWarnings()) {
+			System.err.println("WARN: " + warning);
+		}
+
+		File sourceFile = new File(sourceDirectory, className.replace('.', File.separatorChar) + ".java");
+		write(sourceFile, source);
+		System.out.println("Generated " + sourceFile);
+
+		if (args.length == 3) {
+			File serviceFile = new File(args[2], "META-INF/services/" + Configurator.class.getName());
+			write(serviceFile, className + "\n");
+			System.out.println("Generated " + serviceFile);
+		}
+	}
+
+	private static void write(File file, String content) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the warnings reported by the last generation
+	 */
+	public List<String> getWarnings() {
+		return warnings;
+	}
+
+	/**
+	 * Generates the source of the configurator class.
+	 *
+	 * @param config    the TS-config
+	 * @param className the fully qualified name of the class to generate
+	 * @return the Java source
+	 * @throws ConfigException              if the configuration is invalid or
+	 *                                      not supported by the generator
+	 * @throws ReflectiveOperationException if a class or setter cannot be found
+	 */
+	public String generate(Config config, String className) throws ReflectiveOperationException {
+		warnings.clear();
+		appenderVariables.clear();
+		generating.clear();
+		sharedVariables.clear();
+		startedVariables.clear();
+		variables = 0;
+		output = new StringBuilder();
+		body = output;
+
+		final Config logbackConfig = config.getConfig(config.getString("logback-root"));
+		for (String key : new String[] { "init-mode", "background-init", "jmx-configurator", "executor" }) {
+			if (logbackConfig.hasPath(key)) {
+				throw unsupported(logbackConfig.getValue(key), key);
+			}
+		}
+		if (logbackConfig.hasPath("scan-period")) {
+			warnings.add("The generated configuration cannot be reloaded. Ignoring scan-period.");
+		}
+
+		appenderConfigs = logbackConfig.getConfig("appenders");
+		for (Entry<String, ConfigValue> entry : appenderConfigs.root().entrySet()) {
+			if (entry.getValue() instanceof ConfigObject) {
+				appender(entry.getKey());
+			} else {
+				warnings.add(String.format("Invalid appender configuration %s. Ignoring it.", entry.getKey()));
+			}
+		}
+
+		if (logbackConfig.hasPath("root")) {
+			logger(Logger.ROOT_LOGGER_NAME, logbackConfig.getConfig("root"), true);
+		}
+		Config loggerConfigs = logbackConfig.getConfig("loggers");
+		for (Entry<String, ConfigValue> entry : loggerConfigs.root().entrySet()) {
+			if (LoggerRules.isPattern(entry.getKey())) {
+				throw unsupported(entry.getValue(), "loggers." + quote(entry.getKey()));
+			} else if (entry.getValue() instanceof ConfigObject) {
+				logger(entry.getKey(), loggerConfigs.getConfig(quote(entry.getKey())), false);
+			} else {
+				warnings.add(String.format("Invalid logger configuration %s. Ignoring it.", entry.getKey()));
+			}
+		}
+
+		int lastDot = className.lastIndexOf('.');
+		StringBuilder source = new StringBuilder();
+		if (lastDot > 0) {
+			source.append("package ").append(className, 0, lastDot).append(";\n\n");
+		}
+		source.append("/**\n");
+		source.append(" * Generated by ").append(ConfigCodeGenerator.class.getName()).append(", do not edit.\n");
+		source.append(" */\n");
+		source.append("public final class ").append(className.substring(lastDot + 1));
+		source.append(" extends ch.qos.logback.core.spi.ContextAwareBase implements ");
+		source.append(Configurator.class.getName()).append(" {\n\n");
+		source.append("    @Override\n");
+		source.append("    public void configure(ch.qos.logback.classic.LoggerContext context) {\n");
+		source.append("        setContext(context);\n");
+		source.append(output);
+		source.append("    }\n\n");
+		source.append("    private String subst(String value) {\n");
+		source.append("        try {\n");
+		source.append("            return ch.qos.logback.core.subst.NodeToStringTransformer.substituteVariable(value, ");
+		source.append("context, null);\n");
+		source.append("        } catch (ch.qos.logback.core.spi.ScanException e) {\n");
+		source.append("            addError(\"Unable to substitute variables in \" + value, e);\n");
+		source.append("            return value;\n");
+		source.append("        }\n");
+		source.append("    }\n\n");
+		source.append("}\n");
+		return source.toString();
+	}
+
+	/**
+	 * Emits the construction of the named appender, and of the appenders it
+	 * refers to, if not already done.
+	 *
+	 * @return the variable holding the appender
+	 */
+	private String appender(String name) throws ReflectiveOperationException {
+		String variable = appenderVariables.get(name);
+		if (variable != null) {
+			return variable;
+		}
+		if (!appenderConfigs.hasPath(quote(name))) {
+			throw new ConfigException.BadValue(appenderConfigs.origin(), name, "Unknown appender " + name);
+		}
+		if (!generating.add(name)) {
+			throw new ConfigException.BadValue(appenderConfigs.origin(), name, "Cyclic appender references " + generating);
+		}
+
+		Config config = appenderConfigs.getConfig(quote(name));
+		Class<?> clazz = Class.forName(config.getString("class"));
+		if (RoutingAppender.class.isAssignableFrom(clazz) && config.hasPath("appender")) {
+			throw unsupported(config.getValue("appender"), name + ".appender");
+		}
+		for (String key : new String[] { "flush-interval", "metrics" }) {
+			if (config.hasPath(key)) {
+				throw unsupported(config.getValue(key), name + "." + key);
+			}
+		}
+
+		// referenced appenders are emitted before this one
+		StringBuilder outer = body;
+		body = new StringBuilder();
+		List<String> children = new ArrayList<>();
+		variable = object(clazz, config, children, name);
+		body.append(INDENT).append(variable).append(".setName(").append(literal(name)).append(");\n");
+		for (String child : children) {
+			// shared components are started by the first appender using them
+			if (startedVariables.add(child)) {
+				body.append(INDENT).append(child).append(".start();\n");
+			}
+		}
+		body.append(INDENT).append(variable).append(".start();\n\n");
+		output.append(body);
+		body = outer;
+
+		generating.remove(name);
+		appenderVariables.put(name, variable);
+		return variable;
+	}
+
+	/**
+	 * Emits the construction of an object and the assignment of its properties,
+	 * following {@link ConfigConfigurator} rules.
+	 *
+	 * @param children if not null, filled with the variables of the child objects
+	 *                 to start before the parent
+	 * @return the variable holding the object
+	 */
+	private String object(Class<?> clazz, Config config, List<String> children, String path)
+			throws ReflectiveOperationException {
+		checkPublic(clazz, path);
+		clazz.getConstructor();
+		String variable = "object" + variables++;
+		String type = clazz.getCanonicalName();
+		body.append(INDENT).append(type).append(' ').append(variable).append(" = new ").append(type).append("();\n");
+		if (ContextAware.class.isAssignableFrom(clazz)) {
+			body.append(INDENT).append(variable).append(".setContext(context);\n");
+		}
+
+		BeanMetadata metadata = BeanMetadata.of(clazz);
+
+		// file property (if any) must be set before any other property for appenders
+		if (config.hasPath("file")) {
+			property(metadata, variable, "file", config, path);
+		}
+
+		for (Entry<String, ConfigValue> entry : config.withoutPath("class").withoutPath("file").root().entrySet()) {
+			String key = entry.getKey();
+			ConfigValue value = entry.getValue();
+			String subPath = path + "." + key;
+			if (value.valueType() == ConfigValueType.OBJECT && config.getConfig(quote(key)).hasPath("class")) {
+				Config subConfig = config.getConfig(quote(key));
+				Class<?> childClass = Class.forName(subConfig.getString("class"));
+				if (subConfig.hasPath("compression")) {
+					throw unsupported(subConfig.getValue("compression"), subPath + ".compression");
+				}
+				if (RollingPolicy.class.isAssignableFrom(childClass)) {
+					// next file settings belong to the appender
+					for (String nextFileKey : new String[] { "preopen-next-file", "preallocate" }) {
+						if (subConfig.hasPath(nextFileKey)) {
+							if (RollingChannelFileAppender.class.isAssignableFrom(clazz)) {
+								property(metadata, variable, nextFileKey, subConfig, subPath);
+							} else {
+								warnings.add(String.format("Property %s of %s is only supported by %s. Ignoring it.",
+										nextFileKey, subPath, RollingChannelFileAppender.class.getName()));
+							}
+							subConfig = subConfig.withoutPath(nextFileKey);
+						}
+					}
+				}
+				String child;
+				if (SharedComponents.isShared(childClass, subConfig)) {
+					String fingerprint = SharedComponents.fingerprint(subConfig, null);
+					child = sharedVariables.get(fingerprint);
+					if (child == null) {
+						child = object(childClass, subConfig.withoutPath(SharedComponents.SHARED_KEY), null, subPath);
+						sharedVariables.put(fingerprint, child);
+					}
+				} else {
+					if (subConfig.hasPath(SharedComponents.SHARED_KEY)) {
+						if (!SharedComponents.isShareable(childClass)) {
+							warnings.add(String.format("Property %s of %s is only supported by encoders and layouts. Ignoring it.",
+									SharedComponents.SHARED_KEY, subPath));
+						}
+						subConfig = subConfig.withoutPath(SharedComponents.SHARED_KEY);
+					}
+					child = object(childClass, subConfig, null, subPath);
+				}
+				Method setter = setter(metadata, key);
+				if (setter == null) {
+					warnings.add("No setter for property [" + subPath + "] in " + clazz.getName() + ".");
+					continue;
+				}
+				checkPublic(setter, subPath);
+				body.append(INDENT).append(variable).append('.').append(setter.getName()).append('(').append(child)
+						.append(");\n");
+				if (children != null) {
+					if (RollingPolicy.class.isAssignableFrom(childClass)) {
+						body.append(INDENT).append(child).append(".setParent(").append(variable).append(");\n");
+					}
+					if (LifeCycle.class.isAssignableFrom(childClass)) {
+						children.add(child);
+					}
+				}
+			} else {
+				property(metadata, variable, key, config, subPath);
+			}
+		}
+
+		return variable;
+	}
+
+	private void property(BeanMetadata metadata, String variable, String key, Config config, String path)
+			throws ReflectiveOperationException {
+		if (config.getValue(quote(key)).valueType() == ConfigValueType.LIST) {
+			Method adder = metadata.getAdder(key);
+			if (adder == null) {
+				adder = metadata.getDescription().getAdder(singularize(NameUtils.toLowerCamelCase(key)));
+			}
+			if (adder == null) {
+				warnings.add("No adder for property [" + path + "].");
+				return;
+			}
+			checkPublic(adder, path);
+			Class<?> type = adder.getParameterTypes()[0];
+			for (ConfigValue element : config.getList(quote(key))) {
+				String argument;
+				if (Appender.class.isAssignableFrom(type)) {
+					argument = appender((String) element.unwrapped());
+				} else {
+					argument = value(type, element.atKey("value"), "value", path);
+				}
+				body.append(INDENT).append(variable).append('.').append(adder.getName()).append('(').append(argument)
+						.append(");\n");
+			}
+		} else {
+			Method setter = setter(metadata, key);
+			if (setter == null) {
+				warnings.add("No setter for property [" + path + "].");
+				return;
+			}
+			checkPublic(setter, path);
+			Class<?> type = setter.getParameterTypes()[0];
+			String argument;
+			if (Appender.class.isAssignableFrom(type)) {
+				argument = appender(config.getString(quote(key)));
+			} else {
+				argument = value(type, config, quote(key), path);
+			}
+			body.append(INDENT).append(variable).append('.').append(setter.getName()).append('(').append(argument)
+					.append(");\n");
+		}
+	}
+
+	/**
+	 * @return the Java expression of the value converted to the type, as
+	 *         {@link ConfigPropertySetter} does
+	 */
+	private String value(Class<?> type, Config config, String key, String path) throws ReflectiveOperationException {
+		if (String.class.isAssignableFrom(type)) {
+			return string(config.getString(key));
+		} else if (Integer.TYPE.isAssignableFrom(type)) {
+			return Integer.toString(config.getInt(key));
+		} else if (Long.TYPE.isAssignableFrom(type)) {
+			return config.getLong(key) + "L";
+		} else if (Float.TYPE.isAssignableFrom(type)) {
+			return floatLiteral((float) config.getDouble(key));
+		} else if (Double.TYPE.isAssignableFrom(type)) {
+			return doubleLiteral(config.getDouble(key));
+		} else if (Boolean.TYPE.isAssignableFrom(type)) {
+			return Boolean.toString(config.getBoolean(key));
+		} else if (Config.class.isAssignableFrom(type)) {
+			String rendered = config.getConfig(key).root().render(ConfigRenderOptions.concise());
+			return "com.typesafe.config.ConfigFactory.parseString(" + literal(rendered) + ")";
+		} else if (Duration.class.isAssignableFrom(type)) {
+			return "java.time.Duration.ofNanos(" + config.getDuration(key).toNanos() + "L)";
+		} else if (ConfigMemorySize.class.isAssignableFrom(type)) {
+			return "com.typesafe.config.ConfigMemorySize.ofBytes(" + config.getBytes(key) + "L)";
+		}
+
+		checkPublic(type, path);
+		String raw = config.getString(key);
+		String argument = string(raw);
+		if (type.isEnum()) {
+			if (!raw.contains("${")) {
+				for (Object constant : type.getEnumConstants()) {
+					if (((Enum<?>) constant).name().equals(raw)) {
+						return type.getCanonicalName() + "." + raw;
+					}
+				}
+				throw new ConfigException.BadValue(config.origin(), path, "Unknown " + type.getName() + " " + raw);
+			}
+			return type.getCanonicalName() + ".valueOf(" + argument + ")";
+		} else if (followsTheValueOfConvention(type)) {
+			return type.getCanonicalName() + ".valueOf(" + argument + ")";
+		} else if (Charset.class.isAssignableFrom(type)) {
+			return "java.nio.charset.Charset.forName(" + argument + ")";
+		}
+		throw new ConfigException.BadValue(config.origin(), path, "Conversion to type [" + type + "] not supported");
+	}
+
+	private void logger(String name, Config config, boolean isRoot) throws ReflectiveOperationException {
+		if (config.hasPath("caller-data")) {
+			throw unsupported(config.getValue("caller-data"),
+					(isRoot ? "root" : "loggers." + quote(name)) + ".caller-data");
+		}
+
+		String variable = "logger" + variables++;
+		body.append(INDENT).append(Logger.class.getName()).append(' ').append(variable)
+				.append(" = context.getLogger(").append(literal(name)).append(");\n");
+
+		if (config.hasPathOrNull("level") && !config.getIsNull("level")) {
+			String levelName = config.getString("level");
+			if (levelName.equalsIgnoreCase("NULL") || levelName.equalsIgnoreCase("INHERITED")) {
+				if (isRoot) {
+					warnings.add(String.format("Log level %s is not authorized for ROOT logger.",
+							levelName.toUpperCase()));
+				}
+			} else {
+				body.append(INDENT).append(variable).append(".setLevel(").append(Level.class.getName()).append('.')
+						.append(Level.toLevel(levelName).levelStr).append(");\n");
+			}
+		}
+
+		if (config.hasPath("additivity")) {
+			body.append(INDENT).append(variable).append(".setAdditive(").append(config.getBoolean("additivity"))
+					.append(");\n");
+		}
+
+		if (config.hasPath("appenders")) {
+			for (String appenderRef : config.getStringList("appenders")) {
+				if (appenderVariables.containsKey(appenderRef)) {
+					body.append(INDENT).append(variable).append(".addAppender(").append(appenderVariables.get(appenderRef))
+							.append(");\n");
+				} else {
+					warnings.add(String.format("Unknown appender %s. Ignoring it.", appenderRef));
+				}
+			}
+		}
+		body.append('\n');
+	}
+
+	private static Method setter(BeanMetadata metadata, String key) {
+		Method setter = metadata.getSetter(key);
+		if (setter == null) {
+			setter = metadata.getDescription().getSetter(NameUtils.toLowerCamelCase(key));
+		}
+		return setter;
+	}
+
+	private static boolean followsTheValueOfConvention(Class<?> type) {
+		try {
+			return Modifier.isStatic(type.getMethod(CoreConstants.VALUE_OF, String.class).getModifiers());
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static String singularize(String s) {
+		return s.endsWith("s") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	private static String quote(String key) {
+		return "\"" + key + "\"";
+	}
+
+	private static ConfigException unsupported(ConfigValue value, String path) {
+		return new ConfigException.BadValue(value.origin(), path,
+				"Not supported by the code generator, the configuration must be performed at runtime");
+	}
+
+	private static void checkPublic(Class<?> clazz, String path) {
+		if (!Modifier.isPublic(clazz.getModifiers()) || clazz.getCanonicalName() == null) {
+			throw new ConfigException.Generic(path + ": class " + clazz.getName() + " is not public");
+		}
+	}
+
+	private static void checkPublic(Method method, String path) {
+		if (!Modifier.isPublic(method.getModifiers())) {
+			throw new ConfigException.Generic(path + ": method " + method + " is not public");
+		}
+	}
+
+	/**
+	 * @return the expression of the string, with variables substituted at
+	 *         runtime if it contains any
+	 */
+	private static String string(String value) {
+		if (value.contains("${")) {
+			return "subst(" + literal(value) + ")";
+		}
+		return literal(value);
+	}
+
+	/**
+	 * @return the Java expression of the value, the constants standing for the
+	 *         values without literal
+	 */
+	private static String floatLiteral(float value) {
+		if (Float.isNaN(value)) {
+			return "Float.NaN";
+		} else if (value == Float.POSITIVE_INFINITY) {
+			return "Float.POSITIVE_INFINITY";
+		} else if (value == Float.NEGATIVE_INFINITY) {
+			return "Float.NEGATIVE_INFINITY";
+		}
+		return value + "f";
+	}
+
+	/**
+	 * @return the Java expression of the value, the constants standing for the
+	 *         values without literal
+	 */
+	private static String doubleLiteral(double value) {
+		if (Double.isNaN(value)) {
+			return "Double.NaN";
+		} else if (value == Double.POSITIVE_INFINITY) {
+			return "Double.POSITIVE_INFINITY";
+		} else if (value == Double.NEGATIVE_INFINITY) {
+			return "Double.NEGATIVE_INFINITY";
+		}
+		return Double.toString(value);
+	}
+
+	private static String literal(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c > 0x7e) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+}
@@ -18,21 +18,37 @@ package org.gnieh.logback.config;
 
 import java.io.File;
 import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigList;
 import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigRenderOptions;
 import com.typesafe.config.ConfigValue;
 import com.typesafe.config.ConfigValueType;
 
@@ -43,15 +59,24 @@ import ch.qos.logback.classic.jmx.JMXConfigurator;
 import ch.qos.logback.classic.jmx.MBeanUtil;
 import ch.qos.logback.classic.spi.Configurator;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggerContextListener;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.CoreConstants;
 import ch.qos.logback.core.FileAppender;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.filter.Filter;
 import ch.qos.logback.core.joran.spi.ConfigurationWatchList;
-import ch.qos.logback.core.joran.util.beans.BeanDescriptionCache;
 import ch.qos.logback.core.joran.util.ConfigurationWatchListUtil;
+import ch.qos.logback.core.rolling.RollingFileAppender;
 import ch.qos.logback.core.rolling.RollingPolicy;
+import ch.qos.logback.core.rolling.RollingPolicyBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.ContextAware;
 import ch.qos.logback.core.spi.ContextAwareBase;
 import ch.qos.logback.core.spi.LifeCycle;
+import ch.qos.logback.core.spi.PropertyContainer;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.status.StatusListener;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -64,32 +89,378 @@ import javax.management.ObjectName;
  */
 public class ConfigConfigurator extends ContextAwareBase implements Configurator {
 
+    /**
+     * Rolling policy keys configuring the next file of a {@link RollingChannelFileAppender}.
+     */
+    private static final String[] NEXT_FILE_KEYS = { "preopen-next-file", "preallocate" };
+
+    /**
+     * How long the previous appenders stay attached after the switch to a new configuration, in milliseconds.
+     */
+    private static final long SWITCH_GRACE_PERIOD = 100;
+
+    /**
+     * The context object holding the settings of the installed executor, absent for the one created by logback.
+     */
+    static final String EXECUTOR_KEY = "org.gnieh.logback.config.executor";
+
+    /**
+     * The appenders of the running configuration, stopped once replaced.
+     */
+    private List<Appender<ILoggingEvent>> configuredAppenders = new ArrayList<>();
+
+    /**
+     * The archive compressions of the appenders built by this configurator, stopped along with them. Guarded by itself.
+     */
+    private final Map<Appender<ILoggingEvent>, List<ArchiveCompression>> compressions = new IdentityHashMap<>();
+
+    /**
+     * Stops what outlives the appenders once the context is reset or stopped.
+     */
+    private final ContextListener contextListener = new ContextListener();
+
+    /**
+     * The filter assigning the events to the appenders of the running configuration.
+     */
+    private GenerationFilter generation;
+
+    /**
+     * The logger rules of the running configuration, installed as a turbo filter, if any.
+     */
+    private LoggerRules loggerRules;
+
+    /**
+     * The fingerprint of the logback subtree of the running configuration, written by the thread scanning for changes.
+     */
+    private volatile byte[] fingerprint;
+
+    /**
+     * The config loader, discovered once and kept across reloads.
+     */
+    private ConfigLoader loader;
+
+    /**
+     * Whether the loaded config and the caches are shared with the other contexts of the process.
+     */
+    private final boolean multiContext = SharedConfiguration.isEnabled();
+
+    /**
+     * The context name under which the metrics of routing children are published.
+     */
+    private volatile String metricsContextName;
+
+    /**
+     * The config last loaded.
+     */
+    private Config loadedConfig;
+
+    /**
+     * The listener given to the loader to reload the configuration, if any.
+     */
+    private volatile Runnable watchListener;
+
+    /**
+     * The executor replaced by the configuration being built, and its settings, kept until the configuration is applied.
+     */
+    private ScheduledExecutorService replacedExecutor;
+
+    private Object replacedExecutorSettings;
+
+    private ScheduledFuture<?> changeTask;
+
+    private long changeTaskPeriod;
+
     @Override
     public void configure(LoggerContext loggerContext) {
 
         this.setContext(loggerContext);
+        if (!loggerContext.getCopyOfListenerList().contains(contextListener)) {
+            loggerContext.addListener(contextListener);
+        }
 
-        BeanDescriptionCache beanCache = new BeanDescriptionCache(loggerContext);
+        // the loader is watched once the configuration is applied, so that no reload competes with it
+        Config config = loadConfig();
+        if (config == null) {
+            watchLoader(loggerContext);
+            return;
+        }
+        if (!lint(config)) {
+            addError("Logging configuration rejected by the linter in strict mode.");
+            watchLoader(loggerContext);
+            return;
+        }
 
+        final StartupBuffer buffer = createStartupBuffer(loggerContext, config);
+        if (buffer != null) {
+            buffer.start();
+            if (buffer.isStarted()) {
+                configureInBackground(loggerContext, config, buffer);
+                return;
+            }
+        }
 
-        ConfigLoader loader = getLoader();
-        Config config;
+        synchronized (this) {
+            final LoggingConfiguration configuration = buildConfiguration(loggerContext, config);
+            applyConfiguration(loggerContext, configuration);
+            finishConfiguration(loggerContext, config, configuration.logbackConfig);
+            fingerprint = fingerprint(configuration.logbackConfig);
+        }
+        watchLoader(loggerContext);
+    }
+
+    /**
+     * Create the buffer holding the events until the configuration is applied, if {@code init-mode = background}.
+     *
+     * @param loggerContext the logger context
+     * @param config        the TS-config
+     * @return the buffer, or {@code null} if the configuration must be performed in the foreground
+     */
+    private StartupBuffer createStartupBuffer(LoggerContext loggerContext, Config config) {
+        final Config logbackConfig;
+        final String initMode;
+        try {
+            logbackConfig = config.getConfig(config.getString("logback-root"));
+            if (!logbackConfig.hasPath("init-mode")) {
+                return null;
+            }
+            initMode = logbackConfig.getString("init-mode");
+        } catch (ConfigException e) {
+            // reported when building the configuration
+            return null;
+        }
+        if (initMode.equalsIgnoreCase("foreground")) {
+            return null;
+        } else if (!initMode.equalsIgnoreCase("background")) {
+            addWarn(String.format("Unknown init-mode %s. Configuring in the foreground.", initMode));
+            return null;
+        }
+
+        final StartupBuffer buffer = new StartupBuffer();
+        buffer.setContext(loggerContext);
+        buffer.setName("background-init");
+        buffer.setLoggers(new ConfiguredLoggers(logbackConfig));
         try {
-            config = loader.load();
+            if (logbackConfig.hasPath("background-init")) {
+                final Config bufferConfig = logbackConfig.getConfig("background-init");
+                if (bufferConfig.hasPath("buffer-size")) {
+                    buffer.setBufferSize(bufferConfig.getInt("buffer-size"));
+                }
+                if (bufferConfig.hasPath("overflow-policy")) {
+                    final String policy = bufferConfig.getString("overflow-policy");
+                    try {
+                        buffer.setOverflowPolicy(
+                                StartupBuffer.OverflowPolicy.valueOf(policy.toUpperCase().replace('-', '_')));
+                    } catch (IllegalArgumentException e) {
+                        addWarn(String.format("Unknown overflow-policy %s. Using %s.", policy,
+                                buffer.getOverflowPolicy()));
+                    }
+                }
+                if (bufferConfig.hasPath("timeout")) {
+                    buffer.setTimeout(bufferConfig.getDuration("timeout"));
+                }
+            }
+        } catch (ConfigException e) {
+            addError("Invalid background-init configuration. Configuring in the foreground.", e);
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Build and apply the configuration on another thread, while the events are held in the startup buffer. The loader
+     * is only watched once it is applied.
+     *
+     * @param loggerContext the logger context
+     * @param config        the TS-config
+     * @param buffer        the started startup buffer
+     */
+    private void configureInBackground(LoggerContext loggerContext, Config config, StartupBuffer buffer) {
+        Thread thread = new Thread(() -> {
+            buffer.configuring();
+            try {
+                // under the lock of the reloads, e.g. triggered by the scan task
+                synchronized (ConfigConfigurator.this) {
+                    final LoggingConfiguration configuration = buildConfiguration(loggerContext, config);
+                    buffer.complete(() -> applyConfiguration(loggerContext, configuration));
+                    finishConfiguration(loggerContext, config, configuration.logbackConfig);
+                    fingerprint = fingerprint(configuration.logbackConfig);
+                }
+            } catch (RuntimeException e) {
+                addError("Unable to configure logging in the background.", e);
+                buffer.fallbackToConsole();
+                buffer.complete(() -> { });
+            }
+            watchLoader(loggerContext);
+        }, "logback-config-init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reloads the configuration without resetting the context. The new appenders and logger settings are fully built
+     * before being swapped in, and the previous appenders are only stopped afterwards. If the new configuration cannot be
+     * loaded, or if any error is reported while building it, the running configuration is left untouched.
+     *
+     * @param loggerContext the logger context
+     */
+    synchronized void reconfigure(LoggerContext loggerContext) {
+        if (multiContext) {
+            SharedConfiguration.invalidate(loadedConfig);
+        } else {
+            getLoader().invalidateCaches();
+        }
+        Config config = loadConfig();
+        if (config == null) {
+            addError("Keeping the running logging configuration.");
+            rearmWatchList(loggerContext);
+            return;
+        }
+
+        byte[] newFingerprint = null;
+        try {
+            Config logbackConfig = config.getConfig(config.getString("logback-root"));
+            newFingerprint = fingerprint(logbackConfig);
+            if (fingerprint != null && MessageDigest.isEqual(fingerprint, newFingerprint)) {
+                addInfo("Logback configuration unchanged. Skipping reconfiguration.");
+                // the unrelated change may have moved keys between files
+                registerFileWatchers(loggerContext, getSourceFiles(config, logbackConfig));
+                return;
+            }
+        } catch (ConfigException e) {
+            // reported when building the configuration
+        }
+
+        if (!lint(config)) {
+            addError("Logging configuration rejected by the linter in strict mode. Keeping the running one.");
+            rearmWatchList(loggerContext);
+            return;
+        }
+
+        ErrorCounter errors = new ErrorCounter();
+        loggerContext.getStatusManager().add(errors);
+        LoggingConfiguration configuration = null;
+        try {
+            configuration = buildConfiguration(loggerContext, config);
+        } catch (RuntimeException e) {
+            addError("Unable to build the logging configuration.", e);
+        } finally {
+            loggerContext.getStatusManager().remove(errors);
+        }
+
+        if (configuration == null || errors.count > 0) {
+            if (configuration != null) {
+                for (Appender<ILoggingEvent> appender : configuration.appenders.values()) {
+                    // the ones taking over were never started, stopping them would untrack the running ones' files
+                    if (!configuration.takingOver.contains(appender)) {
+                        stopAppender(appender);
+                    }
+                }
+            }
+            restoreExecutor(loggerContext);
+            addError("Invalid logging configuration. Keeping the running one.");
+            rearmWatchList(loggerContext);
+            return;
+        }
+
+        applyConfiguration(loggerContext, configuration);
+        finishConfiguration(loggerContext, config, configuration.logbackConfig);
+        fingerprint = newFingerprint;
+    }
+
+    /**
+     * Report the expensive constructs of the configuration, if the linter is enabled (see {@link ConfigLinter}).
+     *
+     * @param config the TS-config
+     * @return {@code false} if the linter is in strict mode and found anything
+     */
+    private boolean lint(Config config) {
+        final ConfigLinter.Mode mode;
+        final List<ConfigLinter.Finding> findings;
+        try {
+            mode = ConfigLinter.mode(config.getConfig(config.getString("logback-root")));
+            if (mode == ConfigLinter.Mode.OFF) {
+                return true;
+            }
+            findings = new ConfigLinter().lint(config);
+        } catch (ConfigException e) {
+            // reported when building the configuration
+            return true;
+        } catch (IllegalArgumentException e) {
+            addWarn(e.getMessage() + ". Not linting the configuration.");
+            return true;
+        }
+        for (ConfigLinter.Finding finding : findings) {
+            if (mode == ConfigLinter.Mode.STRICT) {
+                addError(finding.toString());
+            } else {
+                addWarn(finding.toString());
+            }
+        }
+        return mode != ConfigLinter.Mode.STRICT || findings.isEmpty();
+    }
+
+    /**
+     * Compute the structural fingerprint of the resolved logback subtree. Keys are rendered in sorted order, and comments
+     * and origins are left out, so that only a change to the values gives a different fingerprint.
+     *
+     * @param logbackConfig the logback subtree
+     * @return the fingerprint
+     */
+    private static byte[] fingerprint(Config logbackConfig) {
+        String rendered = logbackConfig.root().render(ConfigRenderOptions.concise());
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(rendered.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Load the Typesafe config.
+     *
+     * @return the config, or {@code null} if it could not be loaded
+     */
+    private Config loadConfig() {
+        try {
+            if (multiContext) {
+                loadedConfig = SharedConfiguration.load(ConfigConfigurator::discoverLoader);
+            } else {
+                loadedConfig = getLoader().load();
+            }
+            return loadedConfig;
         } catch (Throwable t) {
             addError("Unable to load Typesafe config", t);
-            return;
+            return null;
         }
+    }
+
+    /**
+     * Build the appenders and logger settings, without touching the loggers.
+     *
+     * @param loggerContext the logger context
+     * @param config        the TS-config
+     * @return the built configuration
+     */
+    private LoggingConfiguration buildConfiguration(LoggerContext loggerContext, Config config) {
+
 
         // get the logback configuration root
         final String logbackConfigRoot = config.getString("logback-root");
         // load the configuration per config loading rules
         final Config logbackConfig = config.getConfig(logbackConfigRoot);
 
+        final LoggingConfiguration configuration = new LoggingConfiguration(logbackConfig);
+
+        // before the appenders schedule their tasks
+        configureExecutor(loggerContext, logbackConfig);
+
         final Config appenderConfigs = logbackConfig.getConfig("appenders");
         final ConfigAppendersCache appendersCache = new ConfigAppendersCache();
-        appendersCache.setLoader(name -> configureAppender(loggerContext, name, appenderConfigs.getConfig("\"" + name + "\""), beanCache, appendersCache));
-        final Map<String, Appender<ILoggingEvent>> appenders = new HashMap<>();
+        final SharedComponents sharedComponents = new SharedComponents();
+        appendersCache.setLoader(name -> configureAppender(loggerContext, name, appenderConfigs.getConfig("\"" + name + "\""),
+                appendersCache, sharedComponents, null, configuration));
+        final Map<String, Appender<ILoggingEvent>> appenders = configuration.appenders;
         for (Entry<String, ConfigValue> entry : appenderConfigs.root().entrySet()) {
             if (entry.getValue() instanceof ConfigObject) {
                 try {
@@ -104,7 +475,7 @@ public class ConfigConfigurator extends ContextAwareBase implements Configurator
 
         if (logbackConfig.hasPath("root")) {
             if (logbackConfig.getValue("root") instanceof ConfigObject) {
-                configureLogger(loggerContext, appenders, Logger.ROOT_LOGGER_NAME, logbackConfig.getConfig("root"), true);
+                configureLogger(configuration, Logger.ROOT_LOGGER_NAME, logbackConfig.getConfig("root"), true);
             } else {
                 addWarn("Invalid ROOT logger configuration. Ignoring it.");
             }
@@ -113,21 +484,260 @@ public class ConfigConfigurator extends ContextAwareBase implements Configurator
         Config loggerConfigs = logbackConfig.getConfig("loggers");
         for (Entry<String, ConfigValue> entry : loggerConfigs.root().entrySet()) {
             if (entry.getValue() instanceof ConfigObject) {
-                configureLogger(loggerContext, appenders, entry.getKey(),
+                configureLogger(configuration, entry.getKey(),
                         loggerConfigs.getConfig("\"" + entry.getKey() + "\""), false);
             } else {
                 addWarn(String.format("Invalid logger configuration %s. Ignoring it.", entry.getKey()));
             }
         }
 
+        configuration.generation.setContext(loggerContext);
+        configuration.generation.setName("generation");
+        configuration.generation.start();
+        for (Appender<ILoggingEvent> appender : configuration.appenders.values()) {
+            // the appenders taking over from running ones get the events of both configurations
+            if (configuration.takingOver.contains(appender)) {
+                continue;
+            }
+            List<Filter<ILoggingEvent>> filters = appender.getCopyOfAttachedFiltersList();
+            appender.clearAllFilters();
+            appender.addFilter(configuration.generation);
+            filters.forEach(appender::addFilter);
+        }
+
+        if (configuration.callerData) {
+            configureCallerData(loggerContext, configuration);
+        }
+
+        return configuration;
+    }
+
+    /**
+     * Install the filter applying the caller data policies of the loggers as the first filter of every configured
+     * appender, which see the events in the logging thread.
+     *
+     * @param loggerContext the logger context
+     * @param configuration the configuration being built
+     */
+    private void configureCallerData(LoggerContext loggerContext, LoggingConfiguration configuration) {
+        final CallerDataFilter filter = new CallerDataFilter(name -> configuration.settingsFor(name).callerData);
+        filter.setContext(loggerContext);
+        filter.setName("caller-data");
+        filter.start();
+        for (Appender<ILoggingEvent> appender : configuration.appenders.values()) {
+            List<Filter<ILoggingEvent>> filters = appender.getCopyOfAttachedFiltersList();
+            appender.clearAllFilters();
+            appender.addFilter(filter);
+            filters.forEach(appender::addFilter);
+        }
+    }
+
+    /**
+     * Swap the built configuration in. The new appenders are attached to every logger alongside the previous ones, and
+     * the events are switched from the previous appenders to the new ones in one step (see {@link GenerationFilter}).
+     * The previous appenders are detached once the events logged before the switch went through, and stopped once no
+     * logger refers to them anymore. An event logged before the switch and held up for longer than the grace period is
+     * lost for the loggers already detached when it reaches them (see {@link GenerationFilter}).
+     *
+     * @param loggerContext the logger context
+     * @param configuration the configuration to apply
+     */
+    private void applyConfiguration(LoggerContext loggerContext, LoggingConfiguration configuration) {
+        Set<Appender<ILoggingEvent>> previous = Collections.newSetFromMap(new IdentityHashMap<>());
+        previous.addAll(configuredAppenders);
+
+        for (String name : configuration.loggers.keySet()) {
+            loggerContext.getLogger(name);
+        }
+
+        final GenerationFilter.Switch change = new GenerationFilter.Switch();
+        final GenerationFilter replaced = generation;
+        if (replaced != null) {
+            replaced.endAt(change);
+            configuration.generation.startAt(change);
+        }
+
+        // installed first, so that the loggers created meanwhile are matched by either
+        if (loggerRules != null) {
+            loggerContext.getTurboFilterList().remove(loggerRules);
+            loggerRules.stop();
+            loggerRules = null;
+        }
+        if (!configuration.rules.isEmpty()) {
+            configuration.rules.setContext(loggerContext);
+            configuration.rules.setName("logger-rules");
+            configuration.rules.start();
+            loggerContext.getTurboFilterList().add(0, configuration.rules);
+            loggerRules = configuration.rules;
+        }
+
+        List<Logger> loggers = loggerContext.getLoggerList();
+        final List<Appender<ILoggingEvent>> handedOver = handOver(loggers, configuration);
+        for (Logger logger : loggers) {
+            logger.iteratorForAppenders().forEachRemaining(previous::add);
+            configuration.settingsFor(logger.getName()).attachTo(logger);
+        }
+        change.at = System.currentTimeMillis() + 1;
+        for (Logger logger : loggers) {
+            configuration.settingsFor(logger.getName()).applyLevelTo(logger);
+        }
+        configuration.rules.matched(loggers);
+
+        if (replaced != null) {
+            // the events logged before the switch may still be on their way up the loggers
+            try {
+                Thread.sleep(SWITCH_GRACE_PERIOD);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Logger logger : loggers) {
+            configuration.settingsFor(logger.getName()).detachOthersFrom(logger);
+        }
+        configuration.generation.started();
+        if (replaced != null) {
+            replaced.ended();
+        }
+        generation = configuration.generation;
+
+        previous.removeAll(configuration.appenders.values());
+        previous.removeAll(handedOver);
+        for (Appender<ILoggingEvent> appender : previous) {
+            stopAppender(appender);
+        }
+        for (Appender<ILoggingEvent> appender : handedOver) {
+            stopCompressions(appender);
+        }
+
+        configuredAppenders = new ArrayList<>(configuration.appenders.values());
+
+        // the periodic tasks of the previous configuration are cancelled, the delayed ones still run
+        if (replacedExecutor != null) {
+            replacedExecutor.shutdown();
+            replacedExecutor = null;
+            replacedExecutorSettings = null;
+        }
+    }
+
+    /**
+     * Stop the running appenders replaced by appenders writing the same files, and the ones appending to them, then start
+     * the replacing ones, so that a file is never written by two appenders. The stopped appenders are detached from the
+     * loggers first, and the events logged until the replacing ones are attached are not appended to these files.
+     *
+     * @param loggers       the loggers
+     * @param configuration the configuration being applied
+     * @return the stopped appenders, whose archive compressions are left to stop
+     */
+    private List<Appender<ILoggingEvent>> handOver(List<Logger> loggers, LoggingConfiguration configuration) {
+        if (configuration.replacing.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Appender<ILoggingEvent>> replaced = appendingTo(configuredAppenders, configuration.replacing.values());
+        for (Logger logger : loggers) {
+            for (Appender<ILoggingEvent> appender : replaced) {
+                logger.detachAppender(appender);
+            }
+        }
+        // the appenders queuing events are drained before the ones they append to
+        for (int i = replaced.size() - 1; i >= 0; i--) {
+            replaced.get(i).stop();
+        }
+        for (Runnable start : configuration.deferredStarts) {
+            start.run();
+        }
+        return replaced;
+    }
+
+    /**
+     * Install the executor configured by the {@code executor} block on the context, unless it is already installed. The
+     * previous one is shut down once the configuration is applied.
+     *
+     * @param loggerContext the logger context
+     * @param logbackConfig the logback subtree
+     */
+    private void configureExecutor(LoggerContext loggerContext, Config logbackConfig) {
+        LoggingExecutor settings = LoggingExecutor.DEFAULT;
+        if (logbackConfig.hasPath("executor")) {
+            try {
+                final Config executorConfig = logbackConfig.getConfig("executor");
+                final int coreThreads = executorConfig.hasPath("core-threads") ? executorConfig.getInt("core-threads")
+                        : CoreConstants.SCHEDULED_EXECUTOR_POOL_SIZE;
+                final String threadNamePrefix = executorConfig.hasPath("thread-name-prefix")
+                        ? executorConfig.getString("thread-name-prefix") : "logback-";
+                boolean virtual = executorConfig.hasPath("virtual") && executorConfig.getBoolean("virtual");
+                if (coreThreads < 1) {
+                    addError(String.format("Invalid executor core-threads %d. Keeping the running executor.", coreThreads));
+                    return;
+                }
+                if (virtual && !VirtualThreads.isSupported()) {
+                    addWarn("Virtual threads require Java 21 or later. Using platform threads.");
+                    virtual = false;
+                }
+                settings = new LoggingExecutor(coreThreads, threadNamePrefix, virtual);
+            } catch (ConfigException e) {
+                addError("Invalid executor configuration. Keeping the running executor.", e);
+                return;
+            }
+        }
+
+        final Object running = loggerContext.getObject(EXECUTOR_KEY);
+        if (settings.equals(running == null ? LoggingExecutor.DEFAULT : running)) {
+            return;
+        }
+        try {
+            final ScheduledExecutorService previous = LoggingExecutor.install(loggerContext, settings.create());
+            if (replacedExecutor == null) {
+                replacedExecutor = previous;
+                replacedExecutorSettings = running;
+            } else if (previous != null) {
+                // built by a configuration which was not applied
+                previous.shutdownNow();
+            }
+            loggerContext.putObject(EXECUTOR_KEY, settings);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            addError("Unable to install the configured executor. Keeping the running one.", e);
+        }
+    }
+
+    /**
+     * Put the executor replaced by a configuration which is not applied back in place.
+     *
+     * @param loggerContext the logger context
+     */
+    private void restoreExecutor(LoggerContext loggerContext) {
+        if (replacedExecutor == null) {
+            return;
+        }
+        try {
+            final ScheduledExecutorService unused = LoggingExecutor.install(loggerContext, replacedExecutor);
+            if (unused != null) {
+                unused.shutdownNow();
+            }
+            loggerContext.putObject(EXECUTOR_KEY, replacedExecutorSettings);
+        } catch (ReflectiveOperationException e) {
+            addError("Unable to restore the running executor.", e);
+        }
+        replacedExecutor = null;
+        replacedExecutorSettings = null;
+    }
+
+    private void finishConfiguration(LoggerContext loggerContext, Config config, Config logbackConfig) {
+        // appender metrics are published next to the JMX configurator, configured or not
+        final String contextName;
+        if (logbackConfig.hasPath("jmx-configurator.context-name")) {
+            contextName = logbackConfig.getString("jmx-configurator.context-name");
+        } else {
+            contextName = loggerContext.getName();
+        }
+        metricsContextName = contextName;
+        for (Appender<ILoggingEvent> appender : configuredAppenders) {
+            if (appender instanceof MeteredAppender) {
+                ((MeteredAppender) appender).register(contextName);
+            }
+        }
+
         if (logbackConfig.hasPath("jmx-configurator")) {
             final Config jmxConfig = logbackConfig.getConfig("jmx-configurator");
-            final String contextName;
-            if (jmxConfig.hasPath("context-name")) {
-                contextName = jmxConfig.getString("context-name");
-            } else {
-                contextName = loggerContext.getName();
-            }
 
             final String objectNameAsStr;
             if (jmxConfig.hasPath("object-name")) {
@@ -157,87 +767,383 @@ public class ConfigConfigurator extends ContextAwareBase implements Configurator
             }
         }
 
-        // Use a LinkedHashSet so order is preserved. We use the first one in as the 'main' URL, under the assumption
-        // that maybe that matters somehow to logback. The way we traverse the config tree means that the first one we
-        // add will be one that is closer to the root of the tree.
-        if (registerFileWatchers(loggerContext, getSourceFiles(config.root(), new LinkedHashSet<>()))) {
+        if (registerFileWatchers(loggerContext, getSourceFiles(config, logbackConfig))) {
             createChangeTask(loggerContext, logbackConfig);
+        } else {
+            cancelChangeTask();
         }
     }
 
     /**
-     * Get the correct config factory object.
+     * Get the correct config factory object. The service-provider lookup is only performed once, and the loader is then
+     * reused for every reload.
      *
      * @return the config factory
      */
     private ConfigLoader getLoader() {
+        final ConfigLoader result;
+        if (multiContext) {
+            result = SharedConfiguration.getLoader(ConfigConfigurator::discoverLoader);
+        } else {
+            if (loader == null) {
+                loader = discoverLoader();
+            }
+            result = loader;
+        }
+        // loaders reporting to the status manager report to the first context using them
+        if (result instanceof ContextAware && ((ContextAware) result).getContext() == null) {
+            ((ContextAware) result).setContext(getContext());
+        }
+        return result;
+    }
+
+    /**
+     * Use the given loader instead of discovering one.
+     *
+     * @param loader the config loader
+     */
+    void setLoader(ConfigLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Give the loader a listener reloading the configuration, once.
+     *
+     * @param loggerContext the logger context
+     */
+    private void watchLoader(LoggerContext loggerContext) {
+        if (watchListener != null) {
+            return;
+        }
+        final ConfigLoader configLoader;
+        try {
+            configLoader = getLoader();
+        } catch (ServiceConfigurationError e) {
+            // reported when loading the config
+            return;
+        }
+        watchListener = () -> {
+            try {
+                reconfigure(loggerContext);
+            } catch (RuntimeException e) {
+                addError("Unable to reload the logging configuration.", e);
+            }
+        };
+        configLoader.watch(watchListener);
+    }
+
+    /**
+     * Take back the listener given to the loader, so that the configuration of a reset or stopped context is not reloaded.
+     */
+    private void unwatchLoader() {
+        final Runnable listener = watchListener;
+        if (listener == null) {
+            return;
+        }
+        watchListener = null;
+        getLoader().unwatch(listener);
+    }
+
+    /**
+     * Look up the config loader as the configurator does, for the tools loading the same configuration.
+     *
+     * @return the first service-provider, else the loader calling {@link ConfigFactory#load()}
+     */
+    static ConfigLoader discoverLoader() {
         Iterator<ConfigLoader> loaders = ServiceLoader.load(ConfigLoader.class).iterator();
         if (loaders.hasNext()) {
             return loaders.next();
         }
-        return this::defaultLoader;
+        return ConfigFactory::load;
     }
 
     /**
-     * Default config loading method.
+     * Resolve a class by name, through the shared cache in multi-context mode.
      *
-     * @return the basic TS-config loading
+     * @param name the class name
+     * @return the class
+     * @throws ClassNotFoundException if the class cannot be found
+     */
+    private Class<?> classForName(String name) throws ClassNotFoundException {
+        if (multiContext) {
+            return SharedConfiguration.forName(name);
+        }
+        return Class.forName(name);
+    }
+
+    /**
+     * @return the config last loaded by this configurator
      */
-    private Config defaultLoader() {
-        return ConfigFactory.load();
+    Config getLoadedConfig() {
+        return loadedConfig;
     }
 
+    /**
+     * Configure an appender. While a configuration replaces the running one, an appender writing the files of a running
+     * appender is not started, it takes over from it once the configuration is applied (see {@link #handOver}).
+     *
+     * @param configuration the configuration being built, or {@code null} for the children of a routing appender
+     */
     private Appender<ILoggingEvent> configureAppender(LoggerContext loggerContext, String name, Config config,
-                                                      BeanDescriptionCache beanCache, ConfigAppendersCache appendersCache) throws ReflectiveOperationException {
+                                                      ConfigAppendersCache appendersCache,
+                                                      SharedComponents sharedComponents,
+                                                      PropertyContainer localProperties,
+                                                      LoggingConfiguration configuration) throws ReflectiveOperationException {
         List<Object> children = new ArrayList<>();
 
         @SuppressWarnings("unchecked")
-        Class<Appender<ILoggingEvent>> clazz = (Class<Appender<ILoggingEvent>>) Class
-                .forName(config.getString("class"));
+        Class<Appender<ILoggingEvent>> clazz = (Class<Appender<ILoggingEvent>>) classForName(
+                config.getString("class"));
+
+        // the child template of a routing appender is instantiated lazily, once per key value
+        Config childTemplate = null;
+        if (RoutingAppender.class.isAssignableFrom(clazz) && config.hasPath("appender")) {
+            childTemplate = config.getConfig("appender");
+            config = config.withoutPath("appender");
+        }
+
+        // the flush interval is not an appender property, it is scheduled once the appender is started
+        Duration flushInterval = null;
+        if (OutputStreamAppender.class.isAssignableFrom(clazz) && config.hasPath("flush-interval")) {
+            flushInterval = config.getDuration("flush-interval");
+            config = config.withoutPath("flush-interval");
+        }
+
+        // metrics are measured by a wrapper, published once the configuration is applied
+        boolean metrics = false;
+        if (config.hasPath("metrics")) {
+            metrics = config.getBoolean("metrics");
+            config = config.withoutPath("metrics");
+        }
 
-        Appender<ILoggingEvent> appender = this.configureObject(loggerContext, clazz, config, children, beanCache, appendersCache);
+        Appender<ILoggingEvent> appender = this.configureObject(loggerContext, clazz, config, children,
+                appendersCache, sharedComponents, localProperties);
         appender.setName(name);
 
+        if (childTemplate != null) {
+            final RoutingAppender routing = (RoutingAppender) appender;
+            final Config template = childTemplate;
+            routing.setChildFactory(new RoutingAppender.ChildFactory() {
+                @Override
+                public Appender<ILoggingEvent> create(String value) throws ReflectiveOperationException {
+                    // children are created from logging threads, the appenders cache and shared components are thread-safe
+                    Appender<ILoggingEvent> child = configureAppender(loggerContext, name + "-" + value, template,
+                            appendersCache, sharedComponents, new RoutingAppender.KeyProperties(routing.getKeyName(), value),
+                            null);
+                    if (child instanceof MeteredAppender) {
+                        String contextName = metricsContextName;
+                        ((MeteredAppender) child).register(contextName != null ? contextName : loggerContext.getName());
+                    }
+                    return child;
+                }
+
+                @Override
+                public void stop(Appender<ILoggingEvent> child) {
+                    stopAppender(child);
+                }
+            });
+        }
+
         for (Object child : children) {
             if (child instanceof RollingPolicy) {
                 ((RollingPolicy) child).setParent((FileAppender<?>) appender);
             }
-            if (child instanceof LifeCycle) {
-                ((LifeCycle) child).start();
+        }
+
+        final Appender<ILoggingEvent> started = metrics ? new MeteredAppender(appender) : appender;
+        final Duration interval = flushInterval;
+        final Runnable start = () -> {
+            for (Object child : children) {
+                // shared components are started by the first appender using them
+                if (child instanceof LifeCycle) {
+                    sharedComponents.start((LifeCycle) child);
+                }
+            }
+
+            started.start();
+
+            // the compression executors are not known to the appender, they are stopped along with it
+            List<ArchiveCompression> appenderCompressions = new ArrayList<>();
+            for (Object child : children) {
+                if (child instanceof ArchiveCompression && ((ArchiveCompression) child).isStarted()) {
+                    appenderCompressions.add((ArchiveCompression) child);
+                }
+            }
+            if (!appenderCompressions.isEmpty()) {
+                synchronized (compressions) {
+                    compressions.put(started, appenderCompressions);
+                }
+            }
+
+            if (interval != null && appender.isStarted()) {
+                AppenderFlusher.schedule(loggerContext, (OutputStreamAppender<ILoggingEvent>) appender, interval);
             }
+        };
+
+        final Appender<ILoggingEvent> replaced = configuration != null ? writingSameFiles(appender) : null;
+        if (replaced != null) {
+            configuration.replacing.put(started, replaced);
+        }
+        // the appenders appending to one taking over are started after it
+        if (replaced != null || configuration != null
+                && appendedBy(appender).stream().anyMatch(configuration.takingOver::contains)) {
+            configuration.takingOver.add(started);
+            configuration.deferredStarts.add(start);
+        } else {
+            start.run();
         }
 
-        appender.start();
-        return appender;
+        return started;
+
+    }
+
+    /**
+     * Find the running appender an appender being built replaces and cannot run alongside: a file appender with the same
+     * name, as logback tracks the files of the appenders by name, or writing the same file or rolling to the same file
+     * name pattern. Routing appenders with the same name are matched as well, as their children write the same files.
+     *
+     * @param appender the appender being built, not started yet
+     * @return the running appender, or {@code null} if there is none
+     */
+    private Appender<ILoggingEvent> writingSameFiles(Appender<ILoggingEvent> appender) {
+        for (Appender<ILoggingEvent> running : configuredAppenders) {
+            final Appender<ILoggingEvent> unwrapped = running instanceof MeteredAppender
+                    ? ((MeteredAppender) running).getDelegate() : running;
+            if (unwrapped instanceof RoutingAppender && appender instanceof RoutingAppender) {
+                if (unwrapped.getName().equals(appender.getName())) {
+                    return running;
+                }
+            } else if (unwrapped instanceof FileAppender && appender instanceof FileAppender) {
+                final String file = ((FileAppender<?>) appender).getFile();
+                final String pattern = fileNamePattern(appender);
+                if (unwrapped.getName().equals(appender.getName())
+                        || file != null && file.equals(((FileAppender<?>) unwrapped).getFile())
+                        || pattern != null && pattern.equals(fileNamePattern(unwrapped))) {
+                    return running;
+                }
+            }
+        }
+        return null;
+    }
 
+    private static String fileNamePattern(Appender<ILoggingEvent> appender) {
+        if (appender instanceof RollingFileAppender) {
+            final RollingPolicy policy = ((RollingFileAppender<?>) appender).getRollingPolicy();
+            if (policy instanceof RollingPolicyBase) {
+                return ((RollingPolicyBase) policy).getFileNamePattern();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collect the appenders among the given ones which append to any of the targets, directly or through other
+     * appenders, along with the targets.
+     *
+     * @param appenders the appenders to look into
+     * @param targets   the appenders appended to
+     * @return the targets, then the appenders appending to them, each after the ones it appends to
+     */
+    private static List<Appender<ILoggingEvent>> appendingTo(Collection<Appender<ILoggingEvent>> appenders,
+                                                             Collection<Appender<ILoggingEvent>> targets) {
+        final Set<Appender<ILoggingEvent>> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<Appender<ILoggingEvent>> ordered = new ArrayList<>();
+        for (Appender<ILoggingEvent> target : targets) {
+            if (reached.add(target)) {
+                ordered.add(target);
+            }
+        }
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (Appender<ILoggingEvent> appender : appenders) {
+                if (!reached.contains(appender) && appendedBy(appender).stream().anyMatch(reached::contains)) {
+                    reached.add(appender);
+                    ordered.add(appender);
+                    grown = true;
+                }
+            }
+        }
+        return ordered;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Appender<ILoggingEvent>> appendedBy(Appender<ILoggingEvent> appender) {
+        final List<Appender<ILoggingEvent>> appended = new ArrayList<>();
+        final Appender<ILoggingEvent> unwrapped = appender instanceof MeteredAppender
+                ? ((MeteredAppender) appender).getDelegate() : appender;
+        if (unwrapped instanceof AppenderAttachable) {
+            ((AppenderAttachable<ILoggingEvent>) unwrapped).iteratorForAppenders().forEachRemaining(appended::add);
+        } else if (unwrapped instanceof CircuitBreakerAppender) {
+            final CircuitBreakerAppender breaker = (CircuitBreakerAppender) unwrapped;
+            if (breaker.getAppender() != null) {
+                appended.add(breaker.getAppender());
+            }
+            if (breaker.getFallback() != null) {
+                appended.add(breaker.getFallback());
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * Stop an appender built by this configurator, then the archive compressions of its rolling policy, so that the
+     * pending compressions are drained before their executor terminates.
+     *
+     * @param appender the appender to stop
+     */
+    private void stopAppender(Appender<ILoggingEvent> appender) {
+        appender.stop();
+        stopCompressions(appender);
+    }
+
+    /**
+     * Stop the archive compressions of a stopped appender.
+     *
+     * @param appender the stopped appender
+     */
+    private void stopCompressions(Appender<ILoggingEvent> appender) {
+        final List<ArchiveCompression> appenderCompressions;
+        synchronized (compressions) {
+            appenderCompressions = compressions.remove(appender);
+        }
+        if (appenderCompressions != null) {
+            for (ArchiveCompression compression : appenderCompressions) {
+                compression.stop();
+            }
+        }
     }
 
     /**
      * Configure an object of a given class.
      *
-     * @param loggerContext  the context to assign to this object if it is
-     *                       {@link ContextAwareBase}
-     * @param clazz          the class to instantiate
-     * @param config         a configuration containing the object's properties - each
-     *                       top-level key except for "class" must have a corresponding setter
-     *                       method, or an adder method in the case of lists
-     * @param children       a list which, if not null, will be filled with any child objects
-     *                       assigned as properties
-     * @param beanCache      the bean cache instance
-     * @param appendersCache the cache of references to other appenders
+     * @param loggerContext   the context to assign to this object if it is
+     *                        {@link ContextAwareBase}
+     * @param clazz           the class to instantiate
+     * @param config          a configuration containing the object's properties - each
+     *                        top-level key except for "class" must have a corresponding setter
+     *                        method, or an adder method in the case of lists
+     * @param children        a list which, if not null, will be filled with any child objects
+     *                        assigned as properties
+     * @param appendersCache  the cache of references to other appenders
+     * @param sharedComponents the encoders and layouts shared by the appenders
+     * @param localProperties properties looked up after the context ones when substituting variables,
+     *                        may be null
      * @return the object instantiated with all properties assigned
      * @throws ReflectiveOperationException if any setter/adder method is missing or if the class cannot be
      *                                      instantiated with a no-argument constructor
      */
     private <T> T configureObject(LoggerContext loggerContext, Class<T> clazz, Config config, List<Object> children,
-                                  BeanDescriptionCache beanCache, ConfigAppendersCache appendersCache) throws ReflectiveOperationException {
+                                  ConfigAppendersCache appendersCache, SharedComponents sharedComponents,
+                                  PropertyContainer localProperties) throws ReflectiveOperationException {
         T object = clazz.newInstance();
 
         if (object instanceof ContextAwareBase)
             ((ContextAwareBase) object).setContext(loggerContext);
 
-        ConfigPropertySetter propertySetter = new ConfigPropertySetter(beanCache, object);
+        ConfigPropertySetter propertySetter = new ConfigPropertySetter(object);
         propertySetter.setContext(loggerContext);
+        propertySetter.setLocalProperties(localProperties);
 
         // file property (if any) must be set before any other property for appenders
         if (config.hasPath("file")) {
@@ -250,12 +1156,64 @@ public class ConfigConfigurator extends ContextAwareBase implements Configurator
                 case OBJECT:
                     Config subConfig = config.getConfig("\"" + entry.getKey() + "\"");
                     if (subConfig.hasPath("class")) {
-                        Class<?> childClass = Class.forName(subConfig.getString("class"));
-                        Object child = this.configureObject(loggerContext, childClass, subConfig, null, beanCache, appendersCache);
+                        Class<?> childClass = classForName(subConfig.getString("class"));
+                        Config compressionConfig = null;
+                        if (RollingPolicyBase.class.isAssignableFrom(childClass)) {
+                            // compression settings are applied to the rolling policy once it is started
+                            if (subConfig.hasPath("compression")) {
+                                compressionConfig = subConfig.getConfig("compression");
+                                subConfig = subConfig.withoutPath("compression");
+                            }
+                            // next file settings belong to the appender
+                            for (String key : NEXT_FILE_KEYS) {
+                                if (subConfig.hasPath(key)) {
+                                    if (object instanceof RollingChannelFileAppender) {
+                                        propertySetter.setProperty(key, subConfig, loggerContext, appendersCache);
+                                    } else {
+                                        addWarn(String.format("Property %s of %s is only supported by %s. Ignoring it.", key,
+                                                entry.getKey(), RollingChannelFileAppender.class.getName()));
+                                    }
+                                    subConfig = subConfig.withoutPath(key);
+                                }
+                            }
+                        }
+                        final Object child;
+                        if (SharedComponents.isShared(childClass, subConfig)) {
+                            final Config componentConfig = subConfig;
+                            child = sharedComponents.get(SharedComponents.fingerprint(componentConfig, localProperties),
+                                    () -> this.configureObject(loggerContext, childClass,
+                                            componentConfig.withoutPath(SharedComponents.SHARED_KEY), null,
+                                            appendersCache, sharedComponents, localProperties));
+                        } else {
+                            if (subConfig.hasPath(SharedComponents.SHARED_KEY)) {
+                                if (SharedComponents.isPerAppender(childClass)) {
+                                    if (subConfig.getBoolean(SharedComponents.SHARED_KEY)) {
+                                        addWarn(String.format("%s %s cannot be shared by several appenders. Ignoring property %s.",
+                                                childClass.getName(), entry.getKey(), SharedComponents.SHARED_KEY));
+                                    }
+                                } else if (!SharedComponents.isShareable(childClass)) {
+                                    addWarn(String.format("Property %s of %s is only supported by encoders and layouts. Ignoring it.",
+                                            SharedComponents.SHARED_KEY, entry.getKey()));
+                                }
+                                subConfig = subConfig.withoutPath(SharedComponents.SHARED_KEY);
+                            }
+                            child = this.configureObject(loggerContext, childClass, subConfig, null, appendersCache,
+                                    sharedComponents, localProperties);
+                        }
                         String propertyName = NameUtils.toLowerCamelCase(entry.getKey());
                         propertySetter.setRawProperty(propertyName, child);
-                        if (children != null)
+                        if (children != null) {
                             children.add(child);
+                            if (compressionConfig != null) {
+                                ArchiveCompression compression = this.configureObject(loggerContext, ArchiveCompression.class,
+                                        compressionConfig, null, appendersCache, sharedComponents, localProperties);
+                                compression.setPolicy((RollingPolicyBase) child);
+                                children.add(compression);
+                            }
+                        } else if (compressionConfig != null) {
+                            addWarn(String.format("Compression settings of %s are only supported for appenders. Ignoring them.",
+                                    entry.getKey()));
+                        }
                     } else {
                         propertySetter.setProperty(entry.getKey(), config, loggerContext, appendersCache);
                     }
@@ -269,38 +1227,73 @@ public class ConfigConfigurator extends ContextAwareBase implements Configurator
         return object;
     }
 
-    private void configureLogger(LoggerContext loggerContext, Map<String, Appender<ILoggingEvent>> appenders,
-                                 String name, Config config, boolean isRoot) {
-        final Logger logger = loggerContext.getLogger(name);
+    private void configureLogger(LoggingConfiguration configuration, String name, Config config, boolean isRoot) {
+        final LoggerSettings settings = new LoggerSettings();
 
-        if (config.hasPathOrNull("level")) {
-            if (config.getIsNull("level") && isRoot) {
-                addWarn("Log level NULL is not authorized for ROOT logger");
-            } else if (!config.getIsNull("level")) {
-                String levelName = config.getString("level");
-                if (isRoot && (levelName.equalsIgnoreCase("NULL") || levelName.equalsIgnoreCase("INHERITED"))) {
-                    addWarn(String.format("Log level %s is not authorized for ROOT logger.", levelName.toUpperCase()));
-                } else if (!levelName.equalsIgnoreCase("NULL") && !levelName.equalsIgnoreCase("INHERITED")) {
-                    logger.setLevel(Level.toLevel(config.getString("level")));
+        try {
+            if (config.hasPathOrNull("level")) {
+                if (config.getIsNull("level") && isRoot) {
+                    addWarn("Log level NULL is not authorized for ROOT logger");
+                } else if (!config.getIsNull("level")) {
+                    String levelName = config.getString("level");
+                    if (isRoot && (levelName.equalsIgnoreCase("NULL") || levelName.equalsIgnoreCase("INHERITED"))) {
+                        addWarn(String.format("Log level %s is not authorized for ROOT logger.", levelName.toUpperCase()));
+                    } else if (!levelName.equalsIgnoreCase("NULL") && !levelName.equalsIgnoreCase("INHERITED")) {
+                        settings.level = Level.toLevel(config.getString("level"));
+                    }
                 }
             }
-        }
 
-        if (config.hasPath("additivity")) {
-            logger.setAdditive(config.getBoolean("additivity"));
-        }
+            if (config.hasPath("additivity")) {
+                settings.additive = config.getBoolean("additivity");
+            }
 
-        if (config.hasPath("appenders")) {
-            List<String> appenderRefs = config.getStringList("appenders");
-            for (String appenderRef : appenderRefs) {
-                if (appenders.containsKey(appenderRef)) {
-                    logger.addAppender(appenders.get(appenderRef));
-                } else {
-                    addWarn(String.format("Unknown appender %s. Ignoring it.", appenderRef));
+            if (config.hasPath("caller-data")) {
+                try {
+                    settings.callerData = CallerDataPolicy.parse(config.getString("caller-data"));
+                } catch (IllegalArgumentException e) {
+                    throw new ConfigException.BadValue(config.origin(), "caller-data", e.getMessage());
                 }
+                configuration.callerData = true;
             }
+
+            if (config.hasPath("appenders")) {
+                List<String> appenderRefs = config.getStringList("appenders");
+                for (String appenderRef : appenderRefs) {
+                    if (configuration.appenders.containsKey(appenderRef)) {
+                        settings.appenders.add(configuration.appenders.get(appenderRef));
+                    } else {
+                        addWarn(String.format("Unknown appender %s. Ignoring it.", appenderRef));
+                    }
+                }
+            }
+        } catch (ConfigException e) {
+            addError(String.format("Invalid logger configuration %s.", name), e);
+            return;
         }
 
+        if (LoggerRules.isPattern(name)) {
+            configuration.rules.add(name, settings);
+        } else {
+            configuration.loggers.put(name, settings);
+        }
+    }
+
+    /**
+     * Find the real source files contributing to the logback subtree, or choosing it. Changes to other files cannot change
+     * the logging configuration, so they are not watched.
+     *
+     * @param config        the TS-config
+     * @param logbackConfig the logback subtree
+     *
+     * @return the set of files found, as URLs
+     */
+    private Set<URL> getSourceFiles(Config config, Config logbackConfig) {
+        // Use a LinkedHashSet so order is preserved. We use the first one in as the 'main' URL, under the assumption
+        // that maybe that matters somehow to logback. The way we traverse the config tree means that the first one we
+        // add will be one that is closer to the root of the tree.
+        Set<URL> files = getSourceFiles(logbackConfig.root(), new LinkedHashSet<>());
+        return getSourceFiles(config.getValue("logback-root"), files);
     }
 
     /**
@@ -323,6 +1316,10 @@ public class ConfigConfigurator extends ContextAwareBase implements Configurator
             for (ConfigValue value : ((ConfigObject)config).values()) {
                 getSourceFiles(value, files);
             }
+        } else if (config.valueType() == ConfigValueType.LIST) {
+            for (ConfigValue value : (ConfigList) config) {
+                getSourceFiles(value, files);
+            }
         }
         return files;
     }
@@ -350,6 +1347,30 @@ public class ConfigConfigurator extends ContextAwareBase implements Configurator
         return false;
     }
 
+    /**
+     * Re-record the modification times of the watched files, so that a configuration which failed to load is only
+     * reloaded once modified again.
+     *
+     * @param loggerContext the logger context
+     */
+    private void rearmWatchList(LoggerContext loggerContext) {
+        ConfigurationWatchList configurationWatchList = ConfigurationWatchListUtil.getConfigurationWatchList(loggerContext);
+        if (configurationWatchList == null) {
+            return;
+        }
+        URL mainURL = configurationWatchList.getMainURL();
+        List<File> files = configurationWatchList.getCopyOfFileWatchList();
+        configurationWatchList.clear();
+        configurationWatchList.setMainURL(mainURL);
+        for (File file : files) {
+            try {
+                configurationWatchList.addToWatchList(file.toURI().toURL());
+            } catch (MalformedURLException e) {
+                addWarn(String.format("Unable to watch file %s.", file), e);
+            }
+        }
+    }
+
     /**
      * Create and schedule the task to check for changes to the watch list.
      *
@@ -357,31 +1378,264 @@ public class ConfigConfigurator extends ContextAwareBase implements Configurator
      * @param config        the logback TS-config
      */
     private void createChangeTask(LoggerContext loggerContext, Config config) {
+        long delay = 0;
         if (config.hasPath("scan-period") && !config.getIsNull("scan-period")) {
-            long delay = config.getDuration("scan-period", TimeUnit.MILLISECONDS);
-            if (delay > 0) {
-                Runnable rocTask = () -> {
-                    ConfigurationWatchList configurationWatchList =
-                            ConfigurationWatchListUtil.getConfigurationWatchList(loggerContext);
-                    if (configurationWatchList == null) {
-                        addWarn("Null ConfigurationWatchList in context");
-                        return;
+            delay = config.getDuration("scan-period", TimeUnit.MILLISECONDS);
+        }
+        if (delay <= 0) {
+            cancelChangeTask();
+            return;
+        }
+        if (changeTask != null && !changeTask.isDone() && changeTaskPeriod == delay) {
+            // keep the running task
+            return;
+        }
+        cancelChangeTask();
+
+        Runnable rocTask = () -> {
+            ConfigurationWatchList configurationWatchList =
+                    ConfigurationWatchListUtil.getConfigurationWatchList(loggerContext);
+            if (configurationWatchList == null) {
+                addWarn("Null ConfigurationWatchList in context");
+                return;
+            }
+            List<File> filesToWatch = configurationWatchList.getCopyOfFileWatchList();
+            if (filesToWatch == null || filesToWatch.isEmpty()) {
+                addInfo("Empty watch file list. Disabling ");
+                return;
+            }
+            if (!configurationWatchList.changeDetected()) {
+                return;
+            }
+            try {
+                reconfigure(loggerContext);
+            } catch (RuntimeException e) {
+                // an exception would cancel the periodic task
+                addError("Unable to reload the logging configuration.", e);
+            }
+        };
+
+        loggerContext.putObject(CoreConstants.RECONFIGURE_ON_CHANGE_TASK, rocTask);
+        changeTask = loggerContext.getScheduledExecutorService().
+                scheduleAtFixedRate(rocTask, delay, delay, TimeUnit.MILLISECONDS);
+        changeTaskPeriod = delay;
+        loggerContext.addScheduledFuture(changeTask);
+    }
+
+    private void cancelChangeTask() {
+        if (changeTask != null) {
+            changeTask.cancel(false);
+            changeTask = null;
+        }
+    }
+
+    /**
+     * The appenders and logger settings built from the configuration, not yet applied.
+     */
+    private static final class LoggingConfiguration {
+
+        final Config logbackConfig;
+
+        final Map<String, Appender<ILoggingEvent>> appenders = new HashMap<>();
+
+        final Map<String, LoggerSettings> loggers = new LinkedHashMap<>();
+
+        final LoggerRules rules = new LoggerRules(loggers);
+
+        final GenerationFilter generation = new GenerationFilter();
+
+        /**
+         * The appenders taking over from a running one, to the one they replace.
+         */
+        final Map<Appender<ILoggingEvent>, Appender<ILoggingEvent>> replacing = new IdentityHashMap<>();
+
+        /**
+         * The appenders taking over from a running one, and the ones appending to them.
+         */
+        final Set<Appender<ILoggingEvent>> takingOver = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        /**
+         * Start the appenders taking over, in order, once the ones they replace are stopped.
+         */
+        final List<Runnable> deferredStarts = new ArrayList<>();
+
+        /**
+         * Whether a logger has a caller data policy.
+         */
+        boolean callerData;
+
+        LoggingConfiguration(Config logbackConfig) {
+            this.logbackConfig = logbackConfig;
+        }
+
+        /**
+         * @param name the logger name
+         * @return the settings of the logger configured by name, else of the rule matching it, else the default ones
+         */
+        LoggerSettings settingsFor(String name) {
+            LoggerSettings settings = loggers.get(name);
+            if (settings == null) {
+                settings = rules.match(name);
+            }
+            return settings != null ? settings : LoggerSettings.DEFAULT;
+        }
+    }
+
+    /**
+     * Stops the archive compressions left once the context stopped its appenders, and the loader from reloading the
+     * configuration, when the context is reset or stopped.
+     */
+    private final class ContextListener implements LoggerContextListener {
+
+        @Override
+        public boolean isResetResistant() {
+            return false;
+        }
+
+        @Override
+        public void onStart(LoggerContext context) {
+        }
+
+        @Override
+        public void onReset(LoggerContext context) {
+            final List<ArchiveCompression> remaining = new ArrayList<>();
+            synchronized (compressions) {
+                for (List<ArchiveCompression> appenderCompressions : compressions.values()) {
+                    remaining.addAll(appenderCompressions);
+                }
+                compressions.clear();
+            }
+            for (ArchiveCompression compression : remaining) {
+                compression.stop();
+            }
+            unwatchLoader();
+        }
+
+        @Override
+        public void onStop(LoggerContext context) {
+        }
+
+        @Override
+        public void onLevelChange(Logger logger, Level level) {
+        }
+    }
+
+    /**
+     * The levels and caller data policies given to the loggers by a configuration not built yet, resolved from the
+     * logback subtree alone. Invalid settings are ignored here, and reported when building the configuration.
+     */
+    private static final class ConfiguredLoggers implements StartupBuffer.Loggers {
+
+        private final Map<String, LoggerSettings> named = new HashMap<>();
+
+        private final LoggerRules rules = new LoggerRules(named);
+
+        private final boolean appendersNeedCallerData;
+
+        private final Map<String, Level> levels = new ConcurrentHashMap<>();
+
+        private final Map<String, Boolean> callerData = new ConcurrentHashMap<>();
+
+        ConfiguredLoggers(Config logbackConfig) {
+            boolean needsCallerData;
+            try {
+                needsCallerData = ConfigLinter.needsCallerData(logbackConfig.getObject("appenders"));
+            } catch (ConfigException e) {
+                needsCallerData = true;
+            }
+            appendersNeedCallerData = needsCallerData;
+            if (logbackConfig.hasPath("root") && logbackConfig.getValue("root") instanceof ConfigObject) {
+                add(Logger.ROOT_LOGGER_NAME, logbackConfig.getConfig("root"));
+            }
+            if (logbackConfig.hasPath("loggers") && logbackConfig.getValue("loggers") instanceof ConfigObject) {
+                Config loggerConfigs = logbackConfig.getConfig("loggers");
+                for (Entry<String, ConfigValue> entry : loggerConfigs.root().entrySet()) {
+                    if (entry.getValue() instanceof ConfigObject) {
+                        add(entry.getKey(), loggerConfigs.getConfig("\"" + entry.getKey() + "\""));
                     }
-                    List<File> filesToWatch = configurationWatchList.getCopyOfFileWatchList();
-                    if (filesToWatch == null || filesToWatch.isEmpty()) {
-                        addInfo("Empty watch file list. Disabling ");
-                        return;
+                }
+            }
+        }
+
+        private void add(String name, Config config) {
+            final LoggerSettings settings = new LoggerSettings();
+            try {
+                if (config.hasPath("level")) {
+                    String levelName = config.getString("level");
+                    if (!levelName.equalsIgnoreCase("NULL") && !levelName.equalsIgnoreCase("INHERITED")) {
+                        settings.level = Level.toLevel(levelName);
                     }
-                    if (!configurationWatchList.changeDetected()) {
-                        return;
+                }
+                if (config.hasPath("caller-data")) {
+                    settings.callerData = CallerDataPolicy.parse(config.getString("caller-data"));
+                }
+            } catch (ConfigException | IllegalArgumentException e) {
+                // reported when building the configuration
+            }
+            if (LoggerRules.isPattern(name)) {
+                rules.add(name, settings);
+            } else {
+                named.put(name, settings);
+            }
+        }
+
+        @Override
+        public Level levelOf(String name) {
+            return levels.computeIfAbsent(name, n -> {
+                for (String current = n; ; current = parent(current)) {
+                    LoggerSettings settings = settingsFor(current);
+                    if (settings != null && settings.level != null) {
+                        return settings.level;
+                    } else if (Logger.ROOT_LOGGER_NAME.equals(current)) {
+                        // the level of an unconfigured root logger
+                        return Level.DEBUG;
                     }
-                    loggerContext.reset();
-                    configure(loggerContext);
-                };
+                }
+            });
+        }
+
+        @Override
+        public boolean needsCallerData(String name) {
+            if (appendersNeedCallerData) {
+                return true;
+            }
+            return callerData.computeIfAbsent(name, n -> {
+                for (String current = n; ; current = parent(current)) {
+                    LoggerSettings settings = settingsFor(current);
+                    if (settings != null && settings.callerData != null) {
+                        return settings.callerData != CallerDataPolicy.NEVER;
+                    } else if (Logger.ROOT_LOGGER_NAME.equals(current)) {
+                        return false;
+                    }
+                }
+            });
+        }
+
+        private LoggerSettings settingsFor(String name) {
+            LoggerSettings settings = named.get(name);
+            return settings != null ? settings : rules.match(name);
+        }
+
+        private static String parent(String name) {
+            int dot = Math.max(name.lastIndexOf('.'), name.lastIndexOf('$'));
+            return dot > 0 ? name.substring(0, dot) : Logger.ROOT_LOGGER_NAME;
+        }
+    }
+
+    /**
+     * Counts the errors reported by the thread building a configuration, leaving out the ones of the running appenders
+     * reported meanwhile by the other threads.
+     */
+    private static final class ErrorCounter implements StatusListener {
+
+        private final Thread builder = Thread.currentThread();
+
+        volatile int count;
 
-                loggerContext.putObject(CoreConstants.RECONFIGURE_ON_CHANGE_TASK, rocTask);
-                loggerContext.addScheduledFuture(loggerContext.getScheduledExecutorService().
-                        scheduleAtFixedRate(rocTask, delay, delay, TimeUnit.MILLISECONDS));
+        @Override
+        public void addStatusEvent(Status status) {
+            if (status.getLevel() == Status.ERROR && Thread.currentThread() == builder) {
+                count++;
             }
         }
     }
@@ -0,0 +1,351 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueType;
+
+import ch.qos.logback.classic.Logger;
+
+/**
+ * Flags the known expensive constructs of a logging configuration, walking the
+ * same tree as {@link ConfigConfigurator} without instantiating anything.
+ *
+ * <p>
+ * Each finding comes with an estimated cost of the construct per event,
+ * relative to formatting a plain pattern to a file (e.g. {@code 20} for twenty
+ * times that). The estimates only rank the findings, actual costs depend on
+ * the platform and the load.
+ *
+ * <p>
+ * The linter runs when configuring if {@code lint} is set to {@code warn} or
+ * {@code strict} in the logback subtree, or by the {@value #LINT_PROPERTY}
+ * system property, which takes precedence. Findings are reported as warnings,
+ * or in strict mode as errors, the configuration then not being applied. It
+ * can also be run on its own, e.g. in CI:
+ *
+ * <pre>
+ * ConfigLinter [--strict]
+ * </pre>
+ *
+ * The configuration is loaded as by {@link ConfigConfigurator}, and the exit
+ * status is {@code 1} in strict mode if anything is found.
+ */
+public class ConfigLinter {
+
+	static final String LINT_PROPERTY = "logback-config.lint";
+
+	/**
+	 * How the linter runs when configuring.
+	 */
+	enum Mode {
+		OFF, WARN, STRICT
+	}
+
+	/**
+	 * Conversion words of patterns needing the caller data.
+	 */
+	private static final Pattern CALLER_DATA_CONVERSION = Pattern
+			.compile("(?<!%)%[-.0-9]*(caller|class|method|line|file|C|M|L|F)(?![A-Za-z])");
+
+	private static final String ASYNC_APPENDER = "ch.qos.logback.core.AsyncAppenderBase";
+
+	private static final String SOCKET_APPENDER = "ch.qos.logback.core.net.AbstractSocketAppender";
+
+	private static final String FILE_APPENDER = "ch.qos.logback.core.FileAppender";
+
+	/**
+	 * The default queue size of logback async appenders.
+	 */
+	private static final int DEFAULT_QUEUE_SIZE = 256;
+
+	/**
+	 * Appenders performing a network or database round trip in the logging
+	 * thread, with their estimated cost.
+	 */
+	private static final String[][] SYNCHRONOUS_APPENDERS = {
+			{ "ch.qos.logback.core.db.DBAppenderBase", "100", "inserts every event in the database" },
+			{ "ch.qos.logback.core.net.SMTPAppenderBase", "100", "sends an email on every triggering event" },
+			{ "ch.qos.logback.core.net.SyslogAppenderBase", "5", "sends a datagram for every event" } };
+
+	private final List<Finding> findings = new ArrayList<>();
+
+	private Config appenderConfigs;
+
+	/**
+	 * An expensive construct of the configuration.
+	 */
+	public static final class Finding {
+
+		private final String path;
+
+		private final int cost;
+
+		private final String message;
+
+		Finding(String path, int cost, String message) {
+			this.path = path;
+			this.cost = cost;
+			this.message = message;
+		}
+
+		/**
+		 * @return the path of the construct in the logback subtree
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return the estimated cost per event, relative to formatting a plain
+		 *         pattern to a file
+		 */
+		public int getCost() {
+			return cost;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s (estimated cost x%d)", path, message, cost);
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean strict = args.length == 1 && "--strict".equals(args[0]);
+		if (args.length > 1 || args.length == 1 && !strict) {
+			System.err.println("Usage: " + ConfigLinter.class.getName() + " [--strict]");
+			System.exit(1);
+		}
+
+		List<Finding> findings;
+		try {
+			findings = new ConfigLinter().lint(ConfigConfigurator.discoverLoader().load());
+		} catch (ConfigException e) {
+			System.err.println("Unable to lint the logging configuration: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		for (Finding finding : findings) {
+			System.out.println((strict ? "ERROR: " : "WARN: ") + finding);
+		}
+		if (strict && !findings.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param logbackConfig the logback subtree
+	 * @return the mode set by the system property, else by the configuration
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	static Mode mode(Config logbackConfig) {
+		String mode = System.getProperty(LINT_PROPERTY);
+		if (mode == null) {
+			mode = logbackConfig.hasPath("lint") ? logbackConfig.getString("lint") : "off";
+		}
+		try {
+			return Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown lint mode " + mode + ", expected off, warn or strict");
+		}
+	}
+
+	/**
+	 * Lints the configuration.
+	 *
+	 * @param config the TS-config
+	 * @return the findings, the most expensive first
+	 * @throws ConfigException if the configuration is invalid
+	 */
+	public List<Finding> lint(Config config) {
+		findings.clear();
+
+		final Config logbackConfig = config.getConfig(config.getString("logback-root"));
+		appenderConfigs = logbackConfig.getConfig("appenders");
+		for (Entry<String, ConfigValue> entry : appenderConfigs.root().entrySet()) {
+			if (entry.getValue() instanceof ConfigObject) {
+				appender(path("appenders", entry.getKey()), (ConfigObject) entry.getValue());
+			}
+		}
+
+		if (logbackConfig.hasPath("root") && logbackConfig.getValue("root") instanceof ConfigObject) {
+			logger(Logger.ROOT_LOGGER_NAME, "root", logbackConfig.getConfig("root"));
+		}
+		Config loggerConfigs = logbackConfig.getConfig("loggers");
+		for (Entry<String, ConfigValue> entry : loggerConfigs.root().entrySet()) {
+			if (entry.getValue() instanceof ConfigObject) {
+				logger(entry.getKey(), path("loggers", entry.getKey()), loggerConfigs.getConfig(quote(entry.getKey())));
+			}
+		}
+
+		List<Finding> result = new ArrayList<>(findings);
+		Collections.sort(result, Comparator.comparingInt(Finding::getCost).reversed());
+		return result;
+	}
+
+	/**
+	 * Flags the expensive settings of the appender, and of the objects it
+	 * configures (encoders, layouts, nested appenders, ...).
+	 */
+	private void appender(String path, ConfigObject object) {
+		Config config = object.toConfig();
+		String className = config.hasPath("class") ? config.getString("class") : null;
+		if (className != null && extendsClass(className, ASYNC_APPENDER)) {
+			if (config.hasPath("queue-size") && config.getInt("queue-size") < DEFAULT_QUEUE_SIZE) {
+				findings.add(new Finding(path + ".queue-size", 10, "an async queue of " + config.getInt("queue-size")
+						+ " events fills up on bursts, making the logging threads wait or the events be discarded"));
+			}
+			if (config.hasPath("include-caller-data") && config.getBoolean("include-caller-data")) {
+				findings.add(new Finding(path + ".include-caller-data", 20,
+						"the caller data of every event is captured in the logging thread"));
+			}
+		}
+		if (className != null && extendsClass(className, FILE_APPENDER) && config.hasPath("prudent")
+				&& config.getBoolean("prudent")) {
+			findings.add(new Finding(path + ".prudent", 10, "the file is locked for every event"));
+		}
+
+		for (Entry<String, ConfigValue> entry : object.entrySet()) {
+			String key = entry.getKey();
+			ConfigValue value = entry.getValue();
+			if (value instanceof ConfigObject) {
+				appender(path(path, key), (ConfigObject) value);
+			} else if ("pattern".equals(key) && value.valueType() == ConfigValueType.STRING) {
+				Matcher matcher = CALLER_DATA_CONVERSION.matcher((String) value.unwrapped());
+				if (matcher.find()) {
+					findings.add(new Finding(path + ".pattern", 20, "%" + matcher.group(1)
+							+ " needs the caller data, captured from a stack trace for every event"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param object the configuration of appenders, or of an appender
+	 * @return whether a pattern or an async appender of the configuration needs
+	 *         the caller data of the events
+	 */
+	static boolean needsCallerData(ConfigObject object) {
+		for (Entry<String, ConfigValue> entry : object.entrySet()) {
+			String key = entry.getKey();
+			ConfigValue value = entry.getValue();
+			if (value instanceof ConfigObject) {
+				if (needsCallerData((ConfigObject) value)) {
+					return true;
+				}
+			} else if ("pattern".equals(key) && value.valueType() == ConfigValueType.STRING) {
+				if (CALLER_DATA_CONVERSION.matcher((String) value.unwrapped()).find()) {
+					return true;
+				}
+			} else if ("include-caller-data".equals(key) && "true".equals(String.valueOf(value.unwrapped()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Flags the synchronous network appenders the logger refers to, and the
+	 * caller data captured for every event of the root logger.
+	 */
+	private void logger(String name, String path, Config config) {
+		if (Logger.ROOT_LOGGER_NAME.equals(name) && config.hasPath("caller-data")
+				&& isAlways(config.getString("caller-data"))) {
+			findings.add(new Finding(path + ".caller-data", 20,
+					"the caller data of every event is captured, unless a logger overrides it"));
+		}
+		if (!config.hasPath("appenders")) {
+			return;
+		}
+		for (String appenderRef : config.getStringList("appenders")) {
+			if (!appenderConfigs.hasPath(quote(appenderRef))
+					|| !appenderConfigs.getConfig(quote(appenderRef)).hasPath("class")) {
+				continue;
+			}
+			Config appenderConfig = appenderConfigs.getConfig(quote(appenderRef));
+			String className = appenderConfig.getString("class");
+			for (String[] appender : SYNCHRONOUS_APPENDERS) {
+				if (extendsClass(className, appender[0])) {
+					findings.add(new Finding(path + ".appenders", Integer.parseInt(appender[1]),
+							appenderRef + " " + appender[2] + " in the logging thread, wrap it in an async appender"));
+				}
+			}
+			if (extendsClass(className, SOCKET_APPENDER) && appenderConfig.hasPath("queue-size")
+					&& appenderConfig.getInt("queue-size") == 0) {
+				findings.add(new Finding(path + ".appenders", 100,
+						appenderRef + " sends every event in the logging thread with queue-size = 0"));
+			}
+		}
+	}
+
+	/**
+	 * @return whether the class is or extends the named one, comparing names
+	 *         only if the class cannot be loaded
+	 */
+	private static boolean extendsClass(String className, String superClassName) {
+		if (className.equals(superClassName)) {
+			return true;
+		}
+		try {
+			for (Class<?> clazz = Class.forName(className, false, ConfigLinter.class.getClassLoader()); clazz != null;
+					clazz = clazz.getSuperclass()) {
+				if (clazz.getName().equals(superClassName)) {
+					return true;
+				}
+			}
+		} catch (ClassNotFoundException | LinkageError e) {
+			// reported when configuring
+		}
+		return false;
+	}
+
+	private static boolean isAlways(String callerData) {
+		try {
+			return CallerDataPolicy.parse(callerData) == CallerDataPolicy.ALWAYS;
+		} catch (IllegalArgumentException e) {
+			// reported when configuring
+			return false;
+		}
+	}
+
+	private static String path(String parent, String key) {
+		return parent + "." + ConfigUtil.joinPath(key);
+	}
+
+	private static String quote(String key) {
+		return "\"" + key + "\"";
+	}
+
+}
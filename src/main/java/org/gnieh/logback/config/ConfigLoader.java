@@ -18,6 +18,7 @@
 package org.gnieh.logback.config;
 
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 
 /**
  * Typesafe config loader interface.
@@ -25,4 +26,31 @@ import com.typesafe.config.Config;
 @FunctionalInterface
 public interface ConfigLoader {
     Config load() throws Exception;
+
+    /**
+     * Called before the configuration is loaded again. By default, invalidates the caches of {@link ConfigFactory}, so
+     * that {@link ConfigFactory#load()} sees the modified files.
+     */
+    default void invalidateCaches() {
+        ConfigFactory.invalidateCaches();
+    }
+
+    /**
+     * Called once the configuration is first loaded, whether it succeeded or not. Loaders detecting changes by themselves
+     * (e.g. from a remote server) call the listener, from any thread, to have the configuration loaded again. The listener
+     * is added once per logger context. By default, does nothing, changes being detected by watching files.
+     *
+     * @param listener reloads the configuration
+     */
+    default void watch(Runnable listener) {
+    }
+
+    /**
+     * Called once the logger context the listener was added for is reset or stopped, the listener being removed. Loaders
+     * stop detecting changes once they have no listener left. By default, does nothing.
+     *
+     * @param listener the listener given to {@link #watch(Runnable)}
+     */
+    default void unwatch(Runnable listener) {
+    }
 }
@@ -8,18 +8,18 @@ import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
-import ch.qos.logback.core.subst.NodeToStringTransformer;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigMemorySize;
 
 import ch.qos.logback.core.Context;
 import ch.qos.logback.core.CoreConstants;
-import ch.qos.logback.core.joran.util.beans.BeanDescription;
 import ch.qos.logback.core.joran.util.beans.BeanDescriptionCache;
 import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.spi.PropertyContainer;
 import ch.qos.logback.core.util.PropertySetterException;
 
 /**
@@ -42,7 +42,7 @@ import ch.qos.logback.core.util.PropertySetterException;
  * The following code:
  *
  * <pre>
- * ConfigPropertySetter ps = new ConfigPropertySetter(beanCache, obj);
+ * ConfigPropertySetter ps = new ConfigPropertySetter(obj);
  * ps.setProperty(&quot;first-name&quot;, config);
  * ps.setProperty(&quot;age&quot;, config);
  * ps.setProperty(&quot;male&quot;, config);
@@ -62,14 +62,65 @@ public class ConfigPropertySetter extends ContextAwareBase {
 
 	private static final Class<?>[] STRING_CLASS_PARAMETER = new Class[] { String.class };
 
+	/**
+	 * The static {@code valueOf(String)} method of each class, looked up once per process.
+	 */
+	private static final ClassValue<Optional<Method>> VALUE_OF_METHODS = new ClassValue<Optional<Method>>() {
+		@Override
+		protected Optional<Method> computeValue(Class<?> type) {
+			try {
+				Method valueOfMethod = type.getMethod(CoreConstants.VALUE_OF, STRING_CLASS_PARAMETER);
+				if (Modifier.isStatic(valueOfMethod.getModifiers())) {
+					return Optional.of(valueOfMethod);
+				}
+			} catch (SecurityException e) {
+				// nop
+			} catch (NoSuchMethodException e) {
+				// nop
+			}
+			return Optional.empty();
+		}
+	};
+
 	private final Object obj;
 	private final Class<?> objClass;
-	private final BeanDescription beanDescription;
+	private final BeanMetadata metadata;
 
-	public ConfigPropertySetter(BeanDescriptionCache beanDescriptionCache, Object obj) {
+	private PropertyContainer localProperties;
+
+	public ConfigPropertySetter(Object obj) {
 		this.obj = obj;
 		this.objClass = obj.getClass();
-		this.beanDescription = beanDescriptionCache.getBeanDescription(objClass);
+		this.metadata = BeanMetadata.of(objClass);
+	}
+
+	/**
+	 * @deprecated bean descriptions are cached for the whole process, use
+	 *             {@link #ConfigPropertySetter(Object)}
+	 */
+	@Deprecated
+	public ConfigPropertySetter(BeanDescriptionCache beanDescriptionCache, Object obj) {
+		this(obj);
+	}
+
+	/**
+	 * Also reports the statuses of the introspection of the object class to the
+	 * context.
+	 */
+	@Override
+	public void setContext(Context context) {
+		super.setContext(context);
+		metadata.reportTo(context);
+	}
+
+	/**
+	 * Assigns properties which are looked up, after the context ones, when
+	 * substituting variables in string values.
+	 *
+	 * @param localProperties the local properties, may be {@code null}
+	 */
+	public void setLocalProperties(PropertyContainer localProperties) {
+		this.localProperties = localProperties;
 	}
 
 	/**
@@ -85,11 +136,12 @@ public class ConfigPropertySetter extends ContextAwareBase {
 			return;
 		}
 
-		String propertyName = NameUtils.toLowerCamelCase(key);
-
 		switch (config.getValue(key).valueType()) {
 		case LIST: {
-			Method adder = findAdderMethod(singularize(propertyName));
+			Method adder = metadata.getAdder(key);
+			if (adder == null) {
+				adder = findAdderMethod(singularize(NameUtils.toLowerCamelCase(key)));
+			}
 			if (adder == null) {
 				addWarn("No adder for property [" + key + "] in " + objClass.getName() + ".");
 			} else {
@@ -102,12 +154,15 @@ public class ConfigPropertySetter extends ContextAwareBase {
 			break;
 		}
 		default: {
-			Method setter = findSetterMethod(propertyName);
+			Method setter = metadata.getSetter(key);
+			if (setter == null) {
+				setter = findSetterMethod(NameUtils.toLowerCamelCase(key));
+			}
 			if (setter == null) {
 				addWarn("No setter for property [" + key + "] in " + objClass.getName() + ".");
 			} else {
 				try {
-					setProperty(setter, key, config, context);
+					setProperty(setter, key, config, context, appendersCache);
 				} catch (PropertySetterException ex) {
 					addWarn("Failed to set property [" + key + "] to value \"" + config.getValue(key) + "\". ", ex);
 				}
@@ -123,7 +178,7 @@ public class ConfigPropertySetter extends ContextAwareBase {
 	 * constructed object.
 	 */
 	public void setRawProperty(String propertyName, Object complexProperty) {
-		Method setter = findSetterMethod(propertyName);
+		Method setter = metadata.getSetter(propertyName);
 
 		if (setter == null) {
 			addWarn("Not setter method for property [" + propertyName + "] in " + obj.getClass().getName());
@@ -176,15 +231,16 @@ public class ConfigPropertySetter extends ContextAwareBase {
 	}
 
 	private Method findSetterMethod(String propertyName) {
-		return beanDescription.getSetter(propertyName);
+		return metadata.getDescription().getSetter(propertyName);
 	}
 
 	private Method findAdderMethod(String propertyName) {
-		return beanDescription.getAdder(propertyName);
+		return metadata.getDescription().getAdder(propertyName);
 	}
 
 	@SuppressWarnings("unchecked")
-	private void setProperty(Method setter, String name, Config config, Context context) throws PropertySetterException {
+	private void setProperty(Method setter, String name, Config config, Context context,
+			ConfigAppendersCache appendersCache) throws PropertySetterException {
 		Class<?>[] paramTypes = setter.getParameterTypes();
 
 		final Object arg;
@@ -194,7 +250,7 @@ public class ConfigPropertySetter extends ContextAwareBase {
 			Class<?> type = paramTypes[0];
 
 			if (String.class.isAssignableFrom(type)) {
-				arg = NodeToStringTransformer.substituteVariable(config.getString(name), context, null);
+				arg = StringTemplate.substitute(config.getString(name), context, localProperties);
 			} else if (Integer.TYPE.isAssignableFrom(type)) {
 				arg = new Integer(config.getInt(name));
 			} else if (Long.TYPE.isAssignableFrom(type)) {
@@ -212,14 +268,16 @@ public class ConfigPropertySetter extends ContextAwareBase {
 			} else if (ConfigMemorySize.class.isAssignableFrom(type)) {
 				arg = config.getMemorySize(name);
 			} else if (type.isEnum()) {
-				final String subst = NodeToStringTransformer.substituteVariable(config.getString(name), context, null);
+				final String subst = StringTemplate.substitute(config.getString(name), context, localProperties);
 				arg = convertToEnum(subst, (Class<? extends Enum<?>>) type);
 			} else if (followsTheValueOfConvention(type)) {
-				final String subst = NodeToStringTransformer.substituteVariable(config.getString(name), context, null);
+				final String subst = StringTemplate.substitute(config.getString(name), context, localProperties);
 				arg = convertByValueOfMethod(type, subst);
 			} else if (isOfTypeCharset(type)) {
-				final String subst = NodeToStringTransformer.substituteVariable(config.getString(name), context, null);
+				final String subst = StringTemplate.substitute(config.getString(name), context, localProperties);
 				arg = convertToCharset(subst);
+			} else if (Appender.class.isAssignableFrom(type)) {
+				arg = appendersCache.getAppender(config.getString(name));
 			} else {
 				arg = null;
 			}
@@ -252,7 +310,7 @@ public class ConfigPropertySetter extends ContextAwareBase {
 				final List<String> strings = config.getStringList(name);
 				final List<String> result = new ArrayList<>(strings.size());
 				for(String s : strings) {
-					result.add(NodeToStringTransformer.substituteVariable(s, context, null));
+					result.add(StringTemplate.substitute(s, context, localProperties));
 				}
 				arg = result;
 			} else if (Integer.TYPE.isAssignableFrom(type)) {
@@ -275,7 +333,7 @@ public class ConfigPropertySetter extends ContextAwareBase {
 				final List<String> strings = config.getStringList(name);
 				final List<Object> result = new ArrayList<>(strings.size());
 				for(String s : strings) {
-					final String subst = NodeToStringTransformer.substituteVariable(s, context, null);
+					final String subst = StringTemplate.substitute(s, context, localProperties);
 					result.add(convertToEnum(subst, (Class<? extends Enum<?>>) type));
 				}
 				arg = result;
@@ -283,7 +341,7 @@ public class ConfigPropertySetter extends ContextAwareBase {
 				final List<String> strings = config.getStringList(name);
 				final List<Object> result = new ArrayList<>(strings.size());
 				for(String s : strings) {
-					final String subst = NodeToStringTransformer.substituteVariable(s, context, null);
+					final String subst = StringTemplate.substitute(s, context, localProperties);
 					result.add(convertByValueOfMethod(type, subst));
 				}
 				arg = result;
@@ -291,7 +349,7 @@ public class ConfigPropertySetter extends ContextAwareBase {
 				final List<String> strings = config.getStringList(name);
 				final List<Object> result = new ArrayList<>(strings.size());
 				for(String s : strings) {
-					final String subst = NodeToStringTransformer.substituteVariable(s, context, null);
+					final String subst = StringTemplate.substitute(s, context, localProperties);
 					result.add(convertToCharset(subst));
 				}
 				arg = result;
@@ -342,23 +400,12 @@ public class ConfigPropertySetter extends ContextAwareBase {
 	}
 
 	private boolean followsTheValueOfConvention(Class<?> parameterClass) {
-		try {
-			Method valueOfMethod = parameterClass.getMethod(CoreConstants.VALUE_OF, STRING_CLASS_PARAMETER);
-			int mod = valueOfMethod.getModifiers();
-			if (Modifier.isStatic(mod)) {
-				return true;
-			}
-		} catch (SecurityException e) {
-			// nop
-		} catch (NoSuchMethodException e) {
-			// nop
-		}
-		return false;
+		return VALUE_OF_METHODS.get(parameterClass).isPresent();
 	}
 
 	private Object convertByValueOfMethod(Class<?> type, String val) {
 		try {
-			Method valueOfMethod = type.getMethod(CoreConstants.VALUE_OF, STRING_CLASS_PARAMETER);
+			Method valueOfMethod = VALUE_OF_METHODS.get(type).get();
 			return valueOfMethod.invoke(null, val);
 		} catch (Exception e) {
 			addError("Failed to invoke " + CoreConstants.VALUE_OF + "{} method in class [" + type.getName()
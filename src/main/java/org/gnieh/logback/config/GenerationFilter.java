@@ -0,0 +1,113 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.filter.Filter;
+import ch.qos.logback.core.spi.FilterReply;
+
+/**
+ * Assigns the events to the configuration of their appenders while a new one is
+ * swapped in, installed as the first filter of the configured appenders.
+ *
+ * <p>
+ * The loggers are updated one after the other, and an event logged meanwhile
+ * may meet the previous appenders of a logger and the new ones of its
+ * ancestor, or both on the same logger. Every event is therefore assigned to
+ * one configuration by its timestamp, against the instant of the switch: the
+ * earlier ones are only appended by the previous appenders, the later ones by
+ * the new appenders. The switch happens in one step, once the new appenders
+ * are attached alongside the previous ones.
+ *
+ * <p>
+ * The previous appenders are detached from the loggers one after the other
+ * too, after a grace period, and the new ones only accept the earlier events
+ * once every logger is detached. An earlier event still on its way up the
+ * loggers past the grace period may therefore meet only the new appenders of
+ * a detached logger, and not be appended there. Accepting it instead would
+ * append it twice when the same event met the previous appenders of another
+ * logger first.
+ */
+final class GenerationFilter extends Filter<ILoggingEvent> {
+
+	/**
+	 * The instant at which the events go from one configuration to the next.
+	 */
+	static final class Switch {
+
+		/** No event goes to the next configuration yet. */
+		static final long PENDING = Long.MAX_VALUE;
+
+		/** Every event goes to the next configuration. */
+		static final long DONE = Long.MIN_VALUE;
+
+		volatile long at = PENDING;
+
+	}
+
+	private static final Switch NEVER = new Switch();
+
+	private static final Switch ALWAYS = new Switch();
+
+	static {
+		ALWAYS.at = Switch.DONE;
+	}
+
+	private volatile Switch start = ALWAYS;
+
+	private volatile Switch end = NEVER;
+
+	/**
+	 * Only accept the events logged from the switch on.
+	 *
+	 * @param from the switch from the previous configuration
+	 */
+	void startAt(Switch from) {
+		start = from;
+	}
+
+	/**
+	 * Only accept the events logged before the switch.
+	 *
+	 * @param to the switch to the next configuration
+	 */
+	void endAt(Switch to) {
+		end = to;
+	}
+
+	/**
+	 * Accept every event again, once the previous configuration is detached.
+	 */
+	void started() {
+		start = ALWAYS;
+	}
+
+	/**
+	 * Accept every event again, once detached from the loggers, so that the
+	 * events still queued are appended when stopping.
+	 */
+	void ended() {
+		end = NEVER;
+	}
+
+	@Override
+	public FilterReply decide(ILoggingEvent event) {
+		long timeStamp = event.getTimeStamp();
+		return timeStamp >= start.at && timeStamp < end.at ? FilterReply.NEUTRAL : FilterReply.DENY;
+	}
+
+}
@@ -0,0 +1,421 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigParseOptions;
+
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+/**
+ * A config loader fetching the configuration from an HTTP server, and pushing
+ * its changes to the configurator.
+ *
+ * <p>
+ * The fetched document takes the place of {@code application.conf}: system
+ * properties override it, and it falls back to {@code reference.conf}. It is
+ * polled with conditional requests ({@code If-None-Match} and
+ * {@code If-Modified-Since}), so that an unchanged document is not transferred
+ * again, and the configuration is reloaded when it changed. Failed requests
+ * are retried with a jittered exponential backoff.
+ *
+ * <p>
+ * Every valid document is saved to the cache file, if any. When it exists, the
+ * first load returns the cached document without waiting for the server, which
+ * is checked right after.
+ *
+ * <p>
+ * When discovered as a service, the loader is configured by system properties:
+ * <ul>
+ * <li>{@value #URL_PROPERTY}: the document URL, mandatory;</li>
+ * <li>{@value #CACHE_FILE_PROPERTY}: the cache file, none by default;</li>
+ * <li>{@value #POLL_INTERVAL_PROPERTY}: the poll interval, 30 seconds by
+ * default.</li>
+ * </ul>
+ */
+public class HttpConfigLoader extends ContextAwareBase implements ConfigLoader {
+
+	static final String URL_PROPERTY = "logback-config.http.url";
+	static final String CACHE_FILE_PROPERTY = "logback-config.http.cache-file";
+	static final String POLL_INTERVAL_PROPERTY = "logback-config.http.poll-interval";
+
+	private final URL url;
+
+	private final File cacheFile;
+
+	private final Duration pollInterval;
+
+	private Duration timeout = Duration.ofSeconds(5);
+
+	private Duration maxBackoff = Duration.ofMinutes(5);
+
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+	private ScheduledExecutorService executor;
+
+	private ScheduledFuture<?> nextPoll;
+
+	/**
+	 * The last valid document, {@code null} until fetched or read from the cache.
+	 */
+	private String document;
+
+	private String etag;
+
+	private String lastModified;
+
+	/**
+	 * Whether the document was read from the cache, and not checked yet.
+	 */
+	private boolean fromCache;
+
+	private int failures;
+
+	private int fetchCount;
+
+	/**
+	 * Creates a loader configured by system properties.
+	 *
+	 * @throws MalformedURLException if the URL is invalid
+	 */
+	public HttpConfigLoader() throws MalformedURLException {
+		this(System.getProperty(URL_PROPERTY) == null ? null : new URL(System.getProperty(URL_PROPERTY)),
+				System.getProperty(CACHE_FILE_PROPERTY) == null ? null : new File(System.getProperty(CACHE_FILE_PROPERTY)),
+				System.getProperty(POLL_INTERVAL_PROPERTY) == null ? Duration.ofSeconds(30)
+						: ConfigFactory.systemProperties().getDuration(POLL_INTERVAL_PROPERTY));
+	}
+
+	/**
+	 * @param url          the document URL
+	 * @param cacheFile    the cache file, or {@code null} for none
+	 * @param pollInterval the interval between two checks of the document
+	 */
+	public HttpConfigLoader(URL url, File cacheFile, Duration pollInterval) {
+		this.url = url;
+		this.cacheFile = cacheFile;
+		this.pollInterval = pollInterval;
+	}
+
+	public Duration getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * The connect and read timeout of requests.
+	 */
+	public void setTimeout(Duration timeout) {
+		this.timeout = timeout;
+	}
+
+	public Duration getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * The maximum delay before retrying a failed request.
+	 */
+	public void setMaxBackoff(Duration maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	@Override
+	public synchronized Config load() throws Exception {
+		if (url == null) {
+			throw new IllegalStateException("The " + URL_PROPERTY + " system property is not set.");
+		}
+		if (document == null && !readCache()) {
+			try {
+				fetch();
+			} catch (IOException | ConfigException e) {
+				failures++;
+				throw e;
+			}
+		}
+
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		Config overrides = ConfigFactory.systemProperties();
+		Config reference = overrides
+				.withFallback(ConfigFactory.parseResources(classLoader, "reference.conf")).resolve();
+		return overrides.withFallback(parse(document)).withFallback(reference).resolve();
+	}
+
+	/**
+	 * Nothing to invalidate, the document is fetched when it changes.
+	 */
+	@Override
+	public void invalidateCaches() {
+	}
+
+	/**
+	 * Starts polling the document, the listener being called when it changed.
+	 */
+	@Override
+	public synchronized void watch(Runnable listener) {
+		listeners.add(listener);
+		if (executor == null && url != null) {
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "logback-config-http");
+				thread.setDaemon(true);
+				return thread;
+			});
+			schedule(fromCache ? 0 : nextDelay());
+		}
+	}
+
+	/**
+	 * Stops polling the document once no listener is left.
+	 */
+	@Override
+	public synchronized void unwatch(Runnable listener) {
+		listeners.remove(listener);
+		if (listeners.isEmpty()) {
+			stop();
+		}
+	}
+
+	/**
+	 * Checks the document now, e.g. when notified of a change by the server.
+	 */
+	public synchronized void refresh() {
+		if (executor != null) {
+			schedule(0);
+		}
+	}
+
+	/**
+	 * Stops polling the document.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * @return whether the document is being polled
+	 */
+	synchronized boolean isPolling() {
+		return executor != null;
+	}
+
+	/**
+	 * @return the number of documents fetched so far, not counting unchanged ones
+	 */
+	synchronized int getFetchCount() {
+		return fetchCount;
+	}
+
+	private void schedule(long delay) {
+		if (nextPoll != null) {
+			nextPoll.cancel(false);
+		}
+		nextPoll = executor.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void poll() {
+		boolean changed;
+		synchronized (this) {
+			if (executor == null) {
+				return;
+			}
+			try {
+				changed = fetch();
+				failures = 0;
+			} catch (IOException | ConfigException e) {
+				failures++;
+				addWarn("Unable to fetch the logging configuration from " + url + ". Retrying.", e);
+				changed = false;
+			}
+			schedule(nextDelay());
+		}
+		// outside of the lock, listeners load the configuration from another thread
+		if (changed) {
+			for (Runnable listener : listeners) {
+				listener.run();
+			}
+		}
+	}
+
+	/**
+	 * @return the poll interval, or the backoff delay after failed requests
+	 */
+	private long nextDelay() {
+		if (failures == 0) {
+			return pollInterval.toMillis();
+		}
+		long backoff = Math.min(maxBackoff.toMillis(), pollInterval.toMillis() << Math.min(failures - 1, 20));
+		// equal jitter, so that a fleet restarting together does not retry together
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	/**
+	 * Fetches the document if it changed.
+	 *
+	 * @return whether a new valid document was fetched
+	 * @throws IOException     if the request failed
+	 * @throws ConfigException if the document is invalid
+	 */
+	private boolean fetch() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		try {
+			connection.setConnectTimeout((int) timeout.toMillis());
+			connection.setReadTimeout((int) timeout.toMillis());
+			connection.setUseCaches(false);
+			if (document != null) {
+				if (etag != null) {
+					connection.setRequestProperty("If-None-Match", etag);
+				}
+				if (lastModified != null) {
+					connection.setRequestProperty("If-Modified-Since", lastModified);
+				}
+			}
+			int status = connection.getResponseCode();
+			fromCache = false;
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED && document != null) {
+				return false;
+			} else if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Unexpected HTTP status " + status + ".");
+			}
+
+			String fetched;
+			try (InputStream in = connection.getInputStream()) {
+				fetched = read(in);
+			}
+			// invalid documents are neither cached nor loaded
+			parse(fetched);
+			String newEtag = connection.getHeaderField("ETag");
+			String newLastModified = connection.getHeaderField("Last-Modified");
+			if (fetched.equals(document)) {
+				etag = newEtag;
+				lastModified = newLastModified;
+				return false;
+			}
+			document = fetched;
+			etag = newEtag;
+			lastModified = newLastModified;
+			fetchCount++;
+			writeCache();
+			return true;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private Config parse(String document) {
+		return ConfigFactory.parseString(document, ConfigParseOptions.defaults().setOriginDescription(url.toString()));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private File metadataFile() {
+		return new File(cacheFile.getPath() + ".properties");
+	}
+
+	/**
+	 * @return whether a valid document was read from the cache
+	 */
+	private boolean readCache() {
+		if (cacheFile == null || !cacheFile.isFile()) {
+			return false;
+		}
+		try {
+			String cached = new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8);
+			parse(cached);
+			Properties metadata = new Properties();
+			if (metadataFile().isFile()) {
+				try (InputStream in = Files.newInputStream(metadataFile().toPath())) {
+					metadata.load(in);
+				}
+			}
+			document = cached;
+			etag = metadata.getProperty("etag");
+			lastModified = metadata.getProperty("last-modified");
+			fromCache = true;
+			return true;
+		} catch (IOException | ConfigException e) {
+			addWarn("Unable to read the cached logging configuration " + cacheFile + ". Ignoring it.", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the document, then its metadata, each replacing the previous one
+	 * atomically.
+	 */
+	private void writeCache() {
+		if (cacheFile == null) {
+			return;
+		}
+		try {
+			File directory = cacheFile.getAbsoluteFile().getParentFile();
+			directory.mkdirs();
+			File temporary = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+			Files.write(temporary.toPath(), document.getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			Properties metadata = new Properties();
+			if (etag != null) {
+				metadata.setProperty("etag", etag);
+			}
+			if (lastModified != null) {
+				metadata.setProperty("last-modified", lastModified);
+			}
+			temporary = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+			try (OutputStream out = Files.newOutputStream(temporary.toPath())) {
+				metadata.store(out, url.toString());
+			}
+			Files.move(temporary.toPath(), metadataFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			addWarn("Unable to cache the logging configuration in " + cacheFile + ".", e);
+		}
+	}
+
+}
@@ -0,0 +1,700 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigValue;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.encoder.EncoderBase;
+
+/**
+ * Encodes events as JSON objects, one per line, without allocating in steady
+ * state.
+ *
+ * <p>
+ * Events are written into a byte buffer kept by each logging thread, field
+ * names being encoded once when the encoder starts, and strings, numbers and
+ * timestamps being written to the buffer directly. Messages with string,
+ * integral, boolean or character arguments are formatted in the buffer as
+ * well. Other arguments and exceptions are converted to strings first.
+ *
+ * <pre>
+ * encoder {
+ *   class = "org.gnieh.logback.config.JsonEncoder"
+ *   // the fields, in order
+ *   fields = [ timestamp, level, logger, thread, message, mdc, exception ]
+ *   field-names { timestamp = "@timestamp", message = "msg" }
+ *   // the MDC entries, all if not set
+ *   mdc-keys = [ tenant, request-id ]
+ *   mdc-names { request-id = "requestId" }
+ *   // whether MDC entries are fields of the event instead of the mdc object
+ *   flatten-mdc = false
+ *   static-fields { service = "billing" }
+ *   timestamp-format = iso-8601 // or epoch-millis
+ *   time-zone = UTC
+ * }
+ * </pre>
+ *
+ * {@link #encode(ILoggingEvent)} still returns a new array, as required by
+ * appenders. The {@link ChannelFileAppender} writes the buffer as is.
+ */
+public class JsonEncoder extends EncoderBase<ILoggingEvent> implements ReusableBufferEncoder<ILoggingEvent> {
+
+	private static final String TIMESTAMP = "timestamp";
+	private static final String LEVEL = "level";
+	private static final String LOGGER = "logger";
+	private static final String THREAD = "thread";
+	private static final String MESSAGE = "message";
+	private static final String MDC = "mdc";
+	private static final String EXCEPTION = "exception";
+
+	private static final List<String> ALL_FIELDS = Arrays.asList(TIMESTAMP, LEVEL, LOGGER, THREAD, MESSAGE, MDC,
+			EXCEPTION);
+
+	private static final String ISO_8601 = "iso-8601";
+	private static final String EPOCH_MILLIS = "epoch-millis";
+
+	private static final DateTimeFormatter HOUR_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:");
+
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private final List<String> fields = new ArrayList<>();
+
+	private Config fieldNames = ConfigFactory.empty();
+
+	private final List<String> mdcKeys = new ArrayList<>();
+
+	private Config mdcNames = ConfigFactory.empty();
+
+	private boolean flattenMdc = false;
+
+	private Config staticFields = ConfigFactory.empty();
+
+	private String timestampFormat = ISO_8601;
+
+	private String timeZone = "UTC";
+
+	/**
+	 * The fields to write, and their encoded names followed by a colon.
+	 */
+	private String[] fieldOrder;
+	private byte[][] fieldPrefixes;
+
+	private String[] selectedMdcKeys;
+	private byte[][] selectedMdcPrefixes;
+
+	/**
+	 * The encoded names of the renamed MDC entries, when all are written.
+	 */
+	private final Map<String, byte[]> mdcPrefixes = new HashMap<>();
+
+	private byte[] staticBytes;
+
+	private boolean epochMillis;
+
+	private ZoneId zone;
+
+	private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(() -> new Buffer(this));
+
+	/**
+	 * Adds a field, among {@code timestamp}, {@code level}, {@code logger},
+	 * {@code thread}, {@code message}, {@code mdc} and {@code exception}. All
+	 * are written if none is added.
+	 */
+	public void addField(String field) {
+		fields.add(field);
+	}
+
+	/**
+	 * The names under which fields are written, by field.
+	 */
+	public void setFieldNames(Config fieldNames) {
+		this.fieldNames = fieldNames;
+	}
+
+	/**
+	 * Adds an MDC entry to write. All are written if none is added.
+	 */
+	public void addMdcKey(String mdcKey) {
+		mdcKeys.add(mdcKey);
+	}
+
+	/**
+	 * The names under which MDC entries are written, by key.
+	 */
+	public void setMdcNames(Config mdcNames) {
+		this.mdcNames = mdcNames;
+	}
+
+	public boolean isFlattenMdc() {
+		return flattenMdc;
+	}
+
+	/**
+	 * Whether MDC entries are written as fields of the event instead of fields
+	 * of the {@code mdc} object.
+	 */
+	public void setFlattenMdc(boolean flattenMdc) {
+		this.flattenMdc = flattenMdc;
+	}
+
+	/**
+	 * Fields written as is in every event, after the other ones.
+	 */
+	public void setStaticFields(Config staticFields) {
+		this.staticFields = staticFields;
+	}
+
+	public String getTimestampFormat() {
+		return timestampFormat;
+	}
+
+	/**
+	 * Either {@code iso-8601} (the default) or {@code epoch-millis}.
+	 */
+	public void setTimestampFormat(String timestampFormat) {
+		this.timestampFormat = timestampFormat;
+	}
+
+	public String getTimeZone() {
+		return timeZone;
+	}
+
+	/**
+	 * The time zone of ISO 8601 timestamps, UTC by default.
+	 */
+	public void setTimeZone(String timeZone) {
+		this.timeZone = timeZone;
+	}
+
+	@Override
+	public void start() {
+		List<String> selected = fields.isEmpty() ? ALL_FIELDS : fields;
+		for (String field : selected) {
+			if (!ALL_FIELDS.contains(field)) {
+				addError("Unknown JSON field [" + field + "]. Expected one of " + ALL_FIELDS + ".");
+				return;
+			}
+		}
+		if (ISO_8601.equals(timestampFormat)) {
+			try {
+				zone = ZoneId.of(timeZone);
+			} catch (DateTimeException e) {
+				addError("Invalid time zone [" + timeZone + "].", e);
+				return;
+			}
+			epochMillis = false;
+		} else if (EPOCH_MILLIS.equals(timestampFormat)) {
+			epochMillis = true;
+		} else {
+			addError("Unknown timestamp format [" + timestampFormat + "]. Expected " + ISO_8601 + " or "
+					+ EPOCH_MILLIS + ".");
+			return;
+		}
+
+		fieldOrder = selected.toArray(new String[0]);
+		fieldPrefixes = new byte[fieldOrder.length][];
+		for (int i = 0; i < fieldOrder.length; i++) {
+			fieldPrefixes[i] = prefix(rename(fieldNames, fieldOrder[i]));
+		}
+
+		selectedMdcKeys = mdcKeys.toArray(new String[0]);
+		selectedMdcPrefixes = new byte[selectedMdcKeys.length][];
+		for (int i = 0; i < selectedMdcKeys.length; i++) {
+			selectedMdcPrefixes[i] = prefix(rename(mdcNames, selectedMdcKeys[i]));
+		}
+		mdcPrefixes.clear();
+		for (Entry<String, ConfigValue> entry : mdcNames.root().entrySet()) {
+			mdcPrefixes.put(entry.getKey(), prefix(String.valueOf(entry.getValue().unwrapped())));
+		}
+
+		Buffer statics = new Buffer(this);
+		for (Entry<String, ConfigValue> entry : staticFields.root().entrySet()) {
+			statics.writeByte(',');
+			statics.writeString(entry.getKey());
+			statics.writeByte(':');
+			byte[] value = entry.getValue().render(ConfigRenderOptions.concise()).getBytes(StandardCharsets.UTF_8);
+			statics.writeBytes(value, 0, value.length);
+		}
+		staticBytes = Arrays.copyOf(statics.bytes, statics.length);
+
+		super.start();
+	}
+
+	private static String rename(Config names, String key) {
+		ConfigValue name = names.root().get(key);
+		return name == null ? key : String.valueOf(name.unwrapped());
+	}
+
+	/**
+	 * @return the encoded name followed by a colon
+	 */
+	private byte[] prefix(String name) {
+		Buffer buffer = new Buffer(this);
+		buffer.writeString(name);
+		buffer.writeByte(':');
+		return Arrays.copyOf(buffer.bytes, buffer.length);
+	}
+
+	@Override
+	public byte[] headerBytes() {
+		return null;
+	}
+
+	@Override
+	public byte[] footerBytes() {
+		return null;
+	}
+
+	@Override
+	public byte[] encode(ILoggingEvent event) {
+		ByteBuffer encoded = encodeToBuffer(event);
+		byte[] bytes = new byte[encoded.remaining()];
+		System.arraycopy(encoded.array(), encoded.arrayOffset() + encoded.position(), bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	@Override
+	public ByteBuffer encodeToBuffer(ILoggingEvent event) {
+		Buffer buffer = buffers.get();
+		buffer.length = 0;
+		buffer.writeByte('{');
+		boolean first = true;
+		for (int i = 0; i < fieldOrder.length; i++) {
+			int start = buffer.length;
+			if (!first) {
+				buffer.writeByte(',');
+			}
+			if (writeField(buffer, fieldOrder[i], fieldPrefixes[i], event)) {
+				first = false;
+			} else {
+				// nothing to write, e.g. no exception
+				buffer.length = start;
+			}
+		}
+		if (first && staticBytes.length > 0) {
+			// skip the leading comma
+			buffer.writeBytes(staticBytes, 1, staticBytes.length - 1);
+		} else {
+			buffer.writeBytes(staticBytes, 0, staticBytes.length);
+		}
+		buffer.writeByte('}');
+		buffer.writeByte('\n');
+		return buffer.view();
+	}
+
+	/**
+	 * @return whether the field was written
+	 */
+	private boolean writeField(Buffer buffer, String field, byte[] prefix, ILoggingEvent event) {
+		switch (field) {
+		case TIMESTAMP:
+			buffer.writeBytes(prefix, 0, prefix.length);
+			if (epochMillis) {
+				buffer.writeLong(event.getTimeStamp());
+			} else {
+				buffer.writeIsoTimestamp(event.getTimeStamp(), zone);
+			}
+			return true;
+		case LEVEL:
+			buffer.writeBytes(prefix, 0, prefix.length);
+			buffer.writeString(event.getLevel().levelStr);
+			return true;
+		case LOGGER:
+			buffer.writeBytes(prefix, 0, prefix.length);
+			buffer.writeString(event.getLoggerName());
+			return true;
+		case THREAD:
+			buffer.writeBytes(prefix, 0, prefix.length);
+			buffer.writeString(event.getThreadName());
+			return true;
+		case MESSAGE:
+			buffer.writeBytes(prefix, 0, prefix.length);
+			writeMessage(buffer, event);
+			return true;
+		case MDC:
+			return writeMdc(buffer, prefix, event.getMDCPropertyMap());
+		case EXCEPTION:
+			IThrowableProxy throwable = event.getThrowableProxy();
+			if (throwable == null) {
+				return false;
+			}
+			buffer.writeBytes(prefix, 0, prefix.length);
+			buffer.writeString(ThrowableProxyUtil.asString(throwable));
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the message, formatting it as
+	 * {@link org.slf4j.helpers.MessageFormatter} does if its arguments can be
+	 * written without being converted to strings first.
+	 */
+	private static void writeMessage(Buffer buffer, ILoggingEvent event) {
+		String pattern = event.getMessage();
+		Object[] arguments = event.getArgumentArray();
+		if (pattern == null || arguments == null || arguments.length == 0) {
+			buffer.writeString(pattern);
+			return;
+		}
+		for (Object argument : arguments) {
+			if (!isDirect(argument)) {
+				buffer.writeString(event.getFormattedMessage());
+				return;
+			}
+		}
+
+		buffer.writeByte('"');
+		int i = 0;
+		int argument = 0;
+		while (i < pattern.length()) {
+			int anchor = pattern.indexOf("{}", i);
+			if (anchor < 0 || argument == arguments.length) {
+				break;
+			}
+			if (anchor > 0 && pattern.charAt(anchor - 1) == '\\') {
+				if (anchor > 1 && pattern.charAt(anchor - 2) == '\\') {
+					// escaped backslash followed by an anchor
+					buffer.writeEscaped(pattern, i, anchor - 1);
+					buffer.writeArgument(arguments[argument++]);
+					i = anchor + 2;
+				} else {
+					// escaped anchor
+					buffer.writeEscaped(pattern, i, anchor - 1);
+					buffer.writeByte('{');
+					i = anchor + 1;
+				}
+			} else {
+				buffer.writeEscaped(pattern, i, anchor);
+				buffer.writeArgument(arguments[argument++]);
+				i = anchor + 2;
+			}
+		}
+		buffer.writeEscaped(pattern, i, pattern.length());
+		buffer.writeByte('"');
+	}
+
+	private static boolean isDirect(Object argument) {
+		return argument == null || argument instanceof String || argument instanceof Integer
+				|| argument instanceof Long || argument instanceof Short || argument instanceof Byte
+				|| argument instanceof Boolean || argument instanceof Character;
+	}
+
+	/**
+	 * @return whether any entry was written
+	 */
+	private boolean writeMdc(Buffer buffer, byte[] prefix, Map<String, String> mdc) {
+		if (mdc == null || mdc.isEmpty()) {
+			return false;
+		}
+		buffer.mdcPrefix = prefix;
+		buffer.mdcEntries = 0;
+		if (selectedMdcKeys.length == 0) {
+			mdc.forEach(buffer);
+		} else {
+			for (int i = 0; i < selectedMdcKeys.length; i++) {
+				String value = mdc.get(selectedMdcKeys[i]);
+				if (value != null) {
+					buffer.startMdcEntry();
+					buffer.writeBytes(selectedMdcPrefixes[i], 0, selectedMdcPrefixes[i].length);
+					buffer.writeString(value);
+				}
+			}
+		}
+		if (buffer.mdcEntries > 0 && !flattenMdc) {
+			buffer.writeByte('}');
+		}
+		return buffer.mdcEntries > 0;
+	}
+
+	/**
+	 * The growable buffer of a thread, which writes MDC entries when given to
+	 * {@link Map#forEach(BiConsumer)}.
+	 */
+	private static final class Buffer implements BiConsumer<String, String> {
+
+		private final JsonEncoder encoder;
+
+		byte[] bytes = new byte[1024];
+
+		int length;
+
+		private ByteBuffer view = ByteBuffer.wrap(bytes);
+
+		byte[] mdcPrefix;
+
+		int mdcEntries;
+
+		/**
+		 * The start and end of the cached hour, in epoch milliseconds, the hour
+		 * being written as is.
+		 */
+		private long hourStart = Long.MAX_VALUE;
+		private long hourEnd = Long.MIN_VALUE;
+		private byte[] hour;
+		private byte[] offset;
+
+		Buffer(JsonEncoder encoder) {
+			this.encoder = encoder;
+		}
+
+		ByteBuffer view() {
+			view.clear();
+			view.limit(length);
+			return view;
+		}
+
+		private void ensure(int size) {
+			if (length + size > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + size));
+				view = ByteBuffer.wrap(bytes);
+			}
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			bytes[length++] = (byte) b;
+		}
+
+		void writeBytes(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, bytes, length, len);
+			length += len;
+		}
+
+		void writeAscii(String s) {
+			ensure(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				bytes[length++] = (byte) s.charAt(i);
+			}
+		}
+
+		void writeLong(long value) {
+			if (value == Long.MIN_VALUE) {
+				writeAscii("-9223372036854775808");
+				return;
+			}
+			ensure(20);
+			if (value < 0) {
+				bytes[length++] = '-';
+				value = -value;
+			}
+			int start = length;
+			do {
+				bytes[length++] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value > 0);
+			for (int i = start, j = length - 1; i < j; i++, j--) {
+				byte tmp = bytes[i];
+				bytes[i] = bytes[j];
+				bytes[j] = tmp;
+			}
+		}
+
+		private void writeDigits(long value, int digits) {
+			ensure(digits);
+			for (int i = length + digits - 1; i >= length; i--) {
+				bytes[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			length += digits;
+		}
+
+		void writeIsoTimestamp(long timestamp, ZoneId zone) {
+			if (timestamp < hourStart || timestamp >= hourEnd) {
+				cacheHour(timestamp, zone);
+			}
+			long delta = timestamp - hourStart;
+			writeByte('"');
+			writeBytes(hour, 0, hour.length);
+			writeDigits(delta / 60000, 2);
+			writeByte(':');
+			writeDigits(delta / 1000 % 60, 2);
+			writeByte('.');
+			writeDigits(delta % 1000, 3);
+			writeBytes(offset, 0, offset.length);
+			writeByte('"');
+		}
+
+		/**
+		 * Formats the hour of the timestamp and its offset, which only happens
+		 * once per hour.
+		 */
+		private void cacheHour(long timestamp, ZoneId zone) {
+			ZonedDateTime start = Instant.ofEpochMilli(timestamp).atZone(zone).truncatedTo(ChronoUnit.HOURS);
+			hourStart = start.toInstant().toEpochMilli();
+			hourEnd = hourStart + 3600000;
+			ZoneOffsetTransition transition = zone.getRules().nextTransition(start.toInstant());
+			if (transition != null) {
+				hourEnd = Math.min(hourEnd, transition.toEpochSecond() * 1000);
+			}
+			hour = HOUR_FORMATTER.format(start).getBytes(StandardCharsets.US_ASCII);
+			offset = start.getOffset().getId().getBytes(StandardCharsets.US_ASCII);
+		}
+
+		void writeString(String s) {
+			if (s == null) {
+				writeBytes(NULL, 0, NULL.length);
+				return;
+			}
+			writeByte('"');
+			writeEscaped(s, 0, s.length());
+			writeByte('"');
+		}
+
+		void writeArgument(Object argument) {
+			if (argument == null) {
+				writeBytes(NULL, 0, NULL.length);
+			} else if (argument instanceof String) {
+				String s = (String) argument;
+				writeEscaped(s, 0, s.length());
+			} else if (argument instanceof Boolean) {
+				byte[] b = (Boolean) argument ? TRUE : FALSE;
+				writeBytes(b, 0, b.length);
+			} else if (argument instanceof Character) {
+				writeEscaped((Character) argument);
+			} else {
+				writeLong(((Number) argument).longValue());
+			}
+		}
+
+		/**
+		 * Writes the characters as UTF-8, escaped for a JSON string.
+		 */
+		void writeEscaped(String s, int from, int to) {
+			// room for one byte per character, more is reserved when a character needs more
+			ensure(to - from);
+			for (int i = from; i < to; i++) {
+				char c = s.charAt(i);
+				if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+					// ASCII runs are copied in a tight loop
+					byte[] b = bytes;
+					int l = length;
+					b[l++] = (byte) c;
+					while (i + 1 < to && (c = s.charAt(i + 1)) >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+						b[l++] = (byte) c;
+						i++;
+					}
+					length = l;
+				} else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, s.charAt(++i));
+					ensure(4 + to - i);
+					bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+					bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+					bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+					bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+				} else {
+					ensure(6 + to - i);
+					writeEscaped(c);
+				}
+			}
+		}
+
+		private void writeEscaped(char c) {
+			ensure(6);
+			if (c < 0x80) {
+				if (c == '"' || c == '\\') {
+					bytes[length++] = '\\';
+					bytes[length++] = (byte) c;
+				} else if (c >= 0x20) {
+					bytes[length++] = (byte) c;
+				} else if (c == '\n') {
+					bytes[length++] = '\\';
+					bytes[length++] = 'n';
+				} else if (c == '\r') {
+					bytes[length++] = '\\';
+					bytes[length++] = 'r';
+				} else if (c == '\t') {
+					bytes[length++] = '\\';
+					bytes[length++] = 't';
+				} else {
+					bytes[length++] = '\\';
+					bytes[length++] = 'u';
+					bytes[length++] = '0';
+					bytes[length++] = '0';
+					bytes[length++] = HEX[c >> 4];
+					bytes[length++] = HEX[c & 0xf];
+				}
+			} else if (c < 0x800) {
+				bytes[length++] = (byte) (0xc0 | c >> 6);
+				bytes[length++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogate
+				bytes[length++] = '?';
+			} else {
+				bytes[length++] = (byte) (0xe0 | c >> 12);
+				bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+				bytes[length++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+
+		void startMdcEntry() {
+			if (mdcEntries++ == 0) {
+				if (!encoder.flattenMdc) {
+					writeBytes(mdcPrefix, 0, mdcPrefix.length);
+					writeByte('{');
+				}
+			} else {
+				writeByte(',');
+			}
+		}
+
+		@Override
+		public void accept(String key, String value) {
+			if (value == null) {
+				return;
+			}
+			startMdcEntry();
+			byte[] prefix = encoder.mdcPrefixes.get(key);
+			if (prefix != null) {
+				writeBytes(prefix, 0, prefix.length);
+			} else {
+				writeString(key);
+				writeByte(':');
+			}
+			writeString(value);
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, recorded without allocating.
+ *
+ * <p>
+ * As in HdrHistogram, values are counted in buckets covering a power of two
+ * range each, split in {@value #SUB_BUCKETS} linear sub-buckets, so that the
+ * reported values are within 1/{@value #SUB_BUCKETS} of the recorded ones
+ * whatever their magnitude. Values below {@value #SUB_BUCKETS} are exact.
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * One linear range for the exact values, then one per power of two up to
+	 * {@link Long#MAX_VALUE}.
+	 */
+	private static final int SIZE = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value the duration in nanoseconds, negative ones being recorded as
+	 *              zero
+	 */
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		// the sub-bucket includes the leading bit, hence is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return the highest value counted in the bucket at the given index
+	 */
+	static long highestValue(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Adds the recorded values to another histogram.
+	 *
+	 * @param target the histogram to add the values to
+	 */
+	void addTo(LatencyHistogram target) {
+		for (int i = 0; i < SIZE; i++) {
+			long count = counts.get(i);
+			if (count > 0) {
+				target.counts.addAndGet(i, count);
+			}
+		}
+		long value = max.get();
+		long current;
+		while (value > (current = target.max.get()) && !target.max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	long getCount() {
+		long count = 0;
+		for (int i = 0; i < SIZE; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the highest recorded value
+	 */
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the value below which the given percentage of the recorded values
+	 *         fall, or 0 if none was recorded
+	 */
+	long getValueAtPercentile(double percentile) {
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < SIZE; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+
+/**
+ * The logger settings configured for name patterns (e.g.
+ * {@code com.acme.*.dao}), applied to the loggers they match when they are
+ * first used.
+ *
+ * <p>
+ * In patterns, {@code *} matches any part of a name segment, and {@code **}
+ * any sequence of segments (e.g. {@code **.dao} matches every logger ending
+ * with {@code .dao}). A logger matched by several patterns gets the settings of
+ * the most specific one, with the most literal characters.
+ *
+ * <p>
+ * Logback does not notify logger creations, so the rules are installed as the
+ * first turbo filter of the context, which sees every logging call before the
+ * level is checked. The first call through a logger applies the rules to it and
+ * to its ancestors, later ones only look the logger up. Loggers existing when
+ * the configuration is applied are matched right away.
+ */
+final class LoggerRules extends TurboFilter {
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	/**
+	 * The loggers already matched, mapped to themselves.
+	 */
+	private final Map<Logger, Logger> matched = new ConcurrentHashMap<>();
+
+	/**
+	 * The names of the loggers configured by name, which rules do not apply to.
+	 */
+	private final Map<String, LoggerSettings> named;
+
+	/**
+	 * @param named the settings of the loggers configured by name
+	 */
+	LoggerRules(Map<String, LoggerSettings> named) {
+		this.named = named;
+	}
+
+	/**
+	 * @param name the logger name
+	 * @return whether the name is a pattern
+	 */
+	static boolean isPattern(String name) {
+		return name.indexOf('*') >= 0;
+	}
+
+	/**
+	 * Adds the settings of the loggers matched by the pattern.
+	 */
+	void add(String pattern, LoggerSettings settings) {
+		rules.add(new Rule(pattern, settings));
+		Collections.sort(rules, Comparator.comparingInt((Rule rule) -> -rule.literals)
+				.thenComparing(rule -> rule.pattern));
+	}
+
+	boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * @param name the logger name
+	 * @return the settings of the most specific rule matching the name, or
+	 *         {@code null} if none does
+	 */
+	LoggerSettings match(String name) {
+		for (Rule rule : rules) {
+			if (rule.regex.matcher(name).matches()) {
+				return rule.settings;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Marks the loggers as matched, their settings being applied with the
+	 * configuration.
+	 */
+	void matched(List<Logger> loggers) {
+		for (Logger logger : loggers) {
+			matched.put(logger, logger);
+		}
+	}
+
+	@Override
+	public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params,
+			Throwable t) {
+		if (isStarted() && !matched.containsKey(logger)) {
+			apply(logger);
+		}
+		return FilterReply.NEUTRAL;
+	}
+
+	private synchronized void apply(Logger logger) {
+		LoggerContext loggerContext = (LoggerContext) context;
+		String name = logger.getName();
+		// the ancestors created along with the logger are not used directly
+		while (logger != null && !matched.containsKey(logger)) {
+			if (!named.containsKey(name)) {
+				LoggerSettings settings = match(name);
+				if (settings != null) {
+					settings.applyTo(logger);
+				}
+			}
+			matched.put(logger, logger);
+			int dot = Math.max(name.lastIndexOf('.'), name.lastIndexOf('$'));
+			name = dot > 0 ? name.substring(0, dot) : Logger.ROOT_LOGGER_NAME;
+			logger = name.equals(logger.getName()) ? null : loggerContext.exists(name);
+		}
+	}
+
+	/**
+	 * A pattern compiled into a regular expression.
+	 */
+	private static final class Rule {
+
+		final String pattern;
+
+		final Pattern regex;
+
+		/** The number of literal characters, the more the more specific. */
+		final int literals;
+
+		final LoggerSettings settings;
+
+		Rule(String pattern, LoggerSettings settings) {
+			this.pattern = pattern;
+			this.settings = settings;
+			StringBuilder regex = new StringBuilder();
+			int literals = 0;
+			int start = 0;
+			for (int i = 0; i < pattern.length(); i++) {
+				if (pattern.charAt(i) == '*') {
+					if (i > start) {
+						regex.append(Pattern.quote(pattern.substring(start, i)));
+						literals += i - start;
+					}
+					if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+						regex.append(".*");
+						i++;
+					} else {
+						regex.append("[^.]*");
+					}
+					start = i + 1;
+				}
+			}
+			if (start < pattern.length()) {
+				regex.append(Pattern.quote(pattern.substring(start)));
+				literals += pattern.length() - start;
+			}
+			this.regex = Pattern.compile(regex.toString());
+			this.literals = literals;
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+
+/**
+ * The configured state of a logger, built before being applied so that a
+ * logger is updated in one go.
+ */
+final class LoggerSettings {
+
+	/**
+	 * The settings of loggers that are not configured.
+	 */
+	static final LoggerSettings DEFAULT = new LoggerSettings();
+
+	/**
+	 * The level, or {@code null} if inherited.
+	 */
+	Level level;
+
+	boolean additive = true;
+
+	/**
+	 * The caller data policy, or {@code null} if inherited. It is applied by the
+	 * appenders (see {@link CallerDataFilter}).
+	 */
+	CallerDataPolicy callerData;
+
+	final List<Appender<ILoggingEvent>> appenders = new ArrayList<>();
+
+	/**
+	 * Applies the settings to the logger. The configured appenders are attached
+	 * before the other ones are detached, so that the logger never goes without
+	 * appenders.
+	 *
+	 * @param logger the logger to update
+	 */
+	void applyTo(Logger logger) {
+		attachTo(logger);
+		applyLevelTo(logger);
+		detachOthersFrom(logger);
+	}
+
+	/**
+	 * Attaches the configured appenders the logger does not have yet.
+	 *
+	 * @param logger the logger to update
+	 */
+	void attachTo(Logger logger) {
+		List<Appender<ILoggingEvent>> attached = new ArrayList<>();
+		logger.iteratorForAppenders().forEachRemaining(attached::add);
+		for (Appender<ILoggingEvent> appender : appenders) {
+			if (!containsInstance(attached, appender)) {
+				logger.addAppender(appender);
+			}
+		}
+	}
+
+	/**
+	 * Sets the level and additivity of the logger.
+	 *
+	 * @param logger the logger to update
+	 */
+	void applyLevelTo(Logger logger) {
+		if (level == null && Logger.ROOT_LOGGER_NAME.equals(logger.getName())) {
+			logger.setLevel(Level.DEBUG);
+		} else {
+			logger.setLevel(level);
+		}
+		logger.setAdditive(additive);
+	}
+
+	/**
+	 * Detaches the appenders that are not configured from the logger.
+	 *
+	 * @param logger the logger to update
+	 */
+	void detachOthersFrom(Logger logger) {
+		List<Appender<ILoggingEvent>> attached = new ArrayList<>();
+		logger.iteratorForAppenders().forEachRemaining(attached::add);
+		for (Appender<ILoggingEvent> appender : attached) {
+			if (!containsInstance(appenders, appender)) {
+				logger.detachAppender(appender);
+			}
+		}
+	}
+
+	private static boolean containsInstance(List<Appender<ILoggingEvent>> appenders, Appender<ILoggingEvent> appender) {
+		for (Appender<ILoggingEvent> a : appenders) {
+			if (a == appender) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.lang.reflect.Field;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.qos.logback.core.ContextBase;
+import ch.qos.logback.core.CoreConstants;
+
+/**
+ * The settings of the scheduled executor of a context, which runs the
+ * configuration scan, the archive compression and the flush tasks.
+ *
+ * <p>
+ * Logback creates the executor of a context when first used, and offers no
+ * way to provide another one. The executor is then installed in the private
+ * field of {@link ContextBase}, under the lock guarding it.
+ */
+final class LoggingExecutor {
+
+	/**
+	 * The settings of the executor logback creates.
+	 */
+	static final LoggingExecutor DEFAULT = new LoggingExecutor(CoreConstants.SCHEDULED_EXECUTOR_POOL_SIZE, "logback-",
+			false);
+
+	private final int coreThreads;
+
+	private final String threadNamePrefix;
+
+	private final boolean virtual;
+
+	LoggingExecutor(int coreThreads, String threadNamePrefix, boolean virtual) {
+		this.coreThreads = coreThreads;
+		this.threadNamePrefix = threadNamePrefix;
+		this.virtual = virtual;
+	}
+
+	/**
+	 * @return a new executor with these settings
+	 */
+	ScheduledExecutorService create() {
+		final ThreadFactory factory;
+		if (virtual) {
+			factory = VirtualThreads.factory(threadNamePrefix);
+		} else {
+			AtomicInteger count = new AtomicInteger();
+			factory = r -> {
+				Thread thread = new Thread(r, threadNamePrefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+		return new ScheduledThreadPoolExecutor(coreThreads, factory);
+	}
+
+	/**
+	 * Replaces the executor of the context. The previous one is left running, so
+	 * that the tasks of the running configuration go on until it is replaced.
+	 *
+	 * @param context  the context
+	 * @param executor the new executor
+	 * @return the previous executor, or {@code null} if not created yet
+	 * @throws ReflectiveOperationException if the executor field cannot be
+	 *                                      accessed
+	 */
+	static ScheduledExecutorService install(ContextBase context, ScheduledExecutorService executor)
+			throws ReflectiveOperationException {
+		Field field = ContextBase.class.getDeclaredField("scheduledExecutorService");
+		field.setAccessible(true);
+		// the lock of ContextBase.getScheduledExecutorService()
+		synchronized (context) {
+			ScheduledExecutorService previous = (ScheduledExecutorService) field.get(context);
+			field.set(context, executor);
+			return previous;
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof LoggingExecutor)) {
+			return false;
+		}
+		LoggingExecutor other = (LoggingExecutor) obj;
+		return coreThreads == other.coreThreads && threadNamePrefix.equals(other.threadNamePrefix)
+				&& virtual == other.virtual;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(coreThreads, threadNamePrefix, virtual);
+	}
+
+}
@@ -0,0 +1,438 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ch.qos.logback.classic.jmx.MBeanUtil;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AsyncAppenderBase;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.EncoderBase;
+import ch.qos.logback.core.filter.Filter;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.spi.FilterReply;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.status.StatusListener;
+
+/**
+ * Wraps an appender configured with {@code metrics = true}, and measures the
+ * events it appends, the bytes it encodes, the time taken to append and the
+ * errors it reports.
+ *
+ * <p>
+ * Counters are striped, and latencies are recorded in a fixed size histogram,
+ * so that measuring neither allocates nor makes logging threads contend. The
+ * histogram is replaced every {@link #LATENCY_INTERVAL}, and the latency
+ * percentiles cover the current and the previous intervals, so that they
+ * follow the recent behavior of the appender. The metrics are published as an MBean named after the
+ * {@link ch.qos.logback.classic.jmx.JMXConfigurator} one, with an additional
+ * {@code Appender} key.
+ */
+public final class MeteredAppender extends ContextAwareBase implements Appender<ILoggingEvent>, MeteredAppenderMBean {
+
+	private static final long SAMPLE_PERIOD = 1000000000L;
+
+	/**
+	 * The duration covered by a latency histogram, in nanoseconds.
+	 */
+	static final long LATENCY_INTERVAL = 60 * 1000000000L;
+
+	/**
+	 * The appender owning each registered name, so that an appender replaced by
+	 * a reconfiguration does not unregister its successor when stopped.
+	 */
+	private static final Map<ObjectName, MeteredAppender> REGISTERED = new HashMap<>();
+
+	private final Appender<ILoggingEvent> delegate;
+
+	private final LongAdder events = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	/**
+	 * The encoded bytes, or {@code null} if the appender has no encoder.
+	 */
+	private final LongAdder bytes;
+
+	private volatile LatencyHistogram latencies = new LatencyHistogram();
+
+	private volatile LatencyHistogram previousLatencies = new LatencyHistogram();
+
+	private volatile long latencyIntervalStart = System.nanoTime();
+
+	private final StatusListener errorListener = this::countError;
+
+	private long sampleTime = System.nanoTime();
+
+	private long sampleCount;
+
+	private double eventsPerSecond;
+
+	private ObjectName objectName;
+
+	/**
+	 * Wraps the appender, which must not be started yet for the header bytes to
+	 * be counted.
+	 *
+	 * @param delegate the measured appender
+	 */
+	public MeteredAppender(Appender<ILoggingEvent> delegate) {
+		this.delegate = delegate;
+		setContext(delegate.getContext());
+		Encoder<ILoggingEvent> encoder = delegate instanceof OutputStreamAppender
+				? ((OutputStreamAppender<ILoggingEvent>) delegate).getEncoder()
+				: null;
+		if (encoder != null) {
+			bytes = new LongAdder();
+			// keeps the zero-copy path of the channel file appenders
+			((OutputStreamAppender<ILoggingEvent>) delegate).setEncoder(encoder instanceof ReusableBufferEncoder
+					? new CountingBufferEncoder((ReusableBufferEncoder<ILoggingEvent>) encoder, bytes)
+					: new CountingEncoder(encoder, bytes));
+		} else {
+			bytes = null;
+		}
+	}
+
+	/**
+	 * @return the measured appender
+	 */
+	public Appender<ILoggingEvent> getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public void doAppend(ILoggingEvent event) {
+		long start = System.nanoTime();
+		try {
+			delegate.doAppend(event);
+		} catch (RuntimeException e) {
+			errors.increment();
+			throw e;
+		} finally {
+			long end = System.nanoTime();
+			if (end - latencyIntervalStart >= LATENCY_INTERVAL) {
+				rotateLatencies(end);
+			}
+			latencies.record(end - start);
+			events.increment();
+		}
+	}
+
+	/**
+	 * Starts a new latency interval, the current one becoming the previous one
+	 * unless it ended more than an interval ago.
+	 */
+	private synchronized void rotateLatencies(long now) {
+		long elapsed = now - latencyIntervalStart;
+		if (elapsed < LATENCY_INTERVAL) {
+			return;
+		}
+		previousLatencies = elapsed < 2 * LATENCY_INTERVAL ? latencies : new LatencyHistogram();
+		latencies = new LatencyHistogram();
+		latencyIntervalStart = now;
+	}
+
+	/**
+	 * @return the latencies of the current and previous intervals
+	 */
+	private LatencyHistogram recentLatencies() {
+		long now = System.nanoTime();
+		if (now - latencyIntervalStart >= LATENCY_INTERVAL) {
+			rotateLatencies(now);
+		}
+		LatencyHistogram recent = new LatencyHistogram();
+		previousLatencies.addTo(recent);
+		latencies.addTo(recent);
+		return recent;
+	}
+
+	private void countError(Status status) {
+		if (status.getLevel() == Status.ERROR && (status.getOrigin() == delegate || status.getOrigin() == this)) {
+			errors.increment();
+		}
+	}
+
+	/**
+	 * Publishes the metrics, replacing those of any appender with the same name
+	 * in a previous configuration.
+	 *
+	 * @param contextName the context name used by the JMX configurator
+	 */
+	void register(String contextName) {
+		String name = MBeanUtil.getObjectNameFor(contextName, MeteredAppender.class) + ",Appender="
+				+ ObjectName.quote(getName());
+		ObjectName newName = MBeanUtil.string2ObjectName(context, this, name);
+		if (newName == null) {
+			return;
+		}
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		synchronized (REGISTERED) {
+			REGISTERED.put(newName, this);
+			try {
+				if (mbs.isRegistered(newName)) {
+					mbs.unregisterMBean(newName);
+				}
+				mbs.registerMBean(this, newName);
+				objectName = newName;
+			} catch (JMException e) {
+				REGISTERED.remove(newName);
+				addError("Failed to register the metrics of appender named [" + getName() + "].", e);
+			}
+		}
+	}
+
+	private void unregister() {
+		synchronized (REGISTERED) {
+			if (objectName != null && REGISTERED.remove(objectName, this)) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+				} catch (JMException e) {
+					addError("Failed to unregister the metrics of appender named [" + getName() + "].", e);
+				}
+			}
+			objectName = null;
+		}
+	}
+
+	@Override
+	public void start() {
+		context.getStatusManager().add(errorListener);
+		delegate.start();
+	}
+
+	@Override
+	public void stop() {
+		delegate.stop();
+		context.getStatusManager().remove(errorListener);
+		unregister();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return delegate.isStarted();
+	}
+
+	@Override
+	public String getName() {
+		return delegate.getName();
+	}
+
+	@Override
+	public void setName(String name) {
+		delegate.setName(name);
+	}
+
+	@Override
+	public void addFilter(Filter<ILoggingEvent> newFilter) {
+		delegate.addFilter(newFilter);
+	}
+
+	@Override
+	public void clearAllFilters() {
+		delegate.clearAllFilters();
+	}
+
+	@Override
+	public List<Filter<ILoggingEvent>> getCopyOfAttachedFiltersList() {
+		return delegate.getCopyOfAttachedFiltersList();
+	}
+
+	@Override
+	public FilterReply getFilterChainDecision(ILoggingEvent event) {
+		return delegate.getFilterChainDecision(event);
+	}
+
+	@Override
+	public String getAppenderName() {
+		return getName();
+	}
+
+	@Override
+	public long getEventCount() {
+		return events.sum();
+	}
+
+	@Override
+	public synchronized double getEventsPerSecond() {
+		long now = System.nanoTime();
+		long elapsed = now - sampleTime;
+		if (elapsed >= SAMPLE_PERIOD) {
+			long count = events.sum();
+			eventsPerSecond = (count - sampleCount) * 1e9 / elapsed;
+			sampleTime = now;
+			sampleCount = count;
+		}
+		return eventsPerSecond;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytes == null ? -1 : bytes.sum();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		if (delegate instanceof AsyncAppenderBase) {
+			return ((AsyncAppenderBase<?>) delegate).getNumberOfElementsInQueue();
+		} else if (delegate instanceof AdaptiveAsyncAppender) {
+			return ((AdaptiveAsyncAppender) delegate).getQueueDepth();
+		}
+		return -1;
+	}
+
+	@Override
+	public int getDiscardingThreshold() {
+		if (delegate instanceof AsyncAppenderBase) {
+			return ((AsyncAppenderBase<?>) delegate).getDiscardingThreshold();
+		} else if (delegate instanceof AdaptiveAsyncAppender) {
+			return ((AdaptiveAsyncAppender) delegate).getDiscardingThreshold();
+		}
+		return -1;
+	}
+
+	@Override
+	public long getDiscardedCount() {
+		return adaptive() == null ? -1 : adaptive().getDiscardedCount();
+	}
+
+	@Override
+	public int getBatchSize() {
+		return adaptive() == null ? -1 : adaptive().getBatchSize();
+	}
+
+	@Override
+	public int getWorkerCount() {
+		return adaptive() == null ? -1 : adaptive().getWorkerCount();
+	}
+
+	@Override
+	public long getEnqueueLatency99thPercentile() {
+		return adaptive() == null ? -1 : adaptive().getEnqueueLatency99thPercentile();
+	}
+
+	@Override
+	public double getDrainRate() {
+		return adaptive() == null ? -1 : adaptive().getDrainRate();
+	}
+
+	@Override
+	public long getAdjustmentCount() {
+		return adaptive() == null ? -1 : adaptive().getAdjustmentCount();
+	}
+
+	private AdaptiveAsyncAppender adaptive() {
+		return delegate instanceof AdaptiveAsyncAppender ? (AdaptiveAsyncAppender) delegate : null;
+	}
+
+	@Override
+	public long getAppendLatencyMedian() {
+		return recentLatencies().getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getAppendLatency99thPercentile() {
+		return recentLatencies().getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getAppendLatency999thPercentile() {
+		return recentLatencies().getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public long getAppendLatencyMax() {
+		return recentLatencies().getMax();
+	}
+
+	/**
+	 * Counts the bytes produced by the encoder of the appender, which may be
+	 * shared with other appenders and is thus neither started nor stopped.
+	 */
+	private static class CountingEncoder extends EncoderBase<ILoggingEvent> {
+
+		private final Encoder<ILoggingEvent> encoder;
+
+		final LongAdder bytes;
+
+		CountingEncoder(Encoder<ILoggingEvent> encoder, LongAdder bytes) {
+			this.encoder = encoder;
+			this.bytes = bytes;
+		}
+
+		private byte[] count(byte[] encoded) {
+			if (encoded != null) {
+				bytes.add(encoded.length);
+			}
+			return encoded;
+		}
+
+		@Override
+		public byte[] headerBytes() {
+			return count(encoder.headerBytes());
+		}
+
+		@Override
+		public byte[] encode(ILoggingEvent event) {
+			return count(encoder.encode(event));
+		}
+
+		@Override
+		public byte[] footerBytes() {
+			return count(encoder.footerBytes());
+		}
+	}
+
+	/**
+	 * Counts the bytes produced by an encoder reusing its buffers, without
+	 * hiding that it does.
+	 */
+	private static final class CountingBufferEncoder extends CountingEncoder
+			implements ReusableBufferEncoder<ILoggingEvent> {
+
+		private final ReusableBufferEncoder<ILoggingEvent> encoder;
+
+		CountingBufferEncoder(ReusableBufferEncoder<ILoggingEvent> encoder, LongAdder bytes) {
+			super(encoder, bytes);
+			this.encoder = encoder;
+		}
+
+		@Override
+		public ByteBuffer encodeToBuffer(ILoggingEvent event) {
+			ByteBuffer encoded = encoder.encodeToBuffer(event);
+			bytes.add(encoded.remaining());
+			return encoded;
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+/**
+ * The metrics of an appender configured with {@code metrics = true}, as
+ * published over JMX. Latencies are in nanoseconds.
+ */
+public interface MeteredAppenderMBean {
+
+	String getAppenderName();
+
+	long getEventCount();
+
+	/**
+	 * @return the events appended per second, over the last second at least
+	 */
+	double getEventsPerSecond();
+
+	/**
+	 * @return the bytes encoded by the appender, or -1 if it has no encoder
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return the errors reported by the appender
+	 */
+	long getErrorCount();
+
+	/**
+	 * @return the events waiting in the queue of an asynchronous appender, or -1
+	 *         for other appenders
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return the remaining queue capacity below which an asynchronous appender
+	 *         discards events, or -1 for other appenders
+	 */
+	int getDiscardingThreshold();
+
+	/**
+	 * The following metrics expose the adjustments of an
+	 * {@link AdaptiveAsyncAppender}, and are -1 for other appenders.
+	 *
+	 * @return the events discarded
+	 */
+	long getDiscardedCount();
+
+	/**
+	 * @return the maximal number of events a worker takes from the queue at once
+	 */
+	int getBatchSize();
+
+	int getWorkerCount();
+
+	/**
+	 * @return the 99th percentile of the enqueue latency over the last
+	 *         adjustment period
+	 */
+	long getEnqueueLatency99thPercentile();
+
+	/**
+	 * @return the events taken from the queue per second over the last
+	 *         adjustment period
+	 */
+	double getDrainRate();
+
+	/**
+	 * @return the number of adjustment periods in which a setting changed
+	 */
+	long getAdjustmentCount();
+
+	/**
+	 * The append latencies cover the last one to two minutes.
+	 *
+	 * @return the median append latency
+	 */
+	long getAppendLatencyMedian();
+
+	long getAppendLatency99thPercentile();
+
+	long getAppendLatency999thPercentile();
+
+	long getAppendLatencyMax();
+
+}
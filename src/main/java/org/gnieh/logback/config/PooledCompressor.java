@@ -0,0 +1,142 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import ch.qos.logback.core.rolling.helper.CompressionMode;
+import ch.qos.logback.core.rolling.helper.Compressor;
+import ch.qos.logback.core.util.FileUtil;
+
+/**
+ * A compressor streaming archives with a configurable compression level and
+ * buffer size, and running asynchronous compressions on a dedicated executor
+ * instead of the context one.
+ */
+final class PooledCompressor extends Compressor {
+
+	private final CompressionMode compressionMode;
+
+	private final int level;
+
+	private final int bufferSize;
+
+	private final ExecutorService executor;
+
+	PooledCompressor(CompressionMode compressionMode, int level, int bufferSize, ExecutorService executor) {
+		super(compressionMode);
+		this.compressionMode = compressionMode;
+		this.level = level;
+		this.bufferSize = bufferSize;
+		this.executor = executor;
+	}
+
+	@Override
+	public Future<?> asyncCompress(String nameOfFile2Compress, String nameOfCompressedFile, String innerEntryName) {
+		return executor.submit(() -> compress(nameOfFile2Compress, nameOfCompressedFile, innerEntryName));
+	}
+
+	@Override
+	public void compress(String nameOfFile2Compress, String nameOfCompressedFile, String innerEntryName) {
+		final String suffix;
+		switch (compressionMode) {
+		case GZ:
+			suffix = ".gz";
+			break;
+		case ZIP:
+			suffix = ".zip";
+			if (innerEntryName == null) {
+				addWarn("The innerEntryName parameter cannot be null");
+				return;
+			}
+			break;
+		default:
+			throw new UnsupportedOperationException("compress method called in NONE compression mode");
+		}
+
+		File source = new File(nameOfFile2Compress);
+		if (!source.exists()) {
+			addWarn("The file to compress named [" + nameOfFile2Compress + "] does not exist.");
+			return;
+		}
+
+		if (!nameOfCompressedFile.endsWith(suffix)) {
+			nameOfCompressedFile = nameOfCompressedFile + suffix;
+		}
+		File target = new File(nameOfCompressedFile);
+		if (target.exists()) {
+			addWarn("The target compressed file named [" + nameOfCompressedFile
+					+ "] exist already. Aborting file compression.");
+			return;
+		}
+
+		addInfo(compressionMode + " compressing [" + source + "] as [" + target + "]");
+		if (!FileUtil.createMissingParentDirectories(target)) {
+			addError("Failed to create parent directories for [" + target.getAbsolutePath() + "]");
+		}
+
+		byte[] buffer = new byte[bufferSize];
+		try (InputStream in = new FileInputStream(source); OutputStream out = open(target, innerEntryName)) {
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+		} catch (IOException e) {
+			addError("Error occurred while compressing [" + nameOfFile2Compress + "] into [" + nameOfCompressedFile
+					+ "].", e);
+			return;
+		}
+
+		if (!source.delete()) {
+			addWarn("Could not delete [" + nameOfFile2Compress + "].");
+		}
+	}
+
+	private OutputStream open(File target, String innerEntryName) throws IOException {
+		OutputStream out = new FileOutputStream(target);
+		try {
+			if (compressionMode == CompressionMode.GZ) {
+				return new GZIPOutputStream(out, bufferSize) {
+					{
+						def.setLevel(level);
+					}
+				};
+			} else {
+				ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, bufferSize));
+				zip.setLevel(level);
+				zip.putNextEntry(
+						new ZipEntry(Compressor.computeFileNameStrWithoutCompSuffix(innerEntryName, compressionMode)));
+				return zip;
+			}
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+}
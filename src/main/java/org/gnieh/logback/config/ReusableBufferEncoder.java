@@ -0,0 +1,42 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.nio.ByteBuffer;
+
+import ch.qos.logback.core.encoder.Encoder;
+
+/**
+ * An encoder able to encode events into a buffer it reuses, so that appenders
+ * can write them without copying them into a new array first.
+ *
+ * @see ChannelFileAppender
+ * @see RollingChannelFileAppender
+ */
+public interface ReusableBufferEncoder<E> extends Encoder<E> {
+
+	/**
+	 * Encodes the event into a buffer owned by the calling thread, which is only
+	 * valid until the next call from this thread.
+	 *
+	 * @param event the event to encode
+	 * @return the heap buffer, positioned at the first encoded byte and limited
+	 *         after the last one
+	 */
+	ByteBuffer encodeToBuffer(E event);
+
+}
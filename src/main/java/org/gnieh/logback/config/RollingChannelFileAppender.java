@@ -0,0 +1,380 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.typesafe.config.ConfigMemorySize;
+
+import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.TriggeringPolicy;
+import ch.qos.logback.core.status.ErrorStatus;
+import ch.qos.logback.core.util.FileUtil;
+
+/**
+ * The rolling counterpart of {@link ChannelFileAppender}, each file opened at
+ * rollover is written through a {@link java.nio.channels.FileChannel}.
+ *
+ * <p>
+ * With {@code preopen-next-file}, the file used after the next rollover is
+ * created (and preallocated) in the background under the active file name
+ * suffixed by {@value #NEXT_FILE_SUFFIX}. At rollover, it is renamed to the
+ * new active file and written through the already open channel. Both
+ * {@code preopen-next-file} and {@code preallocate} can be set in the
+ * {@code rolling-policy} block.
+ *
+ * <p>
+ * In memory mapped or preallocated mode, the active file is longer than its
+ * written content until closed, so triggering policies are given the written
+ * length instead of the file length.
+ *
+ * <p>
+ * As for the {@link ChannelFileAppender}, events encoded by a
+ * {@link ReusableBufferEncoder} are written from its buffer.
+ */
+public class RollingChannelFileAppender<E> extends RollingFileAppender<E> {
+
+	static final String NEXT_FILE_SUFFIX = ".next";
+
+	private static final Field ACTIVE_FILE_FIELD;
+
+	static {
+		Field activeFileField;
+		try {
+			activeFileField = RollingFileAppender.class.getDeclaredField("currentlyActiveFile");
+			activeFileField.setAccessible(true);
+		} catch (Exception e) {
+			// reported when starting an appender preallocating its files
+			activeFileField = null;
+		}
+		ACTIVE_FILE_FIELD = activeFileField;
+	}
+
+	private boolean memoryMapped = false;
+
+	private ConfigMemorySize regionSize = ConfigMemorySize.ofBytes(ChannelOutputStream.DEFAULT_REGION_SIZE);
+
+	private Duration forceInterval;
+
+	private ConfigMemorySize preallocate = ConfigMemorySize.ofBytes(0);
+
+	private boolean preopenNextFile = false;
+
+	private ScheduledFuture<?> forceTask;
+
+	private final AtomicReference<PreparedFile> nextFile = new AtomicReference<>();
+
+	private Future<?> preparation;
+
+	private volatile boolean closing;
+
+	/**
+	 * The active file, as seen by the triggering policy. Guarded by the lock.
+	 */
+	private File activeFile;
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Whether bytes are copied into a memory mapped region of the file instead
+	 * of being written through a direct buffer.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	public ConfigMemorySize getRegionSize() {
+		return regionSize;
+	}
+
+	/**
+	 * The size of the direct buffer, or of each mapped region in memory mapped
+	 * mode.
+	 */
+	public void setRegionSize(ConfigMemorySize regionSize) {
+		this.regionSize = regionSize;
+	}
+
+	public Duration getForceInterval() {
+		return forceInterval;
+	}
+
+	/**
+	 * The interval at which written bytes are forced to the storage device. If
+	 * not set, this is left to the operating system.
+	 */
+	public void setForceInterval(Duration forceInterval) {
+		this.forceInterval = forceInterval;
+	}
+
+	public ConfigMemorySize getPreallocate() {
+		return preallocate;
+	}
+
+	/**
+	 * The size to which new files are preallocated, so that the file system
+	 * allocates their blocks upfront. Files are truncated to their written
+	 * length when closed.
+	 */
+	public void setPreallocate(ConfigMemorySize preallocate) {
+		this.preallocate = preallocate;
+	}
+
+	public boolean isPreopenNextFile() {
+		return preopenNextFile;
+	}
+
+	/**
+	 * Whether the file used after the next rollover is created in the background
+	 * beforehand.
+	 */
+	public void setPreopenNextFile(boolean preopenNextFile) {
+		this.preopenNextFile = preopenNextFile;
+	}
+
+	@Override
+	public void start() {
+		closing = false;
+		if (isPrudent()) {
+			addError("Prudent mode is not supported by appender named [" + name + "].");
+			return;
+		}
+		if (regionSize == null || regionSize.toBytes() <= 0 || regionSize.toBytes() > Integer.MAX_VALUE) {
+			addError("Invalid region size " + regionSize + " for appender named [" + name + "].");
+			return;
+		}
+		if (preallocate == null || preallocate.toBytes() < 0) {
+			addError("Invalid preallocate size " + preallocate + " for appender named [" + name + "].");
+			return;
+		}
+		if (ACTIVE_FILE_FIELD == null && preallocate.toBytes() > 0) {
+			// the triggering policy would see the preallocated length
+			addWarn("Unable to expose the written length of the active file of appender named [" + name
+					+ "] to its triggering policy. Not preallocating files.");
+			preallocate = ConfigMemorySize.ofBytes(0);
+		}
+
+		super.start();
+
+		if (isStarted()) {
+			forceTask = ChannelOutputStream.scheduleForce(context, forceInterval, this::force);
+		}
+	}
+
+	@Override
+	public void stop() {
+		closing = true;
+		if (forceTask != null) {
+			forceTask.cancel(false);
+			forceTask = null;
+		}
+		super.stop();
+		PreparedFile prepared = nextFile.getAndSet(null);
+		if (prepared != null) {
+			prepared.discard();
+		}
+	}
+
+	@Override
+	public void openFile(String fileName) throws IOException {
+		lock.lock();
+		try {
+			File file = new File(fileName);
+			ChannelOutputStream out = takeNextFile(file);
+			if (out == null) {
+				if (!FileUtil.createMissingParentDirectories(file)) {
+					addError("Failed to create parent directories for [" + file.getAbsolutePath() + "]");
+				}
+				out = ChannelOutputStream.open(file, isAppend(), memoryMapped, (int) regionSize.toBytes(),
+						preallocate.toBytes());
+			}
+			setOutputStream(out);
+			activeFile = new WrittenLengthFile(fileName, out);
+			setActiveFile(activeFile);
+			prepareNextFile(file);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected void subAppend(E event) {
+		if (!(encoder instanceof ReusableBufferEncoder)) {
+			super.subAppend(event);
+			return;
+		}
+		TriggeringPolicy<E> triggeringPolicy = getTriggeringPolicy();
+		synchronized (triggeringPolicy) {
+			if (triggeringPolicy.isTriggeringEvent(activeFile, event)) {
+				rollover();
+			}
+		}
+		if (!isStarted()) {
+			return;
+		}
+		// encoded synchronously, the event does not need to be prepared for deferred processing
+		ByteBuffer encoded = ((ReusableBufferEncoder<E>) encoder).encodeToBuffer(event);
+		try {
+			ChannelFileAppender.writeEncoded(this, lock, encoded);
+		} catch (IOException e) {
+			started = false;
+			addStatus(new ErrorStatus("IO failure in appender", this, e));
+		}
+	}
+
+	/**
+	 * Switches to the prepared next file, if any, by renaming it to the new
+	 * active file.
+	 *
+	 * @return the stream writing to the prepared file, or {@code null} if none
+	 *         could be used
+	 */
+	private ChannelOutputStream takeNextFile(File file) {
+		if (file.exists()) {
+			// never replace existing logs, the prepared file is kept for later
+			return null;
+		}
+		PreparedFile prepared = nextFile.getAndSet(null);
+		if (prepared == null) {
+			return null;
+		}
+		try {
+			Files.move(prepared.file.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return ChannelOutputStream.fromPrepared(prepared.channel, memoryMapped, (int) regionSize.toBytes(),
+					preallocate.toBytes());
+		} catch (IOException e) {
+			addWarn("Failed to switch to prepared file [" + prepared.file + "] for appender named [" + name + "].", e);
+			prepared.discard();
+			return null;
+		}
+	}
+
+	/**
+	 * Creates and preallocates the file used after the next rollover on the
+	 * context executor, unless one is already prepared or being prepared.
+	 */
+	private void prepareNextFile(File activeFile) {
+		if (!preopenNextFile || closing || nextFile.get() != null
+				|| (preparation != null && !preparation.isDone())) {
+			return;
+		}
+		final File file = new File(activeFile.getPath() + NEXT_FILE_SUFFIX);
+		preparation = context.getScheduledExecutorService().submit(() -> {
+			try {
+				PreparedFile prepared = new PreparedFile(file,
+						ChannelOutputStream.prepare(file, memoryMapped, preallocate.toBytes()));
+				if (closing || !nextFile.compareAndSet(null, prepared)) {
+					prepared.discard();
+				}
+			} catch (IOException e) {
+				addWarn("Failed to prepare next file [" + file + "] for appender named [" + name + "].", e);
+			}
+		});
+	}
+
+	/**
+	 * Makes the triggering policy see the written length of the active file.
+	 */
+	private void setActiveFile(File file) {
+		if (ACTIVE_FILE_FIELD == null) {
+			return;
+		}
+		try {
+			ACTIVE_FILE_FIELD.set(this, file);
+		} catch (IllegalAccessException e) {
+			addWarn("Unable to set the active file of appender named [" + name + "].", e);
+		}
+	}
+
+	/**
+	 * Forces bytes written so far to the storage device.
+	 */
+	public void force() {
+		lock.lock();
+		try {
+			OutputStream out = getOutputStream();
+			if (isStarted() && out instanceof ChannelOutputStream) {
+				((ChannelOutputStream) out).force();
+			}
+		} catch (IOException e) {
+			addError("Failed to force file [" + getFile() + "] for appender named [" + name + "].", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A file whose length is the one written so far through a stream, which is
+	 * what size based triggering policies must compare to their threshold.
+	 */
+	private static final class WrittenLengthFile extends File {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient ChannelOutputStream out;
+
+		WrittenLengthFile(String fileName, ChannelOutputStream out) {
+			super(fileName);
+			this.out = out;
+		}
+
+		@Override
+		public long length() {
+			try {
+				return out.size();
+			} catch (IOException e) {
+				// the stream is closed
+				return super.length();
+			}
+		}
+	}
+
+	private static final class PreparedFile {
+
+		final File file;
+
+		final FileChannel channel;
+
+		PreparedFile(File file, FileChannel channel) {
+			this.file = file;
+			this.channel = channel;
+		}
+
+		void discard() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,452 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.PropertyContainer;
+
+/**
+ * An appender routing events to child appenders depending on the value of a
+ * discriminating key. Children are lazily created from an appender template
+ * the first time a value is encountered, and the value is available in the
+ * template under the key name (e.g. {@code file = "logs/${tenant}.log"}).
+ *
+ * <p>
+ * At most {@code max-children} children are kept open. When a new child would
+ * exceed this bound, the least recently used one is evicted and stopped.
+ * Children that did not receive any event for {@code idle-timeout} are evicted
+ * and stopped as well. An evicted child is only stopped once the events being
+ * appended to it went through. A child is created by the first thread logging
+ * with its key value, and only the events with the same value wait for it.
+ *
+ * <p>
+ * As the key value usually ends up in a file name, values containing a path
+ * separator or {@code ..} are rejected, and their events routed to the child
+ * of the default value.
+ *
+ * <pre>
+ * tenants {
+ *   class = "org.gnieh.logback.config.RoutingAppender"
+ *   key = "mdc:tenant"
+ *   default-value = "unknown"
+ *   max-children = 64
+ *   idle-timeout = 30 minutes
+ *   appender {
+ *     class = "ch.qos.logback.core.FileAppender"
+ *     file = "logs/${tenant}.log"
+ *     ...
+ *   }
+ * }
+ * </pre>
+ */
+public class RoutingAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+	private static final String MDC_PREFIX = "mdc:";
+
+	private String key;
+
+	private String keyName;
+
+	private String defaultValue = "default";
+
+	private int maxChildren = 128;
+
+	private Duration idleTimeout = Duration.ofMinutes(30);
+
+	private ChildFactory childFactory;
+
+	private ScheduledFuture<?> idleSweeper;
+
+	private volatile boolean rejectionReported;
+
+	/**
+	 * The children per key value, in access order so that the eldest entry is the
+	 * least recently used one.
+	 */
+	private final LinkedHashMap<String, Child> children = new LinkedHashMap<>(16, 0.75f, true);
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Sets the discriminating key, either {@code mdc:name} or simply
+	 * {@code name}, which both refer to the MDC entry {@code name}.
+	 */
+	public void setKey(String key) {
+		this.key = key;
+		if (key != null && key.startsWith(MDC_PREFIX)) {
+			this.keyName = key.substring(MDC_PREFIX.length());
+		} else {
+			this.keyName = key;
+		}
+	}
+
+	/**
+	 * @return the name under which the key value is exposed to the child template
+	 */
+	public String getKeyName() {
+		return keyName;
+	}
+
+	public String getDefaultValue() {
+		return defaultValue;
+	}
+
+	public void setDefaultValue(String defaultValue) {
+		this.defaultValue = defaultValue;
+	}
+
+	public int getMaxChildren() {
+		return maxChildren;
+	}
+
+	public void setMaxChildren(int maxChildren) {
+		this.maxChildren = maxChildren;
+	}
+
+	public Duration getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(Duration idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Assigns the function creating (and starting) child appenders for a key value.
+	 *
+	 * @param childFactory the child factory
+	 */
+	public void setChildFactory(ChildFactory childFactory) {
+		this.childFactory = childFactory;
+	}
+
+	@Override
+	public void start() {
+		int errors = 0;
+		if (keyName == null || keyName.isEmpty()) {
+			addError("No key set for routing appender named [" + name + "].");
+			errors++;
+		}
+		if (childFactory == null) {
+			addError("No child appender template set for routing appender named [" + name + "].");
+			errors++;
+		}
+		if (maxChildren <= 0) {
+			addError("Invalid max-children " + maxChildren + " for routing appender named [" + name + "].");
+			errors++;
+		}
+		if (errors > 0) {
+			return;
+		}
+
+		if (idleTimeout != null && !idleTimeout.isZero() && !idleTimeout.isNegative()) {
+			final long timeout = idleTimeout.toMillis();
+			final long period = Math.max(1L, timeout / 2);
+			idleSweeper = context.getScheduledExecutorService().scheduleAtFixedRate(
+					() -> evictIdle(System.currentTimeMillis() - timeout), period, period, TimeUnit.MILLISECONDS);
+			context.addScheduledFuture(idleSweeper);
+		}
+
+		super.start();
+	}
+
+	@Override
+	public void stop() {
+		if (!isStarted()) {
+			return;
+		}
+		super.stop();
+
+		if (idleSweeper != null) {
+			idleSweeper.cancel(false);
+			idleSweeper = null;
+		}
+
+		final List<Child> toStop = new ArrayList<>();
+		synchronized (children) {
+			for (Child child : children.values()) {
+				if (child.retire()) {
+					toStop.add(child);
+				}
+			}
+			children.clear();
+		}
+		for (Child child : toStop) {
+			child.stop();
+		}
+	}
+
+	@Override
+	protected void append(ILoggingEvent event) {
+		final String value = discriminate(event);
+		final long now = System.currentTimeMillis();
+
+		Child evicted = null;
+		final Child child;
+		synchronized (children) {
+			// stopped meanwhile, a child added now would never be stopped
+			if (!isStarted()) {
+				return;
+			}
+			Child existing = children.get(value);
+			if (existing == null) {
+				existing = new Child();
+				children.put(value, existing);
+				if (children.size() > maxChildren) {
+					Iterator<Child> eldest = children.values().iterator();
+					Child candidate = eldest.next();
+					eldest.remove();
+					if (candidate.retire()) {
+						evicted = candidate;
+					}
+				}
+			}
+			existing.lastAccess = now;
+			existing.users++;
+			child = existing;
+		}
+
+		if (evicted != null) {
+			evicted.stop();
+		}
+
+		try {
+			Appender<ILoggingEvent> appender = child.get(value);
+			if (appender != null) {
+				appender.doAppend(event);
+			}
+		} finally {
+			release(child);
+		}
+	}
+
+	/**
+	 * Releases a child after appending to it, and stops it if it was evicted
+	 * meanwhile.
+	 */
+	private void release(Child child) {
+		final boolean stop;
+		synchronized (children) {
+			child.users--;
+			stop = child.retired && child.users == 0;
+		}
+		if (stop) {
+			child.stop();
+		}
+	}
+
+	private String discriminate(ILoggingEvent event) {
+		Map<String, String> mdc = event.getMDCPropertyMap();
+		if (mdc != null) {
+			String value = mdc.get(keyName);
+			if (value != null) {
+				if (isSafe(value)) {
+					return value;
+				}
+				if (!rejectionReported) {
+					rejectionReported = true;
+					addWarn(String.format(
+							"Rejecting %s=%s in routing appender %s, routing its events to %s. Further rejections are not reported.",
+							keyName, value, name, defaultValue));
+				}
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * @return whether the key value cannot escape the directory of a file name
+	 *         it is part of
+	 */
+	static boolean isSafe(String value) {
+		return value.indexOf('/') < 0 && value.indexOf('\\') < 0 && value.indexOf('\0') < 0 && !value.contains("..");
+	}
+
+	private Appender<ILoggingEvent> createChild(String value) {
+		try {
+			return childFactory.create(value);
+		} catch (Exception e) {
+			addError(String.format("Unable to create child appender for %s=%s in routing appender %s.", keyName,
+					value, name), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Evicts and stops all children which did not receive any event since the
+	 * given instant.
+	 *
+	 * @param lastAccessLimit the instant (in milliseconds) before which children
+	 *                        are considered idle
+	 */
+	void evictIdle(long lastAccessLimit) {
+		List<Child> idle = Collections.emptyList();
+		synchronized (children) {
+			Iterator<Child> iterator = children.values().iterator();
+			while (iterator.hasNext()) {
+				Child child = iterator.next();
+				// children are in access order, so the first recent one ends the sweep
+				if (child.lastAccess > lastAccessLimit) {
+					break;
+				}
+				iterator.remove();
+				if (child.retire()) {
+					if (idle.isEmpty()) {
+						idle = new ArrayList<>();
+					}
+					idle.add(child);
+				}
+			}
+		}
+		for (Child child : idle) {
+			child.stop();
+		}
+	}
+
+	/**
+	 * @return the currently open child for the given key value, or {@code null}
+	 */
+	Appender<ILoggingEvent> getChild(String value) {
+		synchronized (children) {
+			Child child = children.get(value);
+			return child == null ? null : child.appender;
+		}
+	}
+
+	/**
+	 * @return the number of currently open children
+	 */
+	int getChildCount() {
+		synchronized (children) {
+			return children.size();
+		}
+	}
+
+	/**
+	 * A child appender, created on first use. The counters are guarded by the
+	 * children lock.
+	 */
+	private final class Child {
+		volatile Appender<ILoggingEvent> appender;
+		long lastAccess;
+
+		/** The number of threads appending to the child. */
+		int users;
+
+		/** Whether the child was evicted, to be stopped by its last user. */
+		boolean retired;
+
+		private boolean created;
+
+		/**
+		 * Creates the appender on first use, only holding up the events with the
+		 * same key value.
+		 *
+		 * @return the appender, or {@code null} if it could not be created
+		 */
+		synchronized Appender<ILoggingEvent> get(String value) {
+			if (!created) {
+				appender = createChild(value);
+				created = true;
+				if (appender == null) {
+					// the next event tries again
+					synchronized (children) {
+						children.remove(value, this);
+					}
+				}
+			}
+			return appender;
+		}
+
+		/**
+		 * Marks the child as evicted, once removed from the children.
+		 *
+		 * @return whether it is not in use anymore and can be stopped right away
+		 */
+		boolean retire() {
+			retired = true;
+			return users == 0;
+		}
+
+		synchronized void stop() {
+			if (appender != null) {
+				childFactory.stop(appender);
+			}
+		}
+	}
+
+	/**
+	 * Exposes the key value of a child to its template as a local property.
+	 */
+	static final class KeyProperties implements PropertyContainer {
+		private final String name;
+		private final String value;
+
+		KeyProperties(String name, String value) {
+			this.name = name;
+			this.value = value;
+		}
+
+		@Override
+		public String getProperty(String key) {
+			return name.equals(key) ? value : null;
+		}
+
+		@Override
+		public Map<String, String> getCopyOfPropertyMap() {
+			return Collections.singletonMap(name, value);
+		}
+	}
+
+	/**
+	 * Wraps the function creating child appenders for a key value.
+	 */
+	interface ChildFactory {
+		/**
+		 * Creates and starts the child appender for the key value.
+		 *
+		 * @param value the key value
+		 * @return the started child appender
+		 * @throws ReflectiveOperationException when configuring the child fails
+		 */
+		Appender<ILoggingEvent> create(String value) throws ReflectiveOperationException;
+
+		/**
+		 * Stops a child appender once evicted or when the routing appender stops.
+		 *
+		 * @param child the child appender
+		 */
+		default void stop(Appender<ILoggingEvent> child) {
+			child.stop();
+		}
+	}
+
+}
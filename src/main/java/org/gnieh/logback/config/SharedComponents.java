@@ -0,0 +1,159 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigRenderOptions;
+
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.spi.LifeCycle;
+import ch.qos.logback.core.spi.PropertyContainer;
+
+/**
+ * The encoders and layouts shared by the appenders of one configuration, by
+ * settings fingerprint.
+ *
+ * <p>
+ * A component is shared if its settings say {@code shared = true}, or if its
+ * class is declared {@link Stateless} and its settings do not say
+ * {@code shared = false}. Components with identical class and settings are
+ * then built, and their pattern compiled, only once. Components holding state
+ * about the files of their appender, such as the {@link BinaryEncoder}
+ * dictionaries, are never shared.
+ */
+final class SharedComponents {
+
+	static final String SHARED_KEY = "shared";
+
+	/**
+	 * The logback classes known to be stateless, which cannot be annotated.
+	 */
+	private static final Set<String> STATELESS = new HashSet<>(
+			Arrays.asList("ch.qos.logback.classic.encoder.PatternLayoutEncoder",
+					"ch.qos.logback.classic.PatternLayout"));
+
+	private final Map<String, Object> components = new ConcurrentHashMap<>();
+
+	/**
+	 * The started components, tracked here as encoders do not report it.
+	 * Guarded by itself, as the children of routing appenders are built from
+	 * the logging threads.
+	 */
+	private final Set<Object> started = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * @param clazz the component class
+	 * @return whether components of the class may be shared
+	 */
+	static boolean isShareable(Class<?> clazz) {
+		return (Encoder.class.isAssignableFrom(clazz) || Layout.class.isAssignableFrom(clazz)) && !isPerAppender(clazz);
+	}
+
+	/**
+	 * @param clazz the component class
+	 * @return whether components of the class hold the state of the files of
+	 *         their appender
+	 */
+	static boolean isPerAppender(Class<?> clazz) {
+		return BinaryEncoder.class.isAssignableFrom(clazz);
+	}
+
+	/**
+	 * @param clazz  the component class
+	 * @param config the component settings
+	 * @return whether the component is shared
+	 */
+	static boolean isShared(Class<?> clazz, Config config) {
+		if (!isShareable(clazz)) {
+			return false;
+		}
+		if (config.hasPath(SHARED_KEY)) {
+			return config.getBoolean(SHARED_KEY);
+		}
+		return clazz.isAnnotationPresent(Stateless.class) || STATELESS.contains(clazz.getName());
+	}
+
+	/**
+	 * @param config          the component settings, including its class
+	 * @param localProperties the properties substituted in the settings, may be
+	 *                        null
+	 * @return the fingerprint identifying the component
+	 */
+	static String fingerprint(Config config, PropertyContainer localProperties) {
+		String settings = config.withoutPath(SHARED_KEY).root().render(ConfigRenderOptions.concise());
+		if (localProperties == null) {
+			return settings;
+		}
+		return settings + new TreeMap<>(localProperties.getCopyOfPropertyMap());
+	}
+
+	/**
+	 * Provides the component with the given settings, or builds it.
+	 *
+	 * @param fingerprint the fingerprint of the component settings
+	 * @param factory     builds the component if not built yet
+	 * @return the shared component
+	 * @throws ReflectiveOperationException when building the component fails
+	 */
+	Object get(String fingerprint, ComponentFactory factory) throws ReflectiveOperationException {
+		Object component = components.get(fingerprint);
+		if (component == null) {
+			Object created = factory.create();
+			component = components.putIfAbsent(fingerprint, created);
+			if (component == null) {
+				component = created;
+			}
+		}
+		return component;
+	}
+
+	/**
+	 * Starts a component of an appender, shared components being only started
+	 * by the first appender using them. The other ones wait until it is started.
+	 *
+	 * @param component a component of an appender
+	 */
+	void start(LifeCycle component) {
+		if (!components.containsValue(component)) {
+			component.start();
+			return;
+		}
+		synchronized (started) {
+			if (started.add(component)) {
+				component.start();
+			}
+		}
+	}
+
+	/**
+	 * Wraps the function building a shared component.
+	 */
+	interface ComponentFactory {
+		Object create() throws ReflectiveOperationException;
+	}
+
+}
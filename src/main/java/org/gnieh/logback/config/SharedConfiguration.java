@@ -0,0 +1,109 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import com.typesafe.config.Config;
+
+/**
+ * The state shared by all configurators of the process in multi-context mode,
+ * enabled by setting the {@value #MULTI_CONTEXT_PROPERTY} system property to
+ * {@code true}.
+ *
+ * <p>
+ * In this mode, the config loader is discovered once, the loaded config is
+ * reused by every context until one of them detects a change, and resolved
+ * classes are cached process-wide, as bean metadata always are. Configuring a
+ * context then only instantiates its appenders.
+ */
+final class SharedConfiguration {
+
+	static final String MULTI_CONTEXT_PROPERTY = "logback-config.multi-context";
+
+	private static final ConcurrentMap<String, Class<?>> CLASSES = new ConcurrentHashMap<>();
+
+	private static ConfigLoader loader;
+
+	private static Config config;
+
+	private SharedConfiguration() {
+	}
+
+	static boolean isEnabled() {
+		return Boolean.getBoolean(MULTI_CONTEXT_PROPERTY);
+	}
+
+	/**
+	 * @param discover discovers the loader if not done yet
+	 * @return the shared config loader
+	 */
+	static synchronized ConfigLoader getLoader(Supplier<ConfigLoader> discover) {
+		if (loader == null) {
+			loader = discover.get();
+		}
+		return loader;
+	}
+
+	/**
+	 * Loads the config, unless already loaded by another context.
+	 *
+	 * @param discover discovers the loader if not done yet
+	 * @return the shared config
+	 * @throws Exception if the config cannot be loaded
+	 */
+	static synchronized Config load(Supplier<ConfigLoader> discover) throws Exception {
+		if (config == null) {
+			config = getLoader(discover).load();
+		}
+		return config;
+	}
+
+	/**
+	 * Makes the next {@link #load(Supplier)} load the config again, if the stale
+	 * config is the shared one. Contexts detecting the same change after the
+	 * first one then share the config it loaded.
+	 *
+	 * @param stale the config in which a change was detected
+	 */
+	static synchronized void invalidate(Config stale) {
+		if (config != null && config == stale) {
+			config = null;
+			if (loader != null) {
+				loader.invalidateCaches();
+			}
+		}
+	}
+
+	/**
+	 * @return the class with the given name, loaded by the class loader of this
+	 *         class
+	 * @throws ClassNotFoundException if the class cannot be found
+	 */
+	static Class<?> forName(String name) throws ClassNotFoundException {
+		Class<?> clazz = CLASSES.get(name);
+		if (clazz == null) {
+			// failures are not cached, the class may be made available later
+			clazz = Class.forName(name);
+			CLASSES.putIfAbsent(name, clazz);
+		}
+		return clazz;
+	}
+
+}
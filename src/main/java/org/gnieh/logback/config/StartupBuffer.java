@@ -0,0 +1,346 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.ConsoleAppender;
+import ch.qos.logback.core.spi.FilterReply;
+
+/**
+ * Holds the logging events emitted while the configuration is performed in the
+ * background, and replays them once it is applied.
+ *
+ * <p>
+ * The buffer is installed as the first turbo filter of the context, so that
+ * events are captured before reaching any logger, and denied. The levels the
+ * configuration gives to the loggers are resolved from the loaded config
+ * upfront, and only the events it enables are buffered, along with their
+ * caller data if a configured appender or logger needs it, captured in the
+ * logging thread. Once the configuration is applied, the buffered events are
+ * replayed, in order, through the other turbo filters and the configured
+ * loggers. Threads logging during the swap wait for the replay to complete,
+ * so that no event overtakes a buffered one.
+ *
+ * <p>
+ * If the configuration is not applied within the timeout, the buffered events
+ * are replayed to a console appender attached to the root logger, and the
+ * following events are logged to it until the configuration is applied.
+ */
+final class StartupBuffer extends TurboFilter {
+
+	static final String CONSOLE_PATTERN = "%d{HH:mm:ss.SSS} [%thread] %-5level %logger{36} - %msg%n";
+
+	/**
+	 * What to do with an event when the buffer is full.
+	 */
+	enum OverflowPolicy {
+		/** Discard the new event. */
+		DROP_NEWEST,
+		/** Discard the oldest buffered event. */
+		DROP_OLDEST,
+		/** Make the logging thread wait until the configuration is applied. */
+		BLOCK
+	}
+
+	private enum State {
+		BUFFERING, CONSOLE, DONE
+	}
+
+	/**
+	 * What the configuration being performed gives to the loggers.
+	 */
+	interface Loggers {
+
+		/**
+		 * Every event is enabled, along with its caller data.
+		 */
+		Loggers ALL = new Loggers() {
+			@Override
+			public Level levelOf(String name) {
+				return Level.ALL;
+			}
+
+			@Override
+			public boolean needsCallerData(String name) {
+				return true;
+			}
+		};
+
+		/**
+		 * @param name the logger name
+		 * @return the effective level of the logger
+		 */
+		Level levelOf(String name);
+
+		/**
+		 * @param name the logger name
+		 * @return whether the events of the logger need their caller data
+		 */
+		boolean needsCallerData(String name);
+	}
+
+	private int bufferSize = 8192;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+	private Duration timeout = Duration.ofSeconds(30);
+
+	private Loggers loggers = Loggers.ALL;
+
+	private ArrayDeque<Buffered> events;
+
+	private State state = State.BUFFERING;
+
+	private long dropped;
+
+	private Thread configurationThread;
+
+	private ScheduledFuture<?> timeoutTask;
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public Duration getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(Duration timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sets what the configuration being performed gives to the loggers, every
+	 * event being buffered otherwise.
+	 */
+	void setLoggers(Loggers loggers) {
+		this.loggers = loggers;
+	}
+
+	@Override
+	public void start() {
+		if (bufferSize <= 0) {
+			addError("Invalid background-init buffer size " + bufferSize + ".");
+			return;
+		}
+		events = new ArrayDeque<>(Math.min(bufferSize, 1024));
+		LoggerContext loggerContext = (LoggerContext) context;
+		// first, so that the events are buffered before the other turbo filters see them
+		loggerContext.getTurboFilterList().add(0, this);
+		if (timeout != null && !timeout.isZero() && !timeout.isNegative()) {
+			timeoutTask = context.getScheduledExecutorService().schedule(this::fallbackToConsole,
+					timeout.toMillis(), TimeUnit.MILLISECONDS);
+			context.addScheduledFuture(timeoutTask);
+		}
+		super.start();
+	}
+
+	@Override
+	public void stop() {
+		if (timeoutTask != null) {
+			timeoutTask.cancel(false);
+		}
+		((LoggerContext) context).getTurboFilterList().remove(this);
+		super.stop();
+	}
+
+	/**
+	 * Marks the calling thread as the one performing the configuration. It never
+	 * blocks on a full buffer.
+	 */
+	synchronized void configuring() {
+		configurationThread = Thread.currentThread();
+	}
+
+	@Override
+	public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params,
+			Throwable t) {
+		if (!isStarted()) {
+			return FilterReply.NEUTRAL;
+		}
+		// disabled once configured, the event is neither buffered nor built
+		final boolean enabled = level.isGreaterOrEqual(loggers.levelOf(logger.getName()));
+		synchronized (this) {
+			if (state != State.BUFFERING) {
+				return FilterReply.NEUTRAL;
+			}
+			if (!enabled) {
+				return FilterReply.DENY;
+			}
+			if (format == null && params == null && t == null) {
+				// a level check, answered with the configured levels
+				return FilterReply.ACCEPT;
+			}
+			while (events.size() >= bufferSize && state == State.BUFFERING) {
+				if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+					events.removeFirst();
+					dropped++;
+				} else if (overflowPolicy == OverflowPolicy.BLOCK && Thread.currentThread() != configurationThread) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped++;
+						return FilterReply.DENY;
+					}
+				} else {
+					dropped++;
+					return FilterReply.DENY;
+				}
+			}
+			if (state != State.BUFFERING) {
+				// released by the end of the configuration
+				return FilterReply.NEUTRAL;
+			}
+			LoggerContext loggerContext = (LoggerContext) context;
+			LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, level, format, t, params);
+			event.setMarker(marker);
+			if (loggers.needsCallerData(logger.getName())) {
+				event.setCallerData(CallerFrames.capture(loggerContext.getFrameworkPackages(),
+						loggerContext.getMaxCallerDataDepth()));
+			}
+			event.prepareForDeferredProcessing();
+			events.addLast(new Buffered(event, t));
+			return FilterReply.DENY;
+		}
+	}
+
+	/**
+	 * Applies the configuration and replays the buffered events through the
+	 * configured loggers. Logging threads are held until the replay is done.
+	 *
+	 * @param apply applies the configuration
+	 */
+	void complete(Runnable apply) {
+		synchronized (this) {
+			try {
+				apply.run();
+				if (state == State.BUFFERING) {
+					replay();
+				}
+			} finally {
+				state = State.DONE;
+				notifyAll();
+			}
+		}
+		stop();
+	}
+
+	/**
+	 * Replays the buffered events to the console if the configuration did not
+	 * complete yet.
+	 */
+	void fallbackToConsole() {
+		synchronized (this) {
+			if (state != State.BUFFERING) {
+				return;
+			}
+			addWarn("Logging configuration not applied after " + timeout + ". Logging to the console until it is.");
+
+			PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+			encoder.setContext(context);
+			encoder.setPattern(CONSOLE_PATTERN);
+			encoder.start();
+
+			ConsoleAppender<ILoggingEvent> console = new ConsoleAppender<>();
+			console.setContext(context);
+			console.setName("console-fallback");
+			console.setEncoder(encoder);
+			console.start();
+
+			((LoggerContext) context).getLogger(Logger.ROOT_LOGGER_NAME).addAppender(console);
+			replay();
+			state = State.CONSOLE;
+			notifyAll();
+		}
+	}
+
+	private void replay() {
+		LoggerContext loggerContext = (LoggerContext) context;
+		Buffered buffered;
+		while ((buffered = events.pollFirst()) != null) {
+			LoggingEvent event = buffered.event;
+			Logger logger = loggerContext.getLogger(event.getLoggerName());
+			FilterReply decision = decideWithOthers(loggerContext, event.getMarker(), logger, event.getLevel(),
+					event.getMessage(), event.getArgumentArray(), buffered.throwable);
+			if (decision == FilterReply.ACCEPT
+					|| decision == FilterReply.NEUTRAL && event.getLevel().isGreaterOrEqual(logger.getEffectiveLevel())) {
+				logger.callAppenders(event);
+			}
+		}
+		if (dropped > 0) {
+			addWarn(String.format("%d logging events were dropped while the configuration was performed.", dropped));
+			dropped = 0;
+		}
+	}
+
+	/**
+	 * @return the decision of the other turbo filters, the first one not neutral
+	 *         winning as in logback
+	 */
+	private FilterReply decideWithOthers(LoggerContext loggerContext, Marker marker, Logger logger, Level level,
+			String format, Object[] params, Throwable t) {
+		for (TurboFilter filter : loggerContext.getTurboFilterList()) {
+			if (filter != this) {
+				FilterReply decision = filter.decide(marker, logger, level, format, params, t);
+				if (decision != FilterReply.NEUTRAL) {
+					return decision;
+				}
+			}
+		}
+		return FilterReply.NEUTRAL;
+	}
+
+	/**
+	 * A buffered event, along with its throwable for the turbo filters.
+	 */
+	private static final class Buffered {
+		final LoggingEvent event;
+		final Throwable throwable;
+
+		Buffered(LoggingEvent event, Throwable throwable) {
+			this.event = event;
+			this.throwable = throwable;
+		}
+	}
+
+}
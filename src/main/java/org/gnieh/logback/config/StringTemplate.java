@@ -0,0 +1,224 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.spi.PropertyContainer;
+import ch.qos.logback.core.spi.ScanException;
+import ch.qos.logback.core.subst.NodeToStringTransformer;
+import ch.qos.logback.core.util.OptionHelper;
+
+/**
+ * A string value whose variables (e.g. <code>${HOSTNAME}</code>) are
+ * substituted as by {@link NodeToStringTransformer}, parsed once per process.
+ *
+ * <p>
+ * Strings without variables are substituted once, and plain ones are returned
+ * as is without even being looked up. Strings made of literals and of variables
+ * with an optional literal default value (e.g. <code>logs/${app:-main}.log</code>)
+ * are split into segments once, and evaluated by looking the variables up in the
+ * context, the local properties, the system properties and the environment, in
+ * that order. Other strings (e.g. nested variables), and strings whose variables
+ * are bound to values with variables themselves, are handed to
+ * {@link NodeToStringTransformer}.
+ */
+final class StringTemplate {
+
+	/**
+	 * The number of templates after which new ones are not cached anymore.
+	 */
+	private static final int MAX_CACHED = 4096;
+
+	private static final String START = "${";
+
+	private static final String DEFAULT_SEPARATOR = ":-";
+
+	private static final Map<String, StringTemplate> CACHE = new ConcurrentHashMap<>();
+
+	private final String text;
+
+	/**
+	 * The substituted string if it does not depend on properties, {@code null}
+	 * otherwise.
+	 */
+	private final String constant;
+
+	/**
+	 * The literals, and the variable names at odd indices, or {@code null} if the
+	 * string is handed to {@link NodeToStringTransformer}.
+	 */
+	private final String[] segments;
+
+	/**
+	 * The default value of the variable at each odd index, {@code null} if none.
+	 */
+	private final String[] defaults;
+
+	private StringTemplate(String text, String constant, String[] segments, String[] defaults) {
+		this.text = text;
+		this.constant = constant;
+		this.segments = segments;
+		this.defaults = defaults;
+	}
+
+	/**
+	 * @param text the string value
+	 * @return the template of the string
+	 */
+	static StringTemplate of(String text) {
+		StringTemplate template = CACHE.get(text);
+		if (template == null) {
+			template = compile(text);
+			if (CACHE.size() < MAX_CACHED) {
+				CACHE.putIfAbsent(text, template);
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * @param text            the string value
+	 * @param context         the context properties
+	 * @param localProperties the local properties, may be {@code null}
+	 * @return the string with its variables substituted
+	 * @throws ScanException if the string cannot be parsed
+	 */
+	static String substitute(String text, PropertyContainer context, PropertyContainer localProperties)
+			throws ScanException {
+		if (isPlain(text)) {
+			return text;
+		}
+		return of(text).evaluate(context, localProperties);
+	}
+
+	private static StringTemplate compile(String text) {
+		if (text.indexOf(START) < 0) {
+			try {
+				// no lookup is performed without variables
+				return new StringTemplate(text, NodeToStringTransformer.substituteVariable(text, null, null), null,
+						null);
+			} catch (ScanException | RuntimeException e) {
+				// reported at each evaluation
+				return complex(text);
+			}
+		}
+		List<String> segments = new ArrayList<>();
+		List<String> defaults = new ArrayList<>();
+		int i = 0;
+		while (i < text.length()) {
+			int start = text.indexOf(START, i);
+			String literal = text.substring(i, start < 0 ? text.length() : start);
+			if (!isPlain(literal)) {
+				return complex(text);
+			}
+			segments.add(literal);
+			defaults.add(null);
+			if (start < 0) {
+				break;
+			}
+			int end = text.indexOf('}', start + START.length());
+			if (end < 0) {
+				return complex(text);
+			}
+			String variable = text.substring(start + START.length(), end);
+			int separator = variable.indexOf(DEFAULT_SEPARATOR);
+			String name = separator < 0 ? variable : variable.substring(0, separator);
+			String defaultValue = separator < 0 ? null : variable.substring(separator + DEFAULT_SEPARATOR.length());
+			// empty defaults are ignored
+			if (!isName(name) || defaultValue != null && !isName(defaultValue)) {
+				return complex(text);
+			}
+			segments.add(name);
+			defaults.add(defaultValue);
+			i = end + 1;
+		}
+		if (segments.size() % 2 == 0) {
+			segments.add("");
+			defaults.add(null);
+		}
+		return new StringTemplate(text, null, segments.toArray(new String[0]), defaults.toArray(new String[0]));
+	}
+
+	/**
+	 * @return whether the string is parsed as a single literal by
+	 *         {@link NodeToStringTransformer}, which drops what follows a
+	 *         top-level closing brace or default separator, and reads a dollar
+	 *         before a variable as part of it
+	 */
+	private static boolean isPlain(String s) {
+		return s.indexOf('$') < 0 && s.indexOf('{') < 0 && s.indexOf('}') < 0 && s.indexOf(DEFAULT_SEPARATOR) < 0;
+	}
+
+	private static boolean isName(String s) {
+		return !s.isEmpty() && s.indexOf('{') < 0 && s.indexOf('$') < 0 && s.indexOf(':') < 0;
+	}
+
+	private static StringTemplate complex(String text) {
+		return new StringTemplate(text, null, null, null);
+	}
+
+	/**
+	 * @param context         the context properties
+	 * @param localProperties the local properties, may be {@code null}
+	 * @return the string with its variables substituted
+	 * @throws ScanException if the string cannot be parsed
+	 */
+	String evaluate(PropertyContainer context, PropertyContainer localProperties) throws ScanException {
+		if (constant != null) {
+			return constant;
+		}
+		if (segments == null) {
+			return NodeToStringTransformer.substituteVariable(text, context, localProperties);
+		}
+		StringBuilder sb = new StringBuilder(text.length() + 32);
+		for (int i = 0; i < segments.length; i++) {
+			if (i % 2 == 0) {
+				sb.append(segments[i]);
+				continue;
+			}
+			String value = lookup(segments[i], context, localProperties);
+			if (value == null) {
+				value = defaults[i] != null ? defaults[i] : segments[i] + CoreConstants.UNDEFINED_PROPERTY_SUFFIX;
+			} else if (value.indexOf(START) >= 0) {
+				// recursive substitution, with its cycle detection
+				return NodeToStringTransformer.substituteVariable(text, context, localProperties);
+			}
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	private static String lookup(String key, PropertyContainer context, PropertyContainer localProperties) {
+		String value = context == null ? null : context.getProperty(key);
+		if (value == null && localProperties != null) {
+			value = localProperties.getProperty(key);
+		}
+		if (value == null) {
+			value = OptionHelper.getSystemProperty(key, null);
+		}
+		if (value == null) {
+			value = OptionHelper.getEnv(key);
+		}
+		return value;
+	}
+
+}
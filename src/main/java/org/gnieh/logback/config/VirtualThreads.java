@@ -0,0 +1,49 @@
+/*
+ * This file is part of the logback-config project.
+ * Copyright (c) 2018 Lucas Satabin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gnieh.logback.config;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads, where the platform supports them.
+ *
+ * <p>
+ * This is the Java 8 variant, which does not. The multi-release jar holds a
+ * Java 21 variant, compiled from {@code src/main/java-21}, which does.
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return whether virtual threads are supported
+	 */
+	static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * @param prefix the name prefix of the threads, followed by a counter
+	 * @return a factory of virtual threads
+	 * @throws UnsupportedOperationException if virtual threads are not supported
+	 */
+	static ThreadFactory factory(String prefix) {
+		throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.gnieh.logback.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.core.rolling.RollingFileAppender;
+
+public class BeanMetadataTest {
+
+	@Test
+	public void testBeanMetadata() {
+		BeanMetadata metadata = BeanMetadata.of(RollingFileAppender.class);
+		// computed once for the whole process
+		assertSame(metadata, BeanMetadata.of(RollingFileAppender.class));
+
+		assertEquals("setRollingPolicy", metadata.getSetter("rolling-policy").getName());
+		assertSame(metadata.getSetter("rolling-policy"), metadata.getSetter("rollingPolicy"));
+		assertNull(metadata.getSetter("unknown-property"));
+
+		BeanMetadata async = BeanMetadata.of(AsyncAppender.class);
+		assertEquals("addAppender", async.getAdder("appenders").getName());
+		assertNull(async.getAdder("appender"));
+	}
+
+}
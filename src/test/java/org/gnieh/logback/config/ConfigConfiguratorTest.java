@@ -1,29 +1,73 @@
 package org.gnieh.logback.config;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import com.sun.net.httpserver.HttpServer;
 
 import ch.qos.logback.classic.AsyncAppender;
 import ch.qos.logback.core.AsyncAppenderBase;
 import ch.qos.logback.core.joran.spi.ConfigurationWatchList;
 import ch.qos.logback.core.joran.util.ConfigurationWatchListUtil;
 
+import org.junit.Assume;
 import org.junit.Test;
+import org.slf4j.MDC;
 
+import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.Configurator;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.FileAppender;
+import ch.qos.logback.core.read.ListAppender;
+import ch.qos.logback.core.OutputStreamAppender;
 import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.SizeAndTimeBasedRollingPolicy;
 import ch.qos.logback.core.rolling.TimeBasedRollingPolicy;
 import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.status.StatusUtil;
 
 public class ConfigConfiguratorTest {
 
@@ -193,4 +237,1083 @@ public class ConfigConfiguratorTest {
 
 		return context;
 	}
+
+	@Test
+	public void testConfigureRoutingAppender() {
+		System.setProperty("config.file", "src/test/resources/routingAppender.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertNoErrorOrWarning(context);
+
+		Logger rootLogger = context.getLoggerList().get(0);
+		Appender<?> appender = rootLogger.getAppender("tenants");
+		assertTrue(appender instanceof RoutingAppender);
+		assertTrue(appender.isStarted());
+
+		RoutingAppender routing = (RoutingAppender) appender;
+		assertEquals("tenant", routing.getKeyName());
+		assertEquals(0, routing.getChildCount());
+
+		MDC.put("tenant", "a");
+		rootLogger.info("first tenant");
+		MDC.put("tenant", "b");
+		rootLogger.info("second tenant");
+		// routed to the default value rather than out of the log directory
+		MDC.put("tenant", "../b");
+		rootLogger.info("escaping tenant");
+		MDC.remove("tenant");
+		rootLogger.info("no tenant");
+
+		assertEquals(2, routing.getChildCount());
+		assertNull(routing.getChild("../b"));
+		assertNull(routing.getChild("a"));
+		Appender<?> child = routing.getChild("unknown");
+		assertTrue(child instanceof FileAppender);
+		assertTrue(child.isStarted());
+		assertEquals("logs/tenant-unknown.log", ((FileAppender<?>) child).getFile());
+
+		routing.evictIdle(System.currentTimeMillis());
+		assertEquals(0, routing.getChildCount());
+		assertFalse(child.isStarted());
+
+		context.stop();
+	}
+
+	@Test
+	public void testConfigureChannelFileAppenders() throws IOException {
+		System.setProperty("config.file", "src/test/resources/channelFileAppender.conf");
+		ConfigFactory.invalidateCaches();
+		Files.deleteIfExists(Paths.get("logs/mapped.log"));
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertNoErrorOrWarning(context);
+
+		Logger rootLogger = context.getLoggerList().get(0);
+		Appender<?> channel = rootLogger.getAppender("channel");
+		assertTrue(channel instanceof ChannelFileAppender);
+		assertTrue(channel.isStarted());
+		assertEquals(64 * 1024, ((ChannelFileAppender<?>) channel).getRegionSize().toBytes());
+
+		Appender<?> mapped = rootLogger.getAppender("mapped");
+		assertTrue(mapped instanceof RollingChannelFileAppender);
+		assertTrue(mapped.isStarted());
+		assertTrue(((RollingChannelFileAppender<?>) mapped).isMemoryMapped());
+
+		StringBuilder expected = new StringBuilder();
+		// enough lines to span several mapped regions
+		for (int i = 0; i < 1000; i++) {
+			rootLogger.info("line {}", i);
+			expected.append("INFO line ").append(i).append('\n');
+		}
+
+		context.stop();
+
+		Charset utf8 = Charset.forName("UTF-8");
+		assertEquals(expected.toString(), new String(Files.readAllBytes(Paths.get("logs/channel.log")), utf8));
+		assertEquals(expected.toString(), new String(Files.readAllBytes(Paths.get("logs/mapped.log")), utf8));
+	}
+
+	@Test
+	public void testConfigureFlushInterval() throws Exception {
+		System.setProperty("config.file", "src/test/resources/bufferedFileAppender.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertNoErrorOrWarning(context);
+
+		Logger rootLogger = context.getLoggerList().get(0);
+		FileAppender<?> buffered = (FileAppender<?>) rootLogger.getAppender("buffered");
+		assertFalse(buffered.isImmediateFlush());
+
+		rootLogger.info("buffered line");
+
+		// the line is only written once the scheduled flush ran
+		long deadline = System.currentTimeMillis() + 5000;
+		String content = "";
+		while (content.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			content = new String(Files.readAllBytes(Paths.get("logs/buffered.log")), Charset.forName("UTF-8"));
+		}
+		assertEquals("INFO buffered line\n", content);
+
+		context.stop();
+	}
+
+	@Test
+	public void testConfigureRollingPolicyCompression() throws Exception {
+		System.setProperty("config.file", "src/test/resources/compressedRollingFileAppender.conf");
+		ConfigFactory.invalidateCaches();
+		File directory = emptyDirectory("logs/compression");
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertNoErrorOrWarning(context);
+
+		Logger rootLogger = context.getLoggerList().get(0);
+		RollingFileAppender<?> rolling = (RollingFileAppender<?>) rootLogger.getAppender("rolling");
+		assertTrue(rolling.getRollingPolicy().isStarted());
+
+		rootLogger.info("compressed line");
+		// move to the next period so that the next event triggers a rollover
+		TimeBasedRollingPolicy<?> policy = (TimeBasedRollingPolicy<?>) rolling.getRollingPolicy();
+		policy.getTimeBasedFileNamingAndTriggeringPolicy().setCurrentTime(System.currentTimeMillis() + 2 * 24 * 3600 * 1000L);
+		rootLogger.info("next period line");
+
+		// compression happens asynchronously on the dedicated pool
+		File[] archives = new File[0];
+		long deadline = System.currentTimeMillis() + 5000;
+		while (archives.length == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			archives = directory.listFiles((dir, name) -> name.endsWith(".log.gz"));
+		}
+		assertEquals(1, archives.length);
+
+		context.stop();
+		// the compression pool is stopped along with the appender, its threads exit right after
+		boolean compressing = true;
+		deadline = System.currentTimeMillis() + 1000;
+		while (compressing && System.currentTimeMillis() < deadline) {
+			compressing = false;
+			for (Thread thread : Thread.getAllStackTraces().keySet()) {
+				compressing |= thread.getName().startsWith("logback-compression-");
+			}
+			Thread.sleep(10);
+		}
+		assertFalse(compressing);
+
+		try (InputStream in = new GZIPInputStream(new FileInputStream(archives[0]))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			assertEquals("INFO compressed line\n", new String(out.toByteArray(), Charset.forName("UTF-8")));
+		}
+	}
+
+	@Test
+	public void testConfigurePreopenedNextFile() throws Exception {
+		System.setProperty("config.file", "src/test/resources/preopenedRollingFileAppender.conf");
+		ConfigFactory.invalidateCaches();
+		File directory = emptyDirectory("logs/preopened");
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertNoErrorOrWarning(context);
+
+		Logger rootLogger = context.getLoggerList().get(0);
+		RollingChannelFileAppender<?> rolling = (RollingChannelFileAppender<?>) rootLogger.getAppender("rolling");
+		assertTrue(rolling.isPreopenNextFile());
+		assertEquals(64 * 1024, rolling.getPreallocate().toBytes());
+
+		// the next file is prepared in the background
+		File next = new File("logs/preopened/test.log" + RollingChannelFileAppender.NEXT_FILE_SUFFIX);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (next.length() < 64 * 1024 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(64 * 1024, next.length());
+		// the active file is preallocated as well
+		assertEquals(64 * 1024, new File("logs/preopened/test.log").length());
+
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			rootLogger.info("line number {}", i);
+			expected.append("INFO line number ").append(i).append('\n');
+		}
+
+		context.stop();
+		assertFalse(next.exists());
+		assertOnlyInfo(context);
+
+		File[] archives = directory.listFiles((dir, name) -> !name.equals("test.log"));
+		// rollovers happened on the written length, not on the preallocated one
+		assertTrue(archives.length > 1);
+		assertTrue(archives.length < 20);
+		Arrays.sort(archives, (f1, f2) -> Integer.compare(archiveIndex(f1), archiveIndex(f2)));
+		StringBuilder actual = new StringBuilder();
+		for (File archive : archives) {
+			actual.append(new String(Files.readAllBytes(archive.toPath()), Charset.forName("UTF-8")));
+		}
+		actual.append(new String(Files.readAllBytes(Paths.get("logs/preopened/test.log")), Charset.forName("UTF-8")));
+		assertEquals(expected.toString(), actual.toString());
+	}
+
+	@Test
+	public void testReconfigureKeepsRunningConfigurationOnError() throws Exception {
+		File file = new File("logs/reload/test.conf");
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), reloadConfig("ch.qos.logback.core.FileAppender", "first").getBytes("UTF-8"));
+		System.setProperty("config.file", file.getPath());
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		Logger rootLogger = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		Appender<?> first = rootLogger.getAppender("file");
+		assertTrue(first.isStarted());
+
+		// an unknown appender class is reported and the running configuration kept
+		Files.write(file.toPath(), reloadConfig("org.gnieh.logback.config.UnknownAppender", "second").getBytes("UTF-8"));
+		configurator.reconfigure(context);
+
+		assertSame(first, rootLogger.getAppender("file"));
+		assertTrue(first.isStarted());
+		assertEquals(Level.INFO, rootLogger.getLevel());
+
+		// a valid configuration is swapped in, and the previous appender stopped
+		Files.write(file.toPath(), reloadConfig("ch.qos.logback.core.FileAppender", "second").getBytes("UTF-8"));
+		configurator.reconfigure(context);
+
+		Appender<?> second = rootLogger.getAppender("file");
+		assertNotNull(second);
+		assertNotSame(first, second);
+		assertTrue(second.isStarted());
+		assertFalse(first.isStarted());
+		assertEquals("logs/reload/second.log", ((FileAppender<?>) second).getFile());
+		assertEquals(Level.WARN, context.getLogger("org.gnieh").getLevel());
+
+		context.stop();
+	}
+
+	@Test
+	public void testReconfigureHandsOverFiles() throws Exception {
+		File file = new File("logs/handover/test.conf");
+		File log = new File("logs/handover/test.log");
+		file.getParentFile().mkdirs();
+		log.delete();
+		Files.write(file.toPath(), handOverConfig("%msg%n").getBytes("UTF-8"));
+		System.setProperty("config.file", file.getPath());
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		Logger rootLogger = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		AsyncAppender first = (AsyncAppender) rootLogger.getAppender("async");
+		Appender<ILoggingEvent> firstFile = first.getAppender("file");
+		rootLogger.info("before");
+
+		// the file is written by the new appender once the previous one is stopped
+		Files.write(file.toPath(), handOverConfig("%level %msg%n").getBytes("UTF-8"));
+		configurator.reconfigure(context);
+
+		AsyncAppender second = (AsyncAppender) rootLogger.getAppender("async");
+		assertNotSame(first, second);
+		assertFalse(first.isStarted());
+		assertFalse(firstFile.isStarted());
+		assertTrue(second.getAppender("file").isStarted());
+		rootLogger.info("after");
+		context.stop();
+
+		assertOnlyInfo(context);
+		assertEquals("before\nINFO after\n", new String(Files.readAllBytes(log.toPath()), Charset.forName("UTF-8")));
+	}
+
+	@Test
+	public void testReconfigureSkipsUnchangedLogbackConfiguration() throws Exception {
+		File file = new File("logs/unchanged/test.conf");
+		File unrelated = new File("logs/unchanged/unrelated.conf");
+		file.getParentFile().mkdirs();
+		Files.write(unrelated.toPath(), "application.answer = 42\n".getBytes("UTF-8"));
+		String config = reloadConfig("ch.qos.logback.core.FileAppender", "first") + "include \"unrelated.conf\"\n";
+		Files.write(file.toPath(), config.getBytes("UTF-8"));
+		System.setProperty("config.file", file.getPath());
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		// only files contributing to the logback subtree are watched
+		ConfigurationWatchList watchList = ConfigurationWatchListUtil.getConfigurationWatchList(context);
+		assertTrue(watchList.getCopyOfFileWatchList().contains(file.getAbsoluteFile()));
+		assertFalse(watchList.getCopyOfFileWatchList().contains(unrelated.getAbsoluteFile()));
+
+		Logger rootLogger = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		Appender<?> first = rootLogger.getAppender("file");
+
+		// an unrelated change in a watched file does not reconfigure logging
+		Files.write(file.toPath(), (config + "application.other = true\n").getBytes("UTF-8"));
+		configurator.reconfigure(context);
+
+		assertSame(first, rootLogger.getAppender("file"));
+		assertTrue(first.isStarted());
+		assertOnlyInfo(context);
+		assertTrue(context.getStatusManager().getCopyOfStatusList().stream()
+				.anyMatch(status -> status.getMessage().contains("Skipping reconfiguration")));
+
+		context.stop();
+	}
+
+	@Test
+	public void testCachingConfigLoader() throws Exception {
+		File file = new File("logs/cached/test.conf");
+		File fragment = new File("logs/cached/fragment.conf");
+		file.getParentFile().mkdirs();
+		Files.write(fragment.toPath(), "test.answer = 42\n".getBytes("UTF-8"));
+		Files.write(file.toPath(), "include \"fragment.conf\"\ntest.question = ${test.answer}\n".getBytes("UTF-8"));
+		System.setProperty("config.file", file.getPath());
+
+		CachingConfigLoader loader = new CachingConfigLoader();
+		assertEquals(42, loader.load().getInt("test.question"));
+
+		// the same configuration as the stock loader
+		ConfigFactory.invalidateCaches();
+		assertEquals(ConfigFactory.load().root(), loader.load().root());
+
+		// nothing changed, nothing is parsed again
+		int parsed = loader.getParseCount();
+		assertEquals(42, loader.load().getInt("test.question"));
+		assertEquals(parsed, loader.getParseCount());
+
+		// the including file is parsed again, the included one is reused
+		Files.write(file.toPath(), "include \"fragment.conf\"\ntest.question = ${test.answer}1\n".getBytes("UTF-8"));
+		file.setLastModified(file.lastModified() + 2000);
+		assertEquals(421, loader.load().getInt("test.question"));
+		assertEquals(parsed + 1, loader.getParseCount());
+
+		// a modified included file invalidates the including one
+		Files.write(fragment.toPath(), "test.answer = 43\n".getBytes("UTF-8"));
+		fragment.setLastModified(fragment.lastModified() + 2000);
+		assertEquals(431, loader.load().getInt("test.question"));
+		assertEquals(parsed + 3, loader.getParseCount());
+
+		// touching a file without changing its content does not parse it again
+		fragment.setLastModified(fragment.lastModified() + 2000);
+		assertEquals(431, loader.load().getInt("test.question"));
+		assertEquals(parsed + 3, loader.getParseCount());
+	}
+
+	@Test
+	public void testHttpConfigLoader() throws Exception {
+		String[] document = { "logback-root = test.logback\ntest.logback = ${logback} { root.level = WARN }\n" };
+		AtomicInteger notModified = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/logging.conf", exchange -> {
+			String current = document[0];
+			String etag = "\"" + current.hashCode() + "\"";
+			if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModified.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				byte[] bytes = current.getBytes("UTF-8");
+				exchange.getResponseHeaders().set("ETag", etag);
+				exchange.sendResponseHeaders(200, bytes.length);
+				exchange.getResponseBody().write(bytes);
+			}
+			exchange.close();
+		});
+		server.start();
+		URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/logging.conf");
+		File cache = new File("logs/http/logging.conf");
+		Files.deleteIfExists(cache.toPath());
+
+		HttpConfigLoader loader = new HttpConfigLoader(url, cache, Duration.ofMillis(50));
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.setLoader(loader);
+		try {
+			configurator.configure(context);
+			Logger rootLogger = context.getLogger(Logger.ROOT_LOGGER_NAME);
+			assertEquals(Level.WARN, rootLogger.getLevel());
+			assertTrue(cache.isFile());
+
+			// unchanged documents are not transferred again
+			for (int i = 0; i < 100 && notModified.get() == 0; i++) {
+				Thread.sleep(50);
+			}
+			assertTrue(notModified.get() > 0);
+			assertEquals(1, loader.getFetchCount());
+
+			// changes are pushed to the configurator
+			document[0] = "logback-root = test.logback\ntest.logback = ${logback} { root.level = INFO }\n";
+			for (int i = 0; i < 100 && rootLogger.getLevel() != Level.INFO; i++) {
+				Thread.sleep(50);
+			}
+			assertEquals(Level.INFO, rootLogger.getLevel());
+		} finally {
+			server.stop(0);
+			context.stop();
+		}
+		// the loader stops polling along with the context
+		assertFalse(loader.isPolling());
+
+		// the cached document is used while the server is down
+		HttpConfigLoader offline = new HttpConfigLoader(url, cache, Duration.ofMillis(50));
+		context = new LoggerContext();
+		configurator = new ConfigConfigurator();
+		configurator.setLoader(offline);
+		try {
+			configurator.configure(context);
+			assertEquals(Level.INFO, context.getLogger(Logger.ROOT_LOGGER_NAME).getLevel());
+		} finally {
+			context.stop();
+		}
+	}
+
+	@Test
+	public void testConfigureInBackground() throws Exception {
+		System.setProperty("config.file", "src/test/resources/backgroundInit.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		// logged while the configuration may still be performed
+		Logger logger = context.getLogger("background");
+		Logger verbose = context.getLogger("background.verbose");
+		StringBuilder expected = new StringBuilder();
+		// the configured levels are known while buffering
+		assertFalse(logger.isDebugEnabled());
+		assertTrue(verbose.isTraceEnabled());
+		for (int i = 0; i < 2000; i++) {
+			logger.debug("filtered {}", i);
+			logger.info("line number {}", i);
+			expected.append("INFO line number ").append(i).append('\n');
+			if (i % 100 == 0) {
+				verbose.trace("trace number {}", i);
+				expected.append("TRACE trace number ").append(i).append('\n');
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!context.getTurboFilterList().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(context.getTurboFilterList().isEmpty());
+		assertTrue(context.getLogger(Logger.ROOT_LOGGER_NAME).getAppender("file").isStarted());
+
+		context.stop();
+		assertOnlyInfo(context);
+		// buffered events are replayed in order, and filtered by the configured levels
+		assertEquals(expected.toString(),
+				new String(Files.readAllBytes(Paths.get("logs/background.log")), Charset.forName("UTF-8")));
+	}
+
+	@Test
+	public void testGenerateConfigurator() throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		Assume.assumeNotNull(compiler);
+
+		Config config = ConfigFactory.parseFile(new File("src/test/resources/asyncAppender.conf"))
+				.withFallback(ConfigFactory.defaultReference()).resolve();
+		ConfigCodeGenerator generator = new ConfigCodeGenerator();
+		String source = generator.generate(config, "generated.LoggingConfigurator");
+		assertTrue(generator.getWarnings().isEmpty());
+
+		File directory = new File("logs/generated");
+		File sourceFile = new File(directory, "generated/LoggingConfigurator.java");
+		sourceFile.getParentFile().mkdirs();
+		Files.write(sourceFile.toPath(), source.getBytes("UTF-8"));
+		assertEquals(0, compiler.run(null, null, null, "-nowarn", "-classpath", System.getProperty("java.class.path"),
+				"-d", directory.getPath(), sourceFile.getPath()));
+
+		LoggerContext context = new LoggerContext();
+		try (URLClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() },
+				getClass().getClassLoader())) {
+			Configurator configurator = (Configurator) loader.loadClass("generated.LoggingConfigurator").newInstance();
+			configurator.setContext(context);
+			configurator.configure(context);
+		}
+
+		assertOnlyInfo(context);
+
+		Logger rootLogger = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		assertEquals(Level.INFO, rootLogger.getLevel());
+		RollingFileAppender<?> rolling = (RollingFileAppender<?>) rootLogger.getAppender("rolling");
+		assertTrue(rolling.isStarted());
+		assertEquals("%date %level %logger %thread %msg%n", ((PatternLayoutEncoder) rolling.getEncoder()).getPattern());
+		assertTrue(rolling.getRollingPolicy() instanceof SizeAndTimeBasedRollingPolicy);
+		assertTrue(rolling.getRollingPolicy().isStarted());
+
+		AsyncAppender async = (AsyncAppender) rootLogger.getAppender("async");
+		assertTrue(async.isStarted());
+		assertEquals(100, async.getQueueSize());
+		assertSame(rolling, async.getAppender("rolling"));
+
+		context.stop();
+	}
+
+	@Test
+	public void testConfigureMultipleContexts() throws Exception {
+		System.setProperty("config.file", "src/test/resources/multipleLoggers.conf");
+		System.setProperty(SharedConfiguration.MULTI_CONTEXT_PROPERTY, "true");
+		ConfigFactory.invalidateCaches();
+
+		try {
+			ConfigConfigurator configurator1 = new ConfigConfigurator();
+			LoggerContext context1 = new LoggerContext();
+			configurator1.configure(context1);
+			ConfigConfigurator configurator2 = new ConfigConfigurator();
+			LoggerContext context2 = new LoggerContext();
+			configurator2.configure(context2);
+
+			for (LoggerContext context : Arrays.asList(context1, context2)) {
+				assertOnlyInfo(context);
+			}
+
+			// the config is loaded once, the appenders are instantiated per context
+			assertSame(configurator1.getLoadedConfig(), configurator2.getLoadedConfig());
+			Appender<?> file1 = context1.getLogger("org.gnieh").getAppender("file");
+			Appender<?> file2 = context2.getLogger("org.gnieh").getAppender("file");
+			assertTrue(file1.isStarted());
+			assertTrue(file2.isStarted());
+			assertNotSame(file1, file2);
+			assertSame(context1, file1.getContext());
+			assertSame(context2, file2.getContext());
+			assertEquals(Level.TRACE, context2.getLogger("org.gnieh.logback").getLevel());
+
+			context1.stop();
+			context2.stop();
+			SharedConfiguration.invalidate(configurator1.getLoadedConfig());
+		} finally {
+			System.clearProperty(SharedConfiguration.MULTI_CONTEXT_PROPERTY);
+		}
+	}
+
+	@Test
+	public void testConfigureSharedEncoders() {
+		System.setProperty("config.file", "src/test/resources/sharedEncoders.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertNoErrorOrWarning(context);
+
+		Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		PatternLayoutEncoder file = encoder(root.getAppender("file"));
+		PatternLayoutEncoder console = encoder(root.getAppender("console"));
+		PatternLayoutEncoder unshared = encoder(root.getAppender("private"));
+		PatternLayoutEncoder short_ = encoder(root.getAppender("short"));
+
+		// same settings in any order
+		assertSame(file, console);
+		assertTrue(file.getLayout().isStarted());
+		assertNotSame(file, unshared);
+		assertTrue(unshared.getLayout().isStarted());
+		assertNotSame(file, short_);
+		assertEquals("%level %msg%n", short_.getPattern());
+
+		context.stop();
+	}
+
+	@Test
+	public void testAppenderMetrics() throws Exception {
+		System.setProperty("config.file", "src/test/resources/metrics.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertOnlyInfo(context);
+
+		Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		for (int i = 0; i < 100; i++) {
+			root.info("event {}", i);
+		}
+		assertTrue(root.getAppender("async") instanceof MeteredAppender);
+
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		ObjectName fileName = new ObjectName(
+				"ch.qos.logback.classic:Name=metrics-test,Type=org.gnieh.logback.config.MeteredAppender,Appender=\"file\"");
+		ObjectName asyncName = new ObjectName(
+				"ch.qos.logback.classic:Name=metrics-test,Type=org.gnieh.logback.config.MeteredAppender,Appender=\"async\"");
+		// wait for the queue to be drained
+		for (int i = 0; i < 100 && (Long) mbs.getAttribute(fileName, "EventCount") < 100; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(100L, mbs.getAttribute(asyncName, "EventCount"));
+		assertEquals(-1L, mbs.getAttribute(asyncName, "BytesWritten"));
+		assertEquals(0, mbs.getAttribute(asyncName, "QueueDepth"));
+		assertEquals(100L, mbs.getAttribute(fileName, "EventCount"));
+		assertEquals((long) "INFO event 0\n".length() * 10 + "INFO event 10\n".length() * 90,
+				mbs.getAttribute(fileName, "BytesWritten"));
+		assertEquals(0L, mbs.getAttribute(fileName, "ErrorCount"));
+		long median = (Long) mbs.getAttribute(fileName, "AppendLatencyMedian");
+		assertTrue(median > 0);
+		assertTrue(median <= (Long) mbs.getAttribute(fileName, "AppendLatency99thPercentile"));
+
+		context.stop();
+		assertFalse(mbs.isRegistered(fileName));
+		assertFalse(mbs.isRegistered(asyncName));
+	}
+
+	@Test
+	public void testCircuitBreakerAppender() throws Exception {
+		System.setProperty("config.file", "src/test/resources/circuitBreaker.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertOnlyInfo(context);
+
+		Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		CircuitBreakerAppender guarded = (CircuitBreakerAppender) root.getAppender("guarded");
+		UnreliableAppender unreliable = (UnreliableAppender) guarded.getAppender();
+		@SuppressWarnings("unchecked")
+		ListAppender<ILoggingEvent> fallback = (ListAppender<ILoggingEvent>) guarded.getFallback();
+
+		root.info("first");
+		assertEquals(1, unreliable.appended);
+
+		unreliable.failing = true;
+		root.info("failed");
+		assertEquals(CircuitBreakerAppender.State.CLOSED, guarded.getState());
+		root.info("failed again");
+		assertEquals(CircuitBreakerAppender.State.OPEN, guarded.getState());
+
+		unreliable.failing = false;
+		root.info("open");
+		assertEquals(1, fallback.list.size());
+		assertEquals(1, unreliable.appended);
+
+		Thread.sleep(150);
+		root.info("trial");
+		assertEquals(CircuitBreakerAppender.State.CLOSED, guarded.getState());
+		assertTrue(unreliable.isStarted());
+		root.info("closed");
+		assertEquals(3, unreliable.appended);
+		assertEquals(1, fallback.list.size());
+
+		context.stop();
+	}
+
+	/**
+	 * Stops on failure, as output stream appenders do on I/O errors.
+	 */
+	public static class UnreliableAppender extends AppenderBase<ILoggingEvent> {
+		volatile boolean failing;
+		int appended;
+
+		@Override
+		protected void append(ILoggingEvent event) {
+			if (failing) {
+				addError("Unable to append.");
+				stop();
+			} else {
+				appended++;
+			}
+		}
+	}
+
+	@Test
+	public void testJsonEncoder() throws Exception {
+		System.setProperty("config.file", "src/test/resources/jsonEncoder.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertOnlyInfo(context);
+
+		Logger logger = context.getLogger("org.gnieh");
+		MDC.put("tenant", "acme");
+		MDC.put("request-id", "42");
+		MDC.put("ignored", "value");
+		logger.info("Hello {}, \\{} {} \\\\{} \"{}\"", "w\u00f6rld", -12L, true, '\u20ac');
+		MDC.clear();
+		logger.warn("Failed {}", Arrays.asList(1, 2), new IllegalStateException("boom"));
+		context.stop();
+
+		List<String> lines = Files.readAllLines(Paths.get("logs/json.log"), Charset.forName("UTF-8"));
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0), lines.get(0).matches("\\{\"@timestamp\":\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}\\+02:00\",.*"));
+		assertEquals("\"level\":\"INFO\",\"msg\":\"Hello w\u00f6rld, {} -12 \\\\true \\\"\u20ac\\\"\","
+				+ "\"mdc\":{\"tenant\":\"acme\",\"requestId\":\"42\"},\"service\":\"billing-z\u00fcrich\"}",
+				lines.get(0).substring(lines.get(0).indexOf("\"level\"")));
+		assertTrue(lines.get(1), lines.get(1).contains("\"msg\":\"Failed [1, 2]\",\"exception\":\"java.lang.IllegalStateException: boom\\n\\tat "));
+	}
+
+	@Test
+	public void testBinaryEncoder() throws Exception {
+		System.setProperty("config.file", "src/test/resources/binaryEncoder.conf");
+		ConfigFactory.invalidateCaches();
+		Files.deleteIfExists(Paths.get("logs/binary.log"));
+
+		// the second context appends to the file with dictionaries of its own
+		for (int run = 0; run < 2; run++) {
+			LoggerContext context = new LoggerContext();
+			ConfigConfigurator configurator = new ConfigConfigurator();
+			configurator.configure(context);
+
+			assertOnlyInfo(context);
+
+			Logger logger = context.getLogger("org.gnieh.run" + run);
+			MDC.put("tenant", "acme");
+			logger.info("Hello {}, {} {} {}", "w\u00f6rld", -12L, true, null);
+			MDC.clear();
+			logger.warn("Failed {}", Arrays.asList(1, 2), new IllegalStateException("boom"));
+			// the dictionaries are full, written inline
+			context.getLogger("org.gnieh.other").error("Other {}", 3);
+			context.stop();
+		}
+
+		List<BinaryLogDecoder.DecodedEvent> events = new ArrayList<>();
+		try (BinaryLogDecoder decoder = new BinaryLogDecoder(new FileInputStream("logs/binary.log"))) {
+			BinaryLogDecoder.DecodedEvent event;
+			while ((event = decoder.next()) != null) {
+				events.add(event);
+			}
+		}
+
+		assertEquals(6, events.size());
+		for (int run = 0; run < 2; run++) {
+			BinaryLogDecoder.DecodedEvent hello = events.get(run * 3);
+			assertEquals(Level.INFO, hello.getLevel());
+			assertEquals("org.gnieh.run" + run, hello.getLoggerName());
+			assertEquals(Thread.currentThread().getName(), hello.getThreadName());
+			assertEquals("Hello w\u00f6rld, -12 true null", hello.getMessage());
+			assertEquals("acme", hello.getMdc().get("tenant"));
+			assertNull(hello.getThrowable());
+
+			BinaryLogDecoder.DecodedEvent failed = events.get(run * 3 + 1);
+			assertEquals("Failed [1, 2]", failed.getMessage());
+			assertTrue(failed.getMdc().isEmpty());
+			assertTrue(failed.getThrowable(), failed.getThrowable().startsWith("java.lang.IllegalStateException: boom"));
+
+			BinaryLogDecoder.DecodedEvent other = events.get(run * 3 + 2);
+			assertEquals("org.gnieh.other", other.getLoggerName());
+			assertEquals("Other 3", other.getMessage());
+		}
+
+		ZoneId utc = ZoneId.of("UTC");
+		assertTrue(events.get(0).toText(utc), events.get(0).toText(utc).matches(
+				"\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d{3} \\[.*\\] INFO  org\\.gnieh\\.run0 - Hello w\u00f6rld, -12 true null \\{tenant=acme\\}"));
+		assertTrue(events.get(1).toJson(utc), events.get(1).toJson(utc).matches(
+				"\\{\"timestamp\":\"[^\"]*\\+00:00\",\"level\":\"WARN\",\"logger\":\"org\\.gnieh\\.run0\",\"thread\":\"[^\"]*\","
+						+ "\"message\":\"Failed \\[1, 2\\]\",\"exception\":\"java\\.lang\\.IllegalStateException: boom\\\\n\\\\tat .*\"\\}"));
+	}
+
+	@Test
+	public void testLoggerRules() {
+		System.setProperty("config.file", "src/test/resources/loggerRules.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		Logger existing = context.getLogger("com.acme.users.dao");
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertOnlyInfo(context);
+
+		// patterns are not loggers
+		assertNull(context.exists("com.acme.*.dao"));
+		assertEquals(Level.DEBUG, existing.getLevel());
+		assertEquals(Level.ERROR, context.getLogger("com.acme.billing.dao").getLevel());
+
+		Logger orders = context.getLogger("com.acme.orders.dao.OrderDao");
+		assertNull(context.getLogger("com.acme.orders.dao").getLevel());
+		assertTrue(orders.isDebugEnabled());
+		assertFalse(orders.isTraceEnabled());
+		assertEquals(Level.DEBUG, context.getLogger("com.acme.orders.dao").getLevel());
+
+		assertTrue(context.getLogger("org.example.dao.Repository").isTraceEnabled());
+		assertFalse(context.getLogger("com.acme.orders.internal.Cache").isInfoEnabled());
+		// * does not span segments
+		assertTrue(context.getLogger("com.acme.orders.v2.dao").isTraceEnabled());
+		assertFalse(context.getLogger("com.acme.billing.dao.Invoices").isWarnEnabled());
+
+		// removed with the rules on reload
+		System.setProperty("config.file", "src/test/resources/multipleLoggers.conf");
+		configurator.reconfigure(context);
+		assertNull(context.getLogger("com.acme.orders.dao").getLevel());
+		assertFalse(context.getLogger("com.acme.shipping.dao").isDebugEnabled());
+	}
+
+	@Test
+	public void testCallerData() {
+		System.setProperty("config.file", "src/test/resources/callerData.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		assertOnlyInfo(context);
+
+		Appender<ILoggingEvent> appender = context.getLogger(Logger.ROOT_LOGGER_NAME).getAppender("events");
+		List<ILoggingEvent> events = ((ListAppender<ILoggingEvent>) appender).list;
+		assertTrue(appender.getCopyOfAttachedFiltersList().get(0) instanceof CallerDataFilter);
+
+		context.getLogger("com.acme.web.Controller").info("always");
+		context.getLogger("com.acme.quiet.Poller").info("never");
+		context.getLogger("org.example.Service").info("on demand");
+		assertEquals(3, events.size());
+
+		LoggingEvent always = (LoggingEvent) events.get(0);
+		assertTrue(always.hasCallerData());
+		assertEquals(getClass().getName(), always.getCallerData()[0].getClassName());
+		assertEquals("testCallerData", always.getCallerData()[0].getMethodName());
+		assertTrue(always.getCallerData().length <= context.getMaxCallerDataDepth());
+
+		LoggingEvent never = (LoggingEvent) events.get(1);
+		assertTrue(never.hasCallerData());
+		assertEquals(0, never.getCallerData().length);
+
+		LoggingEvent onDemand = (LoggingEvent) events.get(2);
+		// computed by logback when an appender needs it
+		assertFalse(onDemand.hasCallerData());
+
+		events.clear();
+		Logger sampled = context.getLogger("com.acme.web.sampled.Page");
+		for (int i = 0; i < 1000; i++) {
+			sampled.info("sampled");
+		}
+		int captured = 0;
+		for (ILoggingEvent event : events) {
+			captured += event.getCallerData().length > 0 ? 1 : 0;
+		}
+		assertTrue(String.valueOf(captured), captured > 350 && captured < 650);
+	}
+
+	@Test
+	public void testConfigLinter() {
+		System.setProperty("config.file", "src/test/resources/lint.conf");
+		ConfigFactory.invalidateCaches();
+
+		List<ConfigLinter.Finding> findings = new ConfigLinter().lint(ConfigFactory.load());
+		Map<String, Integer> costs = new HashMap<>();
+		for (ConfigLinter.Finding finding : findings) {
+			costs.put(finding.getPath(), finding.getCost());
+		}
+		assertEquals(20, (int) costs.get("appenders.file.encoder.pattern"));
+		assertEquals(10, (int) costs.get("appenders.file.prudent"));
+		assertEquals(10, (int) costs.get("appenders.async.queue-size"));
+		assertEquals(20, (int) costs.get("appenders.async.include-caller-data"));
+		assertEquals(5, (int) costs.get("loggers.\"com.acme\".appenders"));
+		assertEquals(20, (int) costs.get("root.caller-data"));
+		assertEquals(costs.toString(), 6, findings.size());
+		for (int i = 1; i < findings.size(); i++) {
+			assertTrue(findings.get(i - 1).getCost() >= findings.get(i).getCost());
+		}
+
+		// reported as warnings
+		LoggerContext context = new LoggerContext();
+		new ConfigConfigurator().configure(context);
+		int warnings = 0;
+		for (Status status : context.getStatusManager().getCopyOfStatusList()) {
+			assertTrue(status.getMessage(), status.getLevel() != Status.ERROR);
+			warnings += status.getLevel() == Status.WARN ? 1 : 0;
+		}
+		assertEquals(6, warnings);
+		assertNotNull(context.getLogger(Logger.ROOT_LOGGER_NAME).getAppender("async"));
+		context.stop();
+
+		// rejected in strict mode
+		System.setProperty(ConfigLinter.LINT_PROPERTY, "strict");
+		try {
+			context = new LoggerContext();
+			new ConfigConfigurator().configure(context);
+			assertEquals(Status.ERROR, new StatusUtil(context).getHighestLevel(0));
+			assertNull(context.getLogger(Logger.ROOT_LOGGER_NAME).getAppender("async"));
+		} finally {
+			System.clearProperty(ConfigLinter.LINT_PROPERTY);
+		}
+	}
+
+	@Test
+	public void testAdaptiveAsyncAppender() throws Exception {
+		System.setProperty("config.file", "src/test/resources/adaptiveAsync.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		new ConfigConfigurator().configure(context);
+
+		assertOnlyInfo(context);
+
+		Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		MeteredAppender metered = (MeteredAppender) root.getAppender("async");
+		AdaptiveAsyncAppender async = (AdaptiveAsyncAppender) metered.getDelegate();
+		ListAppender<ILoggingEvent> list = (ListAppender<ILoggingEvent>) async.getAppender("list");
+		assertEquals(1, metered.getWorkerCount());
+		assertEquals(1, metered.getBatchSize());
+		assertEquals(0, metered.getDiscardingThreshold());
+
+		for (int i = 0; i < 50; i++) {
+			root.info("event {}", i);
+		}
+		// every enqueue is above the target
+		async.adjust();
+		assertEquals(2, metered.getWorkerCount());
+		assertEquals(2, metered.getBatchSize());
+		assertEquals(10, metered.getDiscardingThreshold());
+		assertEquals(1, metered.getAdjustmentCount());
+		assertTrue(metered.getEnqueueLatency99thPercentile() > 0);
+
+		// INFO events are discarded once less than 10 slots remain, the WARN one waits
+		synchronized (list) {
+			for (int i = 0; i < 200; i++) {
+				root.info("burst {}", i);
+			}
+			assertTrue(async.getQueueDepth() > 80);
+			assertTrue(metered.getDiscardedCount() > 0);
+		}
+		root.warn("kept");
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (async.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		// the threshold is lowered first, then the workers and batch size
+		async.setTargetEnqueueLatency(Duration.ofHours(1));
+		async.adjust();
+		assertEquals(0, metered.getDiscardingThreshold());
+		assertEquals(2, metered.getWorkerCount());
+		async.adjust();
+		async.adjust();
+		assertEquals(1, metered.getWorkerCount());
+		assertEquals(1, metered.getBatchSize());
+		assertEquals(3, metered.getAdjustmentCount());
+
+		context.stop();
+		assertEquals(251, list.list.size() + async.getDiscardedCount());
+		assertTrue(list.list.stream().anyMatch(event -> "kept".equals(event.getMessage())));
+	}
+
+	@Test
+	public void testReloadStress() throws Exception {
+		// events are delivered exactly once while appenders are swapped
+		ReloadStressHarness.Report report = new ReloadStressHarness(4, 2000, 1000, 20,
+				ReloadStressHarness.Mode.RECONFIGURE).run();
+		assertTrue(report.toString(), report.reloads > 0);
+		assertEquals(report.toString(), 0, report.errors);
+		assertEquals(report.toString(), 0, report.lost);
+		assertEquals(report.toString(), 0, report.duplicated);
+		assertEquals(report.toString(), 0, report.misrouted);
+	}
+
+	@Test
+	public void testConfigureExecutor() throws Exception {
+		System.setProperty("config.file", "src/test/resources/executor.conf");
+		ConfigFactory.invalidateCaches();
+
+		LoggerContext context = new LoggerContext();
+		ScheduledExecutorService previous = context.getScheduledExecutorService();
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		configurator.configure(context);
+
+		// the Java 8 variant is used outside of the multi-release jar
+		for (Status status : context.getStatusManager().getCopyOfStatusList()) {
+			assertTrue(status.getMessage(), status.getLevel() == Status.INFO
+					|| status.getMessage().equals("Virtual threads require Java 21 or later. Using platform threads."));
+		}
+
+		ScheduledExecutorService executor = context.getScheduledExecutorService();
+		assertNotSame(previous, executor);
+		assertTrue(previous.isShutdown());
+		assertEquals(2, ((ScheduledThreadPoolExecutor) executor).getCorePoolSize());
+		assertTrue(executor.submit(() -> Thread.currentThread().getName()).get().startsWith("test-logging-"));
+
+		context.stop();
+		assertTrue(executor.isShutdown());
+	}
+
+	private static PatternLayoutEncoder encoder(Appender<ILoggingEvent> appender) {
+		return (PatternLayoutEncoder) ((OutputStreamAppender<ILoggingEvent>) appender).getEncoder();
+	}
+
+	private static File emptyDirectory(String path) {
+		File directory = new File(path);
+		File[] previous = directory.listFiles();
+		if (previous != null) {
+			for (File file : previous) {
+				file.delete();
+			}
+		}
+		return directory;
+	}
+
+	/**
+	 * Checks that the context only reported information statuses.
+	 */
+	private static void assertOnlyInfo(LoggerContext context) {
+		for (Status status : context.getStatusManager().getCopyOfStatusList()) {
+			assertTrue(status.getMessage(), status.getLevel() == Status.INFO);
+		}
+	}
+
+	/**
+	 * Prints the statuses of the context, and checks that none is an error or a warning.
+	 */
+	private static void assertNoErrorOrWarning(LoggerContext context) {
+		int errorCount = 0;
+		int warningCount = 0;
+		for (Status status : context.getStatusManager().getCopyOfStatusList()) {
+			if (status.getLevel() == Status.ERROR) {
+				System.out.println(String.format("ERROR : %s", status.getMessage()));
+				errorCount++;
+			} else if (status.getLevel() == Status.WARN) {
+				System.out.println(String.format("WARN : %s", status.getMessage()));
+				warningCount++;
+			} else if (status.getLevel() == Status.INFO) {
+				System.out.println(String.format("INFO : %s", status.getMessage()));
+			}
+
+		}
+		assertEquals(0, errorCount);
+		assertEquals(0, warningCount);
+	}
+
+	private static String reloadConfig(String appenderClass, String fileName) {
+		return "logback-root = test.logback\n"
+				+ "test.logback = ${logback} {\n"
+				+ "  appenders.file {\n"
+				+ "    class = \"" + appenderClass + "\"\n"
+				+ "    encoder.class = \"ch.qos.logback.classic.encoder.PatternLayoutEncoder\"\n"
+				+ "    encoder.pattern = \"%level %msg%n\"\n"
+				+ "    file = \"logs/reload/" + fileName + ".log\"\n"
+				+ "  }\n"
+				+ "  root { level = INFO, appenders = [ file ] }\n"
+				+ "  loggers.\"org.gnieh\".level = " + (fileName.equals("first") ? "DEBUG" : "WARN") + "\n"
+				+ "}\n";
+	}
+
+	private static String handOverConfig(String pattern) {
+		return "logback-root = test.logback\n"
+				+ "test.logback = ${logback} {\n"
+				+ "  appenders.file {\n"
+				+ "    class = \"ch.qos.logback.core.FileAppender\"\n"
+				+ "    encoder.class = \"ch.qos.logback.classic.encoder.PatternLayoutEncoder\"\n"
+				+ "    encoder.pattern = \"" + pattern + "\"\n"
+				+ "    file = \"logs/handover/test.log\"\n"
+				+ "  }\n"
+				+ "  appenders.async {\n"
+				+ "    class = \"ch.qos.logback.classic.AsyncAppender\"\n"
+				+ "    appenders = [ file ]\n"
+				+ "  }\n"
+				+ "  root { level = INFO, appenders = [ async ] }\n"
+				+ "}\n";
+	}
+
+	private static int archiveIndex(File archive) {
+		String name = archive.getName();
+		return Integer.parseInt(name.substring(name.lastIndexOf('.', name.length() - 5) + 1, name.length() - 4));
+	}
 }
@@ -2,10 +2,12 @@ package org.gnieh.logback.config;
 
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.ConsoleAppender;
+import ch.qos.logback.core.ContextBase;
 import ch.qos.logback.core.FileAppender;
 import org.junit.Assert;
 import org.junit.Test;
@@ -15,6 +17,9 @@ import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigMemorySize;
 
 import ch.qos.logback.core.joran.util.beans.BeanDescriptionCache;
+import ch.qos.logback.core.spi.PropertyContainer;
+import ch.qos.logback.core.spi.ScanException;
+import ch.qos.logback.core.subst.NodeToStringTransformer;
 
 public class ConfigPropertySetterTest {
 
@@ -225,4 +230,76 @@ public class ConfigPropertySetterTest {
 
 	}
 
+	@Test
+	public void testSetterWithoutBeanCache() {
+
+		TestBean bean = new TestBean();
+
+		ConfigPropertySetter propertySetter = new ConfigPropertySetter(bean);
+
+		Config config = ConfigFactory.load("bean");
+
+		propertySetter.setProperty("int-property", config, null, null);
+		propertySetter.setProperty("duration", config, null, null);
+
+		Assert.assertEquals(12, bean.getIntProperty());
+		Assert.assertEquals(Duration.ofDays(12), bean.getDuration());
+
+	}
+
+	@Test
+	public void testAdderWithoutBeanCache() {
+
+		TestBean bean = new TestBean();
+
+		ConfigPropertySetter propertySetter = new ConfigPropertySetter(bean);
+
+		Config config = ConfigFactory.load("bean");
+
+		propertySetter.setProperty("ints", config, null, null);
+
+		Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5), bean.getInts());
+
+	}
+
+	@Test
+	public void testStringTemplate() throws Exception {
+
+		ContextBase context = new ContextBase();
+		context.putProperty("x", "X");
+		context.putProperty("y", "");
+		context.putProperty("nested", "<${x}>");
+		context.putProperty("cycle", "${cycle}");
+		PropertyContainer local = new ContextBase();
+		((ContextBase) local).putProperty("local", "L");
+
+		String[] inputs = { "", "plain", "%d{HH:mm:ss} %msg", "a:-b", "}{", "$", "a$", "${", "${}", "${x}", "${x:-d}",
+				"${undefined}", "${undefined:-d}", "${undefined:-}", "${a}}", "${x}${y}", "${x}-${local}.log", "${${x}}",
+				"${x:-${y}}", "${nested}", "pre ${nested} post", "${x:-a:-b}", "{${x}}", "${x}:-", "$${x}", "${x",
+				"${x}{", "a}b", "%logger{36} - %msg%n", "${x}$", "${x}a$b", "${ x }", "${x:- d }" };
+		for (String input : inputs) {
+			String expected = substitute(() -> NodeToStringTransformer.substituteVariable(input, context, local));
+			Assert.assertEquals(input, expected, substitute(() -> StringTemplate.substitute(input, context, local)));
+			// cached templates evaluate to the same value
+			Assert.assertEquals(input, expected, substitute(() -> StringTemplate.of(input).evaluate(context, local)));
+		}
+
+		try {
+			StringTemplate.substitute("${cycle}", context, local);
+			Assert.fail("Expected the cycle to be detected");
+		} catch (IllegalArgumentException e) {
+			// as detected by logback
+		}
+
+	}
+
+	private static String substitute(Callable<String> substitution) throws Exception {
+		try {
+			return substitution.call();
+		} catch (ScanException | RuntimeException e) {
+			// malformed strings fail the same way
+			return e.getClass().getName();
+		}
+	}
+
 }
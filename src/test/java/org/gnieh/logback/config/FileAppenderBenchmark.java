@@ -0,0 +1,90 @@
+package org.gnieh.logback.config;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+import com.typesafe.config.ConfigMemorySize;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.FileAppender;
+
+/**
+ * Compares the append throughput of the stock {@link FileAppender} with the
+ * {@link ChannelFileAppender} in both modes.
+ *
+ * <p>
+ * Run with {@code sbt "test:runMain org.gnieh.logback.config.FileAppenderBenchmark [events]"}.
+ */
+public class FileAppenderBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		for (boolean immediateFlush : new boolean[] { true, false }) {
+			run("FileAppender", new FileAppender<>(), immediateFlush, events);
+			ChannelFileAppender<ILoggingEvent> channel = new ChannelFileAppender<>();
+			run("ChannelFileAppender", channel, immediateFlush, events);
+			ChannelFileAppender<ILoggingEvent> mapped = new ChannelFileAppender<>();
+			mapped.setMemoryMapped(true);
+			mapped.setRegionSize(ConfigMemorySize.ofBytes(16 * 1024 * 1024));
+			run("ChannelFileAppender (mapped)", mapped, immediateFlush, events);
+		}
+	}
+
+	private static void run(String name, FileAppender<ILoggingEvent> appender, boolean immediateFlush, int events) {
+		LoggerContext context = new LoggerContext();
+		Logger logger = context.getLogger(FileAppenderBenchmark.class);
+
+		File file = new File("target/bench/" + name.replaceAll("\\W", "") + ".log");
+		file.delete();
+
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setCharset(Charset.forName("UTF-8"));
+		encoder.setPattern("%date %level %logger %thread %msg%n");
+		encoder.start();
+
+		appender.setContext(context);
+		appender.setName(name);
+		appender.setFile(file.getPath());
+		appender.setAppend(false);
+		appender.setImmediateFlush(immediateFlush);
+		appender.setEncoder(encoder);
+		appender.start();
+
+		ILoggingEvent event = new LoggingEvent(FileAppenderBenchmark.class.getName(), logger, Level.INFO,
+				"a benchmark message of reasonable length with a parameter {}", null, new Object[] { 42 });
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			append(appender, event, events);
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			best = Math.min(best, append(appender, event, events));
+		}
+		appender.stop();
+		context.stop();
+		file.delete();
+
+		System.out.println(String.format("%-30s immediate-flush=%-5s %8.1f ns/event", name, immediateFlush,
+				(double) best / events));
+	}
+
+	private static long append(FileAppender<ILoggingEvent> appender, ILoggingEvent event, int events) {
+		long start = System.nanoTime();
+		for (int i = 0; i < events; i++) {
+			appender.doAppend(event);
+		}
+		return System.nanoTime() - start;
+	}
+
+}
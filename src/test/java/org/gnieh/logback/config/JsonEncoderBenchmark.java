@@ -0,0 +1,112 @@
+package org.gnieh.logback.config;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.encoder.Encoder;
+
+/**
+ * Measures the time and the bytes allocated per event by the
+ * {@link JsonEncoder}, compared with the {@link PatternLayoutEncoder}, when
+ * encoding and when appending to a {@link ChannelFileAppender}.
+ *
+ * <p>
+ * Run with {@code sbt "test:runMain org.gnieh.logback.config.JsonEncoderBenchmark [events]"}.
+ * Allocations are measured on HotSpot only.
+ */
+public class JsonEncoderBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	private static final int ROUNDS = 5;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	public static void main(String[] args) {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		LoggerContext context = new LoggerContext();
+		Logger logger = context.getLogger(JsonEncoderBenchmark.class);
+
+		MDC.put("tenant", "acme");
+		MDC.put("request-id", "0123456789");
+		ILoggingEvent event = new LoggingEvent(JsonEncoderBenchmark.class.getName(), logger, Level.INFO,
+				"a benchmark message of reasonable length with parameters {} and {}", null,
+				new Object[] { 42, "value" });
+		MDC.clear();
+
+		JsonEncoder json = new JsonEncoder();
+		json.setContext(context);
+		json.start();
+
+		PatternLayoutEncoder pattern = new PatternLayoutEncoder();
+		pattern.setContext(context);
+		pattern.setCharset(Charset.forName("UTF-8"));
+		pattern.setPattern("%date %level %logger %thread %X %msg%n");
+		pattern.start();
+
+		run("JsonEncoder (buffer)", () -> json.encodeToBuffer(event), events);
+		run("JsonEncoder", () -> json.encode(event), events);
+		run("PatternLayoutEncoder", () -> pattern.encode(event), events);
+		run("ChannelFileAppender + JsonEncoder", appender(context, json), event, events);
+		run("ChannelFileAppender + Pattern", appender(context, pattern), event, events);
+
+		context.stop();
+	}
+
+	private static ChannelFileAppender<ILoggingEvent> appender(LoggerContext context, Encoder<ILoggingEvent> encoder) {
+		File file = new File("target/bench/json-" + encoder.getClass().getSimpleName() + ".log");
+		file.delete();
+		ChannelFileAppender<ILoggingEvent> appender = new ChannelFileAppender<>();
+		appender.setContext(context);
+		appender.setName(file.getName());
+		appender.setFile(file.getPath());
+		appender.setAppend(false);
+		appender.setImmediateFlush(false);
+		appender.setEncoder(encoder);
+		appender.start();
+		return appender;
+	}
+
+	private static void run(String name, ChannelFileAppender<ILoggingEvent> appender, ILoggingEvent event,
+			int events) {
+		run(name, () -> appender.doAppend(event), events);
+		appender.stop();
+		new File(appender.getFile()).delete();
+	}
+
+	private static void run(String name, Runnable operation, int events) {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			repeat(operation, events);
+		}
+		long best = Long.MAX_VALUE;
+		long allocated = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			long before = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+			best = Math.min(best, repeat(operation, events));
+			allocated = Math.min(allocated, THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - before);
+		}
+
+		System.out.println(String.format("%-35s %8.1f ns/event %8.1f B/event", name, (double) best / events,
+				(double) allocated / events));
+	}
+
+	private static long repeat(Runnable operation, int events) {
+		long start = System.nanoTime();
+		for (int i = 0; i < events; i++) {
+			operation.run();
+		}
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,37 @@
+package org.gnieh.logback.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class JsonEncoderTest {
+
+	@Test
+	public void testJsonEncoderTimestamp() {
+		LoggerContext context = new LoggerContext();
+		JsonEncoder encoder = new JsonEncoder();
+		encoder.setContext(context);
+		encoder.addField("timestamp");
+		encoder.setTimeZone("Europe/Paris");
+		encoder.start();
+		assertTrue(encoder.isStarted());
+
+		LoggingEvent event = new LoggingEvent();
+		// the hour is cached, and the offset changes in the middle of it
+		event.setTimeStamp(1540688399999L);
+		assertEquals("{\"timestamp\":\"2018-10-28T02:59:59.999+02:00\"}\n", new String(encoder.encode(event)));
+		event.setTimeStamp(1540688400000L);
+		assertEquals("{\"timestamp\":\"2018-10-28T02:00:00.000+01:00\"}\n", new String(encoder.encode(event)));
+		event.setTimeStamp(1540692061001L);
+		assertEquals("{\"timestamp\":\"2018-10-28T03:01:01.001+01:00\"}\n", new String(encoder.encode(event)));
+
+		encoder.setTimestampFormat("epoch-millis");
+		encoder.start();
+		assertEquals("{\"timestamp\":1540692061001}\n", new String(encoder.encode(event)));
+	}
+
+}
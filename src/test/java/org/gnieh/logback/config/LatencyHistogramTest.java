@@ -0,0 +1,30 @@
+package org.gnieh.logback.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 1000; value++) {
+			histogram.record(value * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		// within the histogram precision
+		long median = histogram.getValueAtPercentile(50);
+		assertTrue(String.valueOf(median), Math.abs(median - 500000) <= 500000 / LatencyHistogram.SUB_BUCKETS);
+		assertEquals(1000000, histogram.getValueAtPercentile(100));
+
+		for (long value : new long[] { 0, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(value <= LatencyHistogram.highestValue(index));
+			assertTrue(index == 0 || value > LatencyHistogram.highestValue(index - 1));
+		}
+	}
+
+}
@@ -0,0 +1,316 @@
+package org.gnieh.logback.config;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.typesafe.config.ConfigFactory;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.status.Status;
+
+/**
+ * Logs from several producer threads at a fixed rate while the configuration
+ * is reloaded on a schedule, and reports the events lost or delivered to the
+ * wrong appender, the latency of logging calls and the duration of reloads.
+ *
+ * <p>
+ * Producers log to two loggers routed to one appender each, all other events
+ * going to the root appender. Every reload changes the appender settings, so
+ * that new appenders are built and swapped in. Reloads either go through
+ * {@link ConfigConfigurator#reconfigure(LoggerContext)}, or reset the context
+ * and configure it again, as the JMX configurator does. Every event carries
+ * its producer and sequence number, so that an event delivered twice is
+ * reported as duplicated even if another one is lost.
+ *
+ * <p>
+ * Run with
+ * {@code sbt "test:runMain org.gnieh.logback.config.ReloadStressHarness [producers] [events-per-second] [seconds] [reload-period-ms] [reconfigure|reset]"}.
+ * {@code ConfigConfiguratorTest.testReloadStress} runs it briefly and fails if
+ * any event is lost or duplicated with {@code reconfigure}.
+ */
+public class ReloadStressHarness {
+
+	enum Mode {
+		RECONFIGURE, RESET
+	}
+
+	/**
+	 * The harness being run, reported to by the appenders.
+	 */
+	private static volatile ReloadStressHarness current;
+
+	private final int producers;
+
+	private final int rate;
+
+	private final long durationNanos;
+
+	private final long reloadPeriodNanos;
+
+	private final Mode mode;
+
+	private final AtomicLongArray sent;
+
+	/**
+	 * The sequence numbers delivered per producer.
+	 */
+	private final BitSet[] delivered;
+
+	private final AtomicLong duplicated = new AtomicLong();
+
+	private final AtomicLong misrouted = new AtomicLong();
+
+	private final LatencyHistogram callLatency = new LatencyHistogram();
+
+	private final LatencyHistogram reloadDuration = new LatencyHistogram();
+
+	private final AtomicInteger generation = new AtomicInteger();
+
+	ReloadStressHarness(int producers, int rate, long durationMillis, long reloadPeriodMillis, Mode mode) {
+		this.producers = producers;
+		this.rate = rate;
+		this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		this.reloadPeriodNanos = TimeUnit.MILLISECONDS.toNanos(reloadPeriodMillis);
+		this.mode = mode;
+		this.sent = new AtomicLongArray(producers);
+		this.delivered = new BitSet[producers];
+		for (int i = 0; i < producers; i++) {
+			delivered[i] = new BitSet();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+		long reloadPeriod = args.length > 3 ? Long.parseLong(args[3]) : 100;
+		Mode mode = args.length > 4 ? Mode.valueOf(args[4].toUpperCase()) : Mode.RECONFIGURE;
+
+		System.out.println(new ReloadStressHarness(producers, rate, seconds * 1000, reloadPeriod, mode).run());
+	}
+
+	/**
+	 * Runs the producers and the reloads, then stops the context.
+	 *
+	 * @return the report
+	 */
+	Report run() throws InterruptedException {
+		current = this;
+		LoggerContext context = new LoggerContext();
+		AtomicInteger errors = new AtomicInteger();
+		context.getStatusManager().add(status -> {
+			if (status.getLevel() == Status.ERROR) {
+				errors.incrementAndGet();
+			}
+		});
+		ConfigConfigurator configurator = configurator();
+		configurator.configure(context);
+
+		long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+		long end = start + durationNanos;
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < producers; i++) {
+			int producer = i;
+			Logger logger = context.getLogger(producer % 2 == 0 ? "stress.a.Producer" : "stress.b.Producer");
+			threads.add(new Thread(() -> produce(logger, producer, start, end), "producer-" + producer));
+		}
+		int reloads = 0;
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		long nextReload = start + reloadPeriodNanos;
+		while (nextReload < end) {
+			LockSupport.parkNanos(nextReload - System.nanoTime());
+			long before = System.nanoTime();
+			generation.incrementAndGet();
+			if (mode == Mode.RECONFIGURE) {
+				configurator.reconfigure(context);
+			} else {
+				context.reset();
+				configurator = configurator();
+				configurator.configure(context);
+			}
+			reloadDuration.record(System.nanoTime() - before);
+			reloads++;
+			nextReload += reloadPeriodNanos;
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		context.stop();
+		current = null;
+		return new Report(reloads, errors.get());
+	}
+
+	private ConfigConfigurator configurator() {
+		ConfigConfigurator configurator = new ConfigConfigurator();
+		// parsed from memory, so that the loader does not depend on file time stamps
+		configurator.setLoader(() -> ConfigFactory.parseString(config(generation.get()))
+				.withFallback(ConfigFactory.parseResources("reference.conf")).resolve());
+		return configurator;
+	}
+
+	private static String config(int generation) {
+		String appender = RouteAppender.class.getName();
+		return "logback-root = stress.logback\n"
+				+ "stress.logback = ${logback} {\n"
+				+ "  appenders {\n"
+				+ "    a { class = \"" + appender + "\", route = \"stress.a.\", generation = " + generation + " }\n"
+				+ "    b { class = \"" + appender + "\", route = \"stress.b.\", generation = " + generation + " }\n"
+				+ "    other { class = \"" + appender + "\", route = \"\", generation = " + generation + " }\n"
+				+ "  }\n"
+				+ "  loggers {\n"
+				+ "    \"stress.a\" { level = INFO, additivity = false, appenders = [ a ] }\n"
+				+ "    \"stress.b\" { level = INFO, additivity = false, appenders = [ b ] }\n"
+				+ "  }\n"
+				+ "  root { level = INFO, appenders = [ other ] }\n"
+				+ "}\n";
+	}
+
+	private void produce(Logger logger, int producer, long start, long end) {
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		Integer id = producer;
+		for (long i = 0;; i++) {
+			// paced on the intended time, so that a stalled call delays the next ones
+			long intended = start + i * interval;
+			if (intended >= end) {
+				return;
+			}
+			long now = System.nanoTime();
+			if (intended > now) {
+				LockSupport.parkNanos(intended - now);
+			}
+			long before = System.nanoTime();
+			logger.info("event {} {}", id, i);
+			callLatency.record(System.nanoTime() - before);
+			sent.incrementAndGet(producer);
+		}
+	}
+
+	private void delivered(RouteAppender appender, ILoggingEvent event) {
+		Object[] arguments = event.getArgumentArray();
+		if (arguments == null || !(arguments[0] instanceof Integer) || appender.getRoute().isEmpty()
+				|| !event.getLoggerName().startsWith(appender.getRoute())) {
+			misrouted.incrementAndGet();
+		} else {
+			BitSet sequences = delivered[(Integer) arguments[0]];
+			int sequence = ((Long) arguments[1]).intValue();
+			synchronized (sequences) {
+				if (sequences.get(sequence)) {
+					duplicated.incrementAndGet();
+				} else {
+					sequences.set(sequence);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports the events it gets to the harness, checking that they belong to its
+	 * route.
+	 */
+	public static class RouteAppender extends AppenderBase<ILoggingEvent> {
+
+		private String route = "";
+
+		private int generation;
+
+		public String getRoute() {
+			return route;
+		}
+
+		/**
+		 * The prefix of the loggers whose events this appender gets, empty for
+		 * none.
+		 */
+		public void setRoute(String route) {
+			this.route = route;
+		}
+
+		public int getGeneration() {
+			return generation;
+		}
+
+		/**
+		 * The reload which built the appender, so that every reload changes the
+		 * configuration.
+		 */
+		public void setGeneration(int generation) {
+			this.generation = generation;
+		}
+
+		@Override
+		protected void append(ILoggingEvent event) {
+			ReloadStressHarness harness = current;
+			if (harness != null) {
+				harness.delivered(this, event);
+			}
+		}
+	}
+
+	/**
+	 * The outcome of a run.
+	 */
+	final class Report {
+
+		final long sent;
+
+		final long lost;
+
+		final long duplicated;
+
+		final long misrouted;
+
+		final int reloads;
+
+		final int errors;
+
+		Report(int reloads, int errors) {
+			long sent = 0;
+			long lost = 0;
+			for (int i = 0; i < producers; i++) {
+				long producerSent = ReloadStressHarness.this.sent.get(i);
+				sent += producerSent;
+				synchronized (delivered[i]) {
+					// the sequence numbers are sent from 0 on
+					lost += producerSent - delivered[i].cardinality();
+				}
+			}
+			this.sent = sent;
+			this.lost = lost;
+			this.duplicated = ReloadStressHarness.this.duplicated.get();
+			this.misrouted = ReloadStressHarness.this.misrouted.get();
+			this.reloads = reloads;
+			this.errors = errors;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d producers at %d events/s, %d reloads (%d errors)%n"
+					+ "events:  %d sent, %d lost, %d duplicated, %d misrouted%n"
+					+ "call:    p50 %s, p99 %s, p99.9 %s, max %s%n"
+					+ "reload:  p50 %s, p99 %s, max %s",
+					mode.name().toLowerCase(), producers, rate, reloads, errors, sent, lost, duplicated, misrouted,
+					micros(callLatency.getValueAtPercentile(50)), micros(callLatency.getValueAtPercentile(99)),
+					micros(callLatency.getValueAtPercentile(99.9)), micros(callLatency.getMax()),
+					micros(reloadDuration.getValueAtPercentile(50)), micros(reloadDuration.getValueAtPercentile(99)),
+					micros(reloadDuration.getMax()));
+		}
+
+		private String micros(long nanos) {
+			return String.format("%.1f us", nanos / 1000.0);
+		}
+	}
+
+}